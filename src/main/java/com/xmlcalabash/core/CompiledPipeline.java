@@ -0,0 +1,44 @@
+package com.xmlcalabash.core;
+
+import com.xmlcalabash.model.DeclareStep;
+import com.xmlcalabash.runtime.XPipeline;
+
+/**
+ * A pipeline that has been parsed and analysed, but not instantiated.
+ *
+ * <p>An XPipeline holds the state of a single run: its step implementations, the options and
+ * parameters passed to it and the documents in its pipes. It can only be run by one thread at
+ * a time. A compiled pipeline holds only the model, which running the pipeline doesn't change.
+ * Each call to newPipeline() returns a separate XPipeline with its own inputs, options and
+ * outputs, and any number of them can run at the same time on different threads. They share
+ * the runtime, which keeps the state of a run (the XProcData frames and the running steps)
+ * for each thread. Each instance also has its own InvocationContext, so the errors,
+ * collections and cookies of one run aren't seen by another.</p>
+ *
+ * <p>Loading or compiling another pipeline with the same runtime resets it, so that mustn't
+ * happen while instances are running. Profiled runs take turns, because there is only one
+ * profile.</p>
+ */
+public class CompiledPipeline {
+    private XProcRuntime runtime = null;
+    private DeclareStep pipeline = null;
+
+    protected CompiledPipeline(XProcRuntime runtime, DeclareStep pipeline) {
+        this.runtime = runtime;
+        this.pipeline = pipeline;
+    }
+
+    public XProcRuntime getRuntime() {
+        return runtime;
+    }
+
+    public DeclareStep getDeclareStep() {
+        return pipeline.getDeclaration();
+    }
+
+    public XPipeline newPipeline() {
+        XPipeline xpipe = runtime.newPipeline(pipeline);
+        xpipe.setInvocation(new InvocationContext());
+        return xpipe;
+    }
+}
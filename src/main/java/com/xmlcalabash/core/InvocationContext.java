@@ -0,0 +1,87 @@
+package com.xmlcalabash.core;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Vector;
+
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import org.apache.http.client.CookieStore;
+import org.apache.http.impl.client.BasicCookieStore;
+
+/**
+ * The state that belongs to one run of a pipeline rather than to its runtime: the first error
+ * reported, the collections set with cx:collection-manager and the cookie stores used by
+ * p:http-request.
+ *
+ * <p>A runtime has a context of its own, which load() and use() start again. Each
+ * CompiledPipeline.newPipeline() gets a new one, so instances that run at the same time can't
+ * see each other's errors, collections or cookies. XProcRuntime.getInvocation() returns the
+ * context of the run on the current thread.</p>
+ */
+public class InvocationContext {
+    private QName errorCode = null;
+    private XdmNode errorNode = null;
+    private String errorMessage = null;
+    private Hashtable<String,Vector<XdmNode>> collections = new Hashtable<String,Vector<XdmNode>> ();
+    private Map<String, CookieStore> cookieStores = new HashMap<String, CookieStore> ();
+
+    /**
+     * Records an error. Only the first error is kept.
+     */
+    public synchronized void error(XdmNode node, String message, QName code) {
+        if (errorCode == null) {
+            errorCode = code;
+            errorNode = node;
+            errorMessage = message;
+        }
+    }
+
+    public synchronized QName getErrorCode() {
+        return errorCode;
+    }
+
+    public synchronized XdmNode getErrorNode() {
+        return errorNode;
+    }
+
+    public synchronized String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setCollection(URI href, Vector<XdmNode> docs) {
+        collections.put(href.toASCIIString(), docs);
+    }
+
+    public Vector<XdmNode> getCollection(URI href) {
+        return collections.get(href.toASCIIString());
+    }
+
+    public CookieStore getCookieStore(String key) {
+        synchronized (cookieStores) {
+            if (cookieStores.containsKey(key))
+                return cookieStores.get(key);
+            BasicCookieStore cookieStore = new BasicCookieStore();
+            cookieStores.put(key, cookieStore);
+            return cookieStore;
+        }
+    }
+
+    public void setCookieStore(String key, CookieStore cookieStore) {
+        synchronized (cookieStores) {
+            if (cookieStore == null) {
+                cookieStores.remove(key);
+            } else {
+                cookieStores.put(key, cookieStore);
+            }
+        }
+    }
+
+    public void removeCookieStore(String key) {
+        synchronized (cookieStores) {
+            cookieStores.remove(key);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.xmlcalabash.core;
+
+import com.xmlcalabash.model.DeclareStep;
+import net.sf.saxon.s9api.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of compiled pipelines.
+ *
+ * <p>Loading a pipeline parses it and the libraries it imports, then analyses it with
+ * DeclareStep.setup(). The resulting model depends only on the documents that were read, so
+ * later loads of the same pipeline by the same runtime can reuse it as long as none of those
+ * documents has changed. A file is assumed to be unchanged if its modification time and size
+ * are the same. Other documents are compared by their ETag or modification time, or by a
+ * digest of their content if they have neither, and they're only checked again once
+ * REMOTE_CHECK_INTERVAL has passed.</p>
+ *
+ * <p>The model refers to the runtime that compiled it and to that runtime's step declarations,
+ * so each runtime has a cache of its own (see XProcRuntime.getPipelineCache()). Nothing may
+ * change a cached model once it has been set up.</p>
+ *
+ * <p>The cache holds at most a fixed number of pipelines; the least recently used pipeline
+ * is discarded first.</p>
+ */
+public class PipelineCache {
+    private static Logger logger = LoggerFactory.getLogger(PipelineCache.class);
+    // How long, in milliseconds, documents that aren't files are assumed to be unchanged
+    private static final long REMOTE_CHECK_INTERVAL = 10000;
+    private int maxEntries = 0;
+    private Map<String,CachedPipeline> cache = null;
+    private AtomicLong hits = new AtomicLong(0);
+    private AtomicLong misses = new AtomicLong(0);
+    private AtomicLong stale = new AtomicLong(0);
+
+    public PipelineCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        cache = new LinkedHashMap<String,CachedPipeline>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,CachedPipeline> eldest) {
+                return size() > PipelineCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled pipeline with this key, or null if there isn't one or any of the
+     * documents it was compiled from has changed.
+     */
+    protected CachedPipeline get(String key) {
+        CachedPipeline entry = null;
+        synchronized (cache) {
+            entry = cache.get(key);
+        }
+
+        if (entry != null && !entry.current()) {
+            logger.debug("Cached pipeline is out of date: " + key);
+            synchronized (cache) {
+                if (cache.get(key) == entry) {
+                    cache.remove(key);
+                }
+            }
+            stale.incrementAndGet();
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Caches a compiled pipeline. The declared steps are the ones that loading the pipeline
+     * declared in the runtime, the documents are the ones that were read to compile it.
+     */
+    protected void put(String key, DeclareStep pipeline, Hashtable<QName,DeclareStep> declaredSteps, Collection<URI> documents) {
+        HashMap<URI,String> validators = new HashMap<URI,String> ();
+        for (URI uri : documents) {
+            String validator = validator(uri);
+            if (validator == null) {
+                logger.debug("Not caching " + key + ", can't tell if " + uri + " changes");
+                return;
+            }
+            validators.put(uri, validator);
+        }
+
+        synchronized (cache) {
+            cache.put(key, new CachedPipeline(pipeline, declaredSteps, validators));
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    // How many of the misses were pipelines that had to be recompiled because they had changed
+    public long getStale() {
+        return stale.get();
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private static String validator(URI uri) {
+        try {
+            if ("file".equals(uri.getScheme())) {
+                File file = new File(uri);
+                if (!file.exists()) {
+                    return null;
+                }
+                return file.lastModified() + "/" + file.length();
+            }
+
+            URLConnection conn = uri.toURL().openConnection();
+            if (conn instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection) conn;
+                http.setRequestMethod("HEAD");
+                if (http.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    http.disconnect();
+                    return null;
+                }
+            }
+            String etag = conn.getHeaderField("ETag");
+            long modified = conn.getLastModified();
+            long length = conn.getContentLengthLong();
+            if (conn instanceof HttpURLConnection) {
+                ((HttpURLConnection) conn).disconnect();
+            } else {
+                conn.getInputStream().close();
+            }
+
+            if (etag != null) {
+                return "etag " + etag;
+            }
+            if (modified > 0) {
+                return modified + "/" + length;
+            }
+
+            InputStream stream = uri.toURL().openStream();
+            try {
+                return digest(stream);
+            } finally {
+                stream.close();
+            }
+        } catch (IllegalArgumentException iae) {
+            return null;
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a hex encoded SHA-1 digest of everything that can be read from the stream.
+     * The stream isn't closed.
+     */
+    public static String digest(InputStream stream) throws IOException {
+        MessageDigest digest = null;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw XProcException.dynamicError(36);
+        }
+
+        byte[] buf = new byte[8192];
+        int len = stream.read(buf);
+        while (len >= 0) {
+            digest.update(buf, 0, len);
+            len = stream.read(buf);
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (byte b : digest.digest()) {
+            String str = Integer.toHexString(b & 0xff);
+            if (str.length() < 2) {
+                result.append("0");
+            }
+            result.append(str);
+        }
+        return result.toString();
+    }
+
+    protected static class CachedPipeline {
+        private DeclareStep pipeline = null;
+        private Hashtable<QName,DeclareStep> declaredSteps = null;
+        private HashMap<URI,String> validators = null;
+        // When the documents that aren't files were last found to be unchanged
+        private volatile long checked = System.currentTimeMillis();
+
+        private CachedPipeline(DeclareStep pipeline, Hashtable<QName,DeclareStep> declaredSteps, HashMap<URI,String> validators) {
+            this.pipeline = pipeline;
+            this.declaredSteps = declaredSteps;
+            this.validators = validators;
+        }
+
+        public DeclareStep getPipeline() {
+            return pipeline;
+        }
+
+        public Hashtable<QName,DeclareStep> getDeclaredSteps() {
+            return declaredSteps;
+        }
+
+        private boolean current() {
+            long now = System.currentTimeMillis();
+            boolean checkRemote = now - checked >= REMOTE_CHECK_INTERVAL;
+            for (URI uri : validators.keySet()) {
+                if ((checkRemote || "file".equals(uri.getScheme()))
+                        && !validators.get(uri).equals(validator(uri))) {
+                    return false;
+                }
+            }
+            if (checkRemote) {
+                checked = now;
+            }
+            return true;
+        }
+    }
+}
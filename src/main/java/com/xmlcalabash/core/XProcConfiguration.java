@@ -36,6 +36,7 @@ import java.util.zip.ZipEntry;
 
 import com.xmlcalabash.io.ReadablePipe;
 import com.xmlcalabash.io.DocumentSequence;
+import com.xmlcalabash.io.HttpCache;
 import com.xmlcalabash.runtime.XAtomicStep;
 import com.xmlcalabash.model.Step;
 
@@ -113,7 +114,19 @@ public class XProcConfiguration {
     public boolean useXslt10 = false;
     public boolean htmlSerializer = false;
     public boolean allowTextResults = false;
+    public boolean backgroundGzip = false;
     public Vector<String> catalogs = new Vector<String> ();
+    public int threadCount = 1;
+    public int pipeCapacity = 0;
+    public int pipelineCacheSize = 0;
+    public int httpMaxConnections = 0;
+    public int httpMaxConnectionsPerHost = 0;
+    public int httpIdleTimeout = 0;
+    public int httpKeepAlive = 0;
+    public int asyncLimit = 16;
+    public String httpCacheDirectory = null;
+    public int documentCacheSize = 0;
+    public long documentCacheBytes = 64L * 1024 * 1024;
 
     public int piperackPort = 8088;
     public int piperackDefaultExpires = 300;
@@ -122,6 +135,11 @@ public class XProcConfiguration {
     private Processor cfgProcessor = null;
     private boolean firstInput = false;
     private boolean firstOutput = false;
+    // The standard library is parsed once for every runtime that uses this configuration
+    private XdmNode standardLibrary = null;
+    private XsdCache xsdCache = null;
+    private HttpCache httpCache = null;
+    private DocumentCache documentCache = null;
 
     public XProcConfiguration() {
         logger = LoggerFactory.getLogger(this.getClass());
@@ -162,6 +180,55 @@ public class XProcConfiguration {
         return cfgProcessor;
     }
 
+    /**
+     * Returns the standard library document, or null if no runtime has parsed it yet. Each
+     * runtime builds its own declarations from it, because declarations belong to a runtime,
+     * and keeps them for every pipeline it loads.
+     */
+    protected synchronized XdmNode getStandardLibrary() {
+        return standardLibrary;
+    }
+
+    /**
+     * Returns the cache of compiled XML schemas for this configuration's processor.
+     */
+    public synchronized XsdCache getXsdCache() {
+        if (xsdCache == null) {
+            xsdCache = new XsdCache();
+        }
+        return xsdCache;
+    }
+
+    /**
+     * Returns the disk cache of HTTP responses shared by the runtimes that use this configuration,
+     * or null if httpCacheDirectory isn't set.
+     */
+    public synchronized HttpCache getHttpCache() {
+        if (httpCache == null && httpCacheDirectory != null) {
+            httpCache = new HttpCache(new File(httpCacheDirectory));
+        }
+        return httpCache;
+    }
+
+    /**
+     * Returns the cache of parsed documents shared by the runtimes that use this configuration,
+     * or null if documentCacheSize is 0.
+     */
+    public synchronized DocumentCache getDocumentCache() {
+        if (documentCache == null && documentCacheSize > 0) {
+            documentCache = new DocumentCache(documentCacheSize, documentCacheBytes);
+        }
+        return documentCache;
+    }
+
+    // If two runtimes parse the library at the same time, the first one to finish wins
+    protected synchronized XdmNode cacheStandardLibrary(XdmNode library) {
+        if (standardLibrary == null) {
+            standardLibrary = library;
+        }
+        return standardLibrary;
+    }
+
     private void initSaxonProcessor(String proctype, boolean schemaAware, Input saxoncfg) {
         if (schemaAware) {
             proctype = "ee";
@@ -397,6 +464,7 @@ public class XProcConfiguration {
         jsonFlavor = System.getProperty("com.xmlcalabash.json-flavor", jsonFlavor);
         useXslt10 = "true".equals(System.getProperty("com.xmlcalabash.use-xslt-10", ""+useXslt10));
         htmlSerializer = "true".equals(System.getProperty("com.xmlcalabash.html-serializer", ""+htmlSerializer));
+        backgroundGzip = "true".equals(System.getProperty("com.xmlcalabash.background-gzip", ""+backgroundGzip));
         entityResolver = System.getProperty("com.xmlcalabash.entity-resolver", entityResolver);
         uriResolver = System.getProperty("com.xmlcalabash.uri-resolver", uriResolver);
         errorListener = System.getProperty("com.xmlcalabash.error-listener", errorListener);
@@ -424,6 +492,50 @@ public class XProcConfiguration {
             }
         }
 
+        if (System.getProperty("com.xmlcalabash.thread-count") != null) {
+            threadCount = Integer.parseInt(System.getProperty("com.xmlcalabash.thread-count"));
+        }
+
+        if (System.getProperty("com.xmlcalabash.pipe-capacity") != null) {
+            pipeCapacity = Integer.parseInt(System.getProperty("com.xmlcalabash.pipe-capacity"));
+        }
+
+        if (System.getProperty("com.xmlcalabash.pipeline-cache-size") != null) {
+            pipelineCacheSize = Integer.parseInt(System.getProperty("com.xmlcalabash.pipeline-cache-size"));
+        }
+
+        if (System.getProperty("com.xmlcalabash.http-max-connections") != null) {
+            httpMaxConnections = Integer.parseInt(System.getProperty("com.xmlcalabash.http-max-connections"));
+        }
+
+        if (System.getProperty("com.xmlcalabash.http-max-connections-per-host") != null) {
+            httpMaxConnectionsPerHost = Integer.parseInt(System.getProperty("com.xmlcalabash.http-max-connections-per-host"));
+        }
+
+        if (System.getProperty("com.xmlcalabash.http-idle-timeout") != null) {
+            httpIdleTimeout = Integer.parseInt(System.getProperty("com.xmlcalabash.http-idle-timeout"));
+        }
+
+        if (System.getProperty("com.xmlcalabash.http-keep-alive") != null) {
+            httpKeepAlive = Integer.parseInt(System.getProperty("com.xmlcalabash.http-keep-alive"));
+        }
+
+        if (System.getProperty("com.xmlcalabash.async-limit") != null) {
+            asyncLimit = Integer.parseInt(System.getProperty("com.xmlcalabash.async-limit"));
+        }
+
+        if (System.getProperty("com.xmlcalabash.http-cache-directory") != null) {
+            httpCacheDirectory = System.getProperty("com.xmlcalabash.http-cache-directory");
+        }
+
+        if (System.getProperty("com.xmlcalabash.document-cache-size") != null) {
+            documentCacheSize = Integer.parseInt(System.getProperty("com.xmlcalabash.document-cache-size"));
+        }
+
+        if (System.getProperty("com.xmlcalabash.document-cache-bytes") != null) {
+            documentCacheBytes = Long.parseLong(System.getProperty("com.xmlcalabash.document-cache-bytes"));
+        }
+
         if (System.getProperty("com.xmlcalabash.piperack-port") != null) {
             piperackPort = Integer.parseInt(System.getProperty("com.xmlcalabash.piperack-port"));
         }
@@ -551,6 +663,31 @@ public class XProcConfiguration {
                     logStyle(node);
                 } else if ("pipeline-loader".equals(localName)) {
                     pipelineLoader(node);
+                } else if ("thread-count".equals(localName)) {
+                    threadCount(node);
+                } else if ("pipe-capacity".equals(localName)) {
+                    pipeCapacity(node);
+                } else if ("pipeline-cache-size".equals(localName)) {
+                    pipelineCacheSize(node);
+                } else if ("http-max-connections".equals(localName)) {
+                    httpMaxConnections = nonNegative(node, "http-max-connections");
+                } else if ("http-max-connections-per-host".equals(localName)) {
+                    httpMaxConnectionsPerHost = nonNegative(node, "http-max-connections-per-host");
+                } else if ("http-idle-timeout".equals(localName)) {
+                    httpIdleTimeout = nonNegative(node, "http-idle-timeout");
+                } else if ("http-keep-alive".equals(localName)) {
+                    httpKeepAlive = nonNegative(node, "http-keep-alive");
+                } else if ("async-limit".equals(localName)) {
+                    asyncLimit = nonNegative(node, "async-limit");
+                } else if ("http-cache-directory".equals(localName)) {
+                    httpCacheDirectory = node.getStringValue().trim();
+                } else if ("document-cache-size".equals(localName)) {
+                    documentCacheSize = nonNegative(node, "document-cache-size");
+                } else if ("document-cache-bytes".equals(localName)) {
+                    documentCacheBytes = Long.parseLong(node.getStringValue().trim());
+                    if (documentCacheBytes < 0) {
+                        throw new XProcException(node, "Configuration option 'document-cache-bytes' must be a non-negative integer");
+                    }
                 } else if ("piperack-port".equals(localName)) {
                     piperackPort(node);
                 } else if ("piperack-default-expires".equals(localName)) {
@@ -733,6 +870,8 @@ public class XProcConfiguration {
             useXslt10 = "true".equals(value);
         } else if ("html-serializer".equals(name)) {
             htmlSerializer = "true".equals(value);
+        } else if ("background-gzip".equals(name)) {
+            backgroundGzip = "true".equals(value);
         } else {
             throw new XProcException("Unrecognized extension in configuration: " + name);
         }
@@ -825,6 +964,38 @@ public class XProcConfiguration {
         }
     }
 
+    private void threadCount(XdmNode node) {
+        String count = node.getStringValue().trim();
+        threadCount = Integer.parseInt(count);
+        if (threadCount < 1) {
+            throw new XProcException(node, "Configuration option 'thread-count' must be a positive integer");
+        }
+    }
+
+    private void pipeCapacity(XdmNode node) {
+        String count = node.getStringValue().trim();
+        pipeCapacity = Integer.parseInt(count);
+        if (pipeCapacity < 0) {
+            throw new XProcException(node, "Configuration option 'pipe-capacity' must be a non-negative integer");
+        }
+    }
+
+    private void pipelineCacheSize(XdmNode node) {
+        String size = node.getStringValue().trim();
+        pipelineCacheSize = Integer.parseInt(size);
+        if (pipelineCacheSize < 0) {
+            throw new XProcException(node, "Configuration option 'pipeline-cache-size' must be a non-negative integer");
+        }
+    }
+
+    private int nonNegative(XdmNode node, String option) {
+        int value = Integer.parseInt(node.getStringValue().trim());
+        if (value < 0) {
+            throw new XProcException(node, "Configuration option '" + option + "' must be a non-negative integer");
+        }
+        return value;
+    }
+
     private void piperackPort(XdmNode node) {
         String portno = node.getStringValue().trim();
         piperackPort = Integer.parseInt(portno);
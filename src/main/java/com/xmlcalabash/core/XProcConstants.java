@@ -115,6 +115,8 @@ public class XProcConstants {
     public static final QName cx_depends_on = new QName("cx",NS_CALABASH_EX,"depends-on");
     public static final QName cx_cache = new QName("cx",NS_CALABASH_EX,"cache");
     public static final QName cx_type = new QName("cx",NS_CALABASH_EX,"type");
+    public static final QName cx_parallel = new QName("cx",NS_CALABASH_EX,"parallel");
+    public static final QName cx_async = new QName("cx",NS_CALABASH_EX,"async");
 
     public static final QName xs_QName = new QName("xs", NS_XMLSCHEMA, "QName");
     public static final QName xs_untypedAtomic = new QName("xs", NS_XMLSCHEMA, "untypedAtomic");
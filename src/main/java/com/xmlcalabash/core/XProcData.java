@@ -20,15 +20,44 @@ import net.sf.saxon.s9api.QName;
  * To change this template use File | Settings | File Templates.
  */
 public class XProcData {
-    private Stack<StackFrame> stack = null;
+    // Each thread that runs steps gets its own stack of frames; see getFrames()/setFrames()
+    private ThreadLocal<Stack<StackFrame>> frames = null;
     private XProcRuntime runtime = null;
 
     public XProcData(XProcRuntime runtime) {
         this.runtime = runtime;
-        stack = new Stack<StackFrame> ();
+        frames = new ThreadLocal<Stack<StackFrame>> () {
+            protected Stack<StackFrame> initialValue() {
+                return new Stack<StackFrame> ();
+            }
+        };
+    }
+
+    /**
+     * Returns a copy of the current thread's stack. The frames themselves are shared, so
+     * errors caught on another thread still accumulate on the right p:try.
+     */
+    public Stack<?> getFrames() {
+        Stack<StackFrame> copy = new Stack<StackFrame> ();
+        copy.addAll(frames.get());
+        return copy;
+    }
+
+    /**
+     * Replaces the current thread's stack with a copy of one obtained from getFrames()
+     * and returns the stack that was replaced.
+     */
+    @SuppressWarnings("unchecked")
+    public Stack<?> setFrames(Stack<?> newFrames) {
+        Stack<StackFrame> old = frames.get();
+        Stack<StackFrame> copy = new Stack<StackFrame> ();
+        copy.addAll((Stack<StackFrame>) newFrames);
+        frames.set(copy);
+        return old;
     }
 
     public void openFrame(XStep step) {
+        Stack<StackFrame> stack = frames.get();
         int pos = 1;
         int size = 1;
 
@@ -46,14 +75,17 @@ public class XProcData {
     }
 
     public void closeFrame() {
+        Stack<StackFrame> stack = frames.get();
         stack.pop();
     }
 
     public int getDepth() {
+        Stack<StackFrame> stack = frames.get();
         return stack.size();
     }
     
     public XStep getStep() {
+        Stack<StackFrame> stack = frames.get();
         if (stack.size() == 0) {
             return null;
         } else {
@@ -62,18 +94,22 @@ public class XProcData {
     }
 
     public void setIterationPosition(int pos) {
+        Stack<StackFrame> stack = frames.get();
         stack.peek().iterPos = pos;
     }
 
     public int getIterationPosition() {
+        Stack<StackFrame> stack = frames.get();
         return stack.peek().iterPos;
     }
 
     public void setIterationSize(int size) {
+        Stack<StackFrame> stack = frames.get();
         stack.peek().iterSize = size;
     }
 
     public int getIterationSize() {
+        Stack<StackFrame> stack = frames.get();
         return stack.peek().iterSize;
     }
 
@@ -86,6 +122,7 @@ public class XProcData {
     }
 
     public boolean catchError(XdmNode error) {
+        Stack<StackFrame> stack = frames.get();
         // Errors accumulate on the nearest p:try/p:group ancestor because that's where we
         // can read them. Note, however, that errors raised in a p:catch are NOT
         // part of the parent p:try but rather the grandparent.
@@ -105,6 +142,7 @@ public class XProcData {
     }
 
     public List<XdmNode> errors() {
+        Stack<StackFrame> stack = frames.get();
         // Errors accumulate on the nearest p:try/p:group ancestor
         int pos = stack.size() - 1;
         while (pos >= 0 && !tryGroup(stack.get(pos).step)) {
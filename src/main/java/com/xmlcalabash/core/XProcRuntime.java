@@ -20,6 +20,8 @@
 
 package com.xmlcalabash.core;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -36,14 +38,22 @@ import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Stack;
 import java.util.Vector;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.transform.URIResolver;
 import javax.xml.transform.sax.SAXSource;
@@ -67,9 +77,8 @@ import net.sf.saxon.s9api.XsltTransformer;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.utils.HttpClientUtils;
-import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.StandardHttpRequestRetryHandler;
-import org.apache.http.impl.client.SystemDefaultHttpClient;
+import org.apache.http.pool.PoolStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.EntityResolver;
@@ -90,6 +99,7 @@ import com.xmlcalabash.functions.XProcExtensionFunctionDefinition;
 import com.xmlcalabash.io.DataStore;
 import com.xmlcalabash.io.FallbackDataStore;
 import com.xmlcalabash.io.FileDataStore;
+import com.xmlcalabash.io.HttpCache;
 import com.xmlcalabash.io.HttpClientDataStore;
 import com.xmlcalabash.io.ReadableData;
 import com.xmlcalabash.io.ReadablePipe;
@@ -101,14 +111,21 @@ import com.xmlcalabash.runtime.XLibrary;
 import com.xmlcalabash.runtime.XPipeline;
 import com.xmlcalabash.runtime.XRootStep;
 import com.xmlcalabash.runtime.XStep;
+import com.xmlcalabash.util.DocumentCache;
 import com.xmlcalabash.util.DefaultXProcConfigurer;
 import com.xmlcalabash.util.DefaultXProcMessageListener;
 import com.xmlcalabash.util.JSONtoXML;
+import com.xmlcalabash.util.PooledHttpClient;
 import com.xmlcalabash.util.S9apiUtils;
 import com.xmlcalabash.util.StepErrorListener;
 import com.xmlcalabash.util.TreeWriter;
 import com.xmlcalabash.util.URIUtils;
+import com.xmlcalabash.util.XPathCache;
+import com.xmlcalabash.util.SchemaCache;
 import com.xmlcalabash.util.XProcURIResolver;
+import com.xmlcalabash.util.SchematronCache;
+import com.xmlcalabash.util.XQueryCache;
+import com.xmlcalabash.util.XsltCache;
 
 import static java.lang.String.format;
 
@@ -122,14 +139,13 @@ public class XProcRuntime {
     private Parser parser = null;
     private XProcURIResolver uriResolver = null;
     private XProcConfiguration config = null;
-    private QName errorCode = null;
-    private XdmNode errorNode = null;
-    private String errorMessage = null;
+    // The runtime's own invocation context, for runs that don't have one of their own
+    private InvocationContext invocation = null;
+    private ThreadLocal<InvocationContext> invocations = new ThreadLocal<InvocationContext> ();
     private Hashtable<QName, DeclareStep> declaredSteps = new Hashtable<QName,DeclareStep> ();
     private DeclareStep pipeline = null;
     private XPipeline xpipeline = null;
     private static String episode = null;
-    private Hashtable<String,Vector<XdmNode>> collections = null;
     private URI staticBaseURI = null;
     private URI baseURI = null;
     private boolean allowGeneralExpressions = true;
@@ -143,11 +159,23 @@ public class XProcRuntime {
     private XProcMessageListener msgListener = null;
     private PipelineLibrary standardLibrary = null;
     private XLibrary xStandardLibrary = null;
+    // The steps declared by the standard library; reset() starts from these
+    private Hashtable<QName,DeclareStep> builtinSteps = null;
     private HttpClient httpClient;
-    private Map<String, CookieStore> cookieStores;
     private DataStore dataStore;
     private XProcConfigurer configurer = null;
     private String htmlParser = null;
+    private ExecutorService executor = null;
+    private ExecutorService streamingExecutor = null;
+    private XPathCache xpathCache = null;
+    private XsltCache xsltCache = null;
+    private XQueryCache xqueryCache = null;
+    private SchematronCache schematronCache = null;
+    private SchemaCache schemaCache = null;
+    private PipelineCache pipelineCache = null;
+    private AtomicLong retainedDocuments = new AtomicLong(0);
+    private AtomicLong retainedBytes = new AtomicLong(0);
+    private AtomicLong peakRetainedBytes = new AtomicLong(0);
     private Vector<XProcExtensionFunctionDefinition> exFuncs = new Vector<XProcExtensionFunctionDefinition>();
 
     private Output profile = null;
@@ -191,9 +219,7 @@ public class XProcRuntime {
         exFuncs.add(new VersionAvailable(this));
         exFuncs.add(new XPathVersionAvailable(this));
 
-        for (XProcExtensionFunctionDefinition xf : exFuncs) {
-            processor.registerExtensionFunction(xf);
-        }
+        registerExtensionFunctions();
 
         Configuration saxonConfig = processor.getUnderlyingConfiguration();
         uriResolver = new XProcURIResolver(this);
@@ -283,10 +309,7 @@ public class XProcRuntime {
         useXslt10 = runtime.useXslt10;
         htmlSerializer = runtime.htmlSerializer;
         msgListener = runtime.msgListener;
-        standardLibrary = runtime.standardLibrary;
-        xStandardLibrary = runtime.xStandardLibrary;
         httpClient = runtime.httpClient;
-        cookieStores = runtime.cookieStores;
         configurer = runtime.configurer;
         allowGeneralExpressions = runtime.allowGeneralExpressions;
         allowXPointerOnText = runtime.allowXPointerOnText;
@@ -305,15 +328,23 @@ public class XProcRuntime {
         exFuncs.add(new VersionAvailable(this));
         exFuncs.add(new XPathVersionAvailable(this));
 
-        for (XProcExtensionFunctionDefinition xf : exFuncs) {
-            processor.registerExtensionFunction(xf);
-        }
+        registerExtensionFunctions();
 
         reset();
 
         initializeSteps();
     }
 
+    /**
+     * Makes the processor use this runtime's extension functions. A runtime made from this
+     * one shares its processor and replaces them with its own.
+     */
+    public void registerExtensionFunctions() {
+        for (XProcExtensionFunctionDefinition xf : exFuncs) {
+            processor.registerExtensionFunction(xf);
+        }
+    }
+
     private void initializeSteps() {
         for (Class klass : config.implementations.values()) {
             try {
@@ -332,9 +363,61 @@ public class XProcRuntime {
     }
 
     public void close() {
+        if (xpathCache != null) {
+            logger.debug("XPath cache: " + xpathCache.getHits() + " hits, " + xpathCache.getMisses() + " misses");
+        }
+        if (xsltCache != null) {
+            logger.debug("XSLT cache: " + xsltCache.getHits() + " hits, " + xsltCache.getMisses() + " misses, "
+                    + xsltCache.getEvictions() + " evictions, " + xsltCache.getCompileTime() + "ms compiling");
+        }
+        if (xqueryCache != null) {
+            logger.debug("XQuery cache: " + xqueryCache.getHits() + " hits, " + xqueryCache.getMisses() + " misses, "
+                    + xqueryCache.getEvictions() + " evictions");
+        }
+        if (schematronCache != null) {
+            logger.debug("Schematron cache: " + schematronCache.getHits() + " hits, " + schematronCache.getMisses() + " misses");
+        }
+        if (schemaCache != null) {
+            logger.debug("Schema cache: " + schemaCache.getHits() + " hits, " + schemaCache.getMisses() + " misses");
+        }
+
+        DocumentCache documentCache = getDocumentCache();
+        if (documentCache != null) {
+            logger.debug("Document cache: " + documentCache.getHits() + " hits, " + documentCache.getMisses() + " misses, "
+                    + documentCache.getStale() + " stale, " + documentCache.getEvictions() + " evictions");
+        }
+
+        HttpCache httpCache = getHttpCache();
+        if (httpCache != null) {
+            logger.debug("HTTP cache: " + httpCache.getHits() + " hits, " + httpCache.getRevalidations()
+                    + " revalidated, " + httpCache.getMisses() + " misses");
+        }
+
+        PoolStats httpStats = getHttpPoolStats();
+        if (httpStats != null) {
+            logger.debug("HTTP connections: " + httpStats);
+        }
+
         HttpClientUtils.closeQuietly(httpClient);
         httpClient = null;
 
+        synchronized (this) {
+            if (pipelineCache != null) {
+                logger.debug("Pipeline cache: " + pipelineCache.getHits() + " hits, " + pipelineCache.getMisses()
+                        + " misses, " + pipelineCache.getStale() + " stale");
+                pipelineCache.clear();
+                pipelineCache = null;
+            }
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+            if (streamingExecutor != null) {
+                streamingExecutor.shutdown();
+                streamingExecutor = null;
+            }
+        }
+
         for (XProcExtensionFunctionDefinition xf : exFuncs) {
             xf.close();
         }
@@ -411,11 +494,27 @@ public class XProcRuntime {
             if (!getSafeMode()) {
                 fallback = new FileDataStore(fallback);
             }
-            dataStore = new HttpClientDataStore(getHttpClient(), fallback);
+            HttpClientDataStore httpStore = new HttpClientDataStore(getHttpClient(), fallback);
+            httpStore.setCache(getHttpCache());
+            dataStore = httpStore;
         }
         return dataStore;
     }
 
+    /**
+     * Returns the cache of documents parsed from files, or null if there isn't one.
+     */
+    public DocumentCache getDocumentCache() {
+        return config.getDocumentCache();
+    }
+
+    /**
+     * Returns the disk cache of HTTP responses, or null if there isn't one.
+     */
+    public HttpCache getHttpCache() {
+        return config.getHttpCache();
+    }
+
     public synchronized void setDataStore(DataStore dataStore) {
         this.dataStore = dataStore;
     }
@@ -433,20 +532,34 @@ public class XProcRuntime {
     }
 
     public void setCollection(URI href, Vector<XdmNode> docs) {
-        if (collections == null) {
-            collections = new Hashtable<String,Vector<XdmNode>> ();
-        }
-        collections.put(href.toASCIIString(), docs);
+        getInvocation().setCollection(href, docs);
     }
 
     public Vector<XdmNode> getCollection(URI href) {
-        if (collections == null) {
-            return null;
-        }
-        if (collections.containsKey(href.toASCIIString())) {
-            return collections.get(href.toASCIIString());
+        return getInvocation().getCollection(href);
+    }
+
+    /**
+     * Returns the invocation context of the run on the current thread, or the runtime's own
+     * context if the run doesn't have one.
+     */
+    public InvocationContext getInvocation() {
+        InvocationContext context = invocations.get();
+        return context == null ? invocation : context;
+    }
+
+    /**
+     * Makes the context the current thread's invocation context, or clears it if the context
+     * is null, and returns the context that it replaced.
+     */
+    public InvocationContext setInvocation(InvocationContext context) {
+        InvocationContext old = invocations.get();
+        if (context == null) {
+            invocations.remove();
+        } else {
+            invocations.set(context);
         }
-        return null;
+        return old;
     }
 
     public boolean getSafeMode() {
@@ -557,8 +670,8 @@ public class XProcRuntime {
         if (xStandardLibrary == null) {
             xStandardLibrary = new XLibrary(this, standardLibrary);
 
-            if (errorCode != null) {
-                throw new XProcException(errorCode, errorMessage);
+            if (getErrorCode() != null) {
+                throw new XProcException(getErrorCode(), getErrorMessage());
             }
         }
 
@@ -566,31 +679,39 @@ public class XProcRuntime {
     }
 
     private synchronized void reset() {
-        errorCode = null;
-        errorMessage = null;
-        declaredSteps = new Hashtable<QName,DeclareStep> ();
+        invocation = new InvocationContext();
         //explicitDeclarations = false;
         pipeline = null;
         xpipeline = null;
         episode = null;
-        collections = null;
-        cookieStores = new HashMap<String, CookieStore>();
 
         xprocData = new XProcData(this);
 
         parser = new Parser(this);
-        try {
-            // FIXME: I should *do* something with these libraries, shouldn't I?
-            standardLibrary = parser.loadStandardLibrary();
-            if (errorCode != null) {
-                throw new XProcException(errorCode, errorMessage);
+
+        // The standard library declarations don't change, so each runtime builds them once
+        if (builtinSteps != null) {
+            declaredSteps = new Hashtable<QName,DeclareStep> (builtinSteps);
+        } else {
+            declaredSteps = new Hashtable<QName,DeclareStep> ();
+            try {
+                XdmNode library = config.getStandardLibrary();
+                if (library == null) {
+                    library = config.cacheStandardLibrary(parser.parseStandardLibrary());
+                }
+                // FIXME: I should *do* something with these libraries, shouldn't I?
+                standardLibrary = parser.loadStandardLibrary(library);
+                if (getErrorCode() != null) {
+                    throw new XProcException(getErrorCode(), getErrorMessage());
+                }
+            } catch (FileNotFoundException ex) {
+                throw new XProcException(XProcConstants.dynamicError(9), ex);
+            } catch (URISyntaxException ex) {
+                throw new XProcException(XProcConstants.dynamicError(9), ex);
+            } catch (SaxonApiException ex) {
+                throw new XProcException(XProcConstants.dynamicError(9), ex);
             }
-        } catch (FileNotFoundException ex) {
-            throw new XProcException(XProcConstants.dynamicError(9), ex);
-        } catch (URISyntaxException ex) {
-            throw new XProcException(XProcConstants.dynamicError(9), ex);
-        } catch (SaxonApiException ex) {
-            throw new XProcException(XProcConstants.dynamicError(9), ex);
+            builtinSteps = new Hashtable<QName,DeclareStep> (declaredSteps);
         }
 
         if (profile != null) {
@@ -602,6 +723,52 @@ public class XProcRuntime {
 
     // FIXME: This design sucks
     public XPipeline load(Input pipeline) throws SaxonApiException {
+        String map = findLoader(pipeline);
+        if (map != null) {
+            return runPipelineLoader(pipeline, config.loaders.get(map), map.startsWith("data:"));
+        }
+
+        try {
+            return _load(pipeline);
+        } catch (SaxonApiException sae) {
+            error(sae);
+            throw sae;
+        } catch (XProcException xe) {
+            error(xe);
+            throw xe;
+        } catch (IOException ioe) {
+            error(ioe);
+            throw new XProcException(ioe);
+        }
+    }
+
+    /**
+     * Loads a pipeline that can be instantiated any number of times, by any number of threads.
+     * See CompiledPipeline.
+     */
+    public CompiledPipeline compile(Input pipeline) throws SaxonApiException {
+        String map = findLoader(pipeline);
+        if (map != null) {
+            runPipelineLoader(pipeline, config.loaders.get(map), map.startsWith("data:"));
+            return new CompiledPipeline(this, this.pipeline);
+        }
+
+        try {
+            return new CompiledPipeline(this, _compile(pipeline));
+        } catch (SaxonApiException sae) {
+            error(sae);
+            throw sae;
+        } catch (XProcException xe) {
+            error(xe);
+            throw xe;
+        } catch (IOException ioe) {
+            error(ioe);
+            throw new XProcException(ioe);
+        }
+    }
+
+    // Returns the key of the configured loader for the pipeline, if there is one
+    private String findLoader(Input pipeline) {
         String uri;
         switch (pipeline.getKind()) {
             case URI:
@@ -617,30 +784,66 @@ public class XProcRuntime {
         }
 
         for (String map : config.loaders.keySet()) {
-            boolean data = map.startsWith("data:");
             String pattern = map.substring(5);
             if (uri.matches(pattern)) {
-                return runPipelineLoader(pipeline, config.loaders.get(map), data);
+                return map;
             }
         }
-
-        try {
-            return _load(pipeline);
-        } catch (SaxonApiException sae) {
-            error(sae);
-            throw sae;
-        } catch (XProcException xe) {
-            error(xe);
-            throw xe;
-        } catch (IOException ioe) {
-            error(ioe);
-            throw new XProcException(ioe);
-        }
+        return null;
     }
 
     private XPipeline _load(Input pipelineInput) throws SaxonApiException, IOException {
+        return instantiate(_compile(pipelineInput));
+    }
+
+    private DeclareStep _compile(Input pipelineInput) throws SaxonApiException, IOException {
         reset();
         configurer.getXMLCalabashConfigurer().configRuntime(this);
+
+        PipelineCache cache = getPipelineCache();
+        String cacheKey = null;
+        if (cache != null) {
+            switch (pipelineInput.getKind()) {
+                case URI:
+                    cacheKey = (baseURI == null ? "" : baseURI.toASCIIString()) + " " + pipelineInput.getUri();
+                    break;
+
+                case INPUT_STREAM:
+                    // The stream can only be read once, so read it into memory to compute its digest
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    InputStream stream = pipelineInput.getInputStream();
+                    try {
+                        byte[] buf = new byte[8192];
+                        int len = stream.read(buf);
+                        while (len >= 0) {
+                            bytes.write(buf, 0, len);
+                            len = stream.read(buf);
+                        }
+                    } finally {
+                        stream.close();
+                    }
+                    byte[] content = bytes.toByteArray();
+                    cacheKey = pipelineInput.getInputStreamUri() + " "
+                            + PipelineCache.digest(new ByteArrayInputStream(content));
+                    pipelineInput = new Input(new ByteArrayInputStream(content), pipelineInput.getInputStreamUri());
+                    break;
+
+                default:
+                    break;
+            }
+
+            PipelineCache.CachedPipeline entry = cacheKey == null ? null : cache.get(cacheKey);
+            if (entry != null) {
+                logger.debug("Using cached pipeline: " + cacheKey);
+                Hashtable<QName,DeclareStep> declared = entry.getDeclaredSteps();
+                for (QName type : declared.keySet()) {
+                    declareStep(type, declared.get(type));
+                }
+                pipeline = entry.getPipeline();
+                return pipeline;
+            }
+        }
+
         switch (pipelineInput.getKind()) {
             case URI:
                 if (baseURI == null) {
@@ -657,28 +860,53 @@ public class XProcRuntime {
             default:
                 throw new UnsupportedOperationException(format("Unsupported pipeline kind '%s'", pipelineInput.getKind()));
         }
-        if (errorCode != null) {
-            throw new XProcException(errorCode, errorMessage);
+        if (getErrorCode() != null) {
+            throw new XProcException(getErrorCode(), getErrorMessage());
         }
 
-        XRootStep root = new XRootStep(this);
         DeclareStep decl = pipeline.getDeclaration();
         decl.setup();
 
-        if (errorCode != null) {
-            throw new XProcException(errorCode, errorNode, errorMessage);
+        if (getErrorCode() != null) {
+            throw new XProcException(getErrorCode(), getInvocation().getErrorNode(), getErrorMessage());
+        }
+        decl.setupCalledPipelines();
+
+        if (cacheKey != null) {
+            // Loading the pipeline declared the standard library steps and the pipeline's own
+            Hashtable<QName,DeclareStep> declared = new Hashtable<QName,DeclareStep> ();
+            for (QName type : declaredSteps.keySet()) {
+                if (builtinSteps.get(type) != declaredSteps.get(type)) {
+                    declared.put(type, declaredSteps.get(type));
+                }
+            }
+            cache.put(cacheKey, pipeline, declared, parser.getLoadedDocuments());
         }
 
-        xpipeline = new XPipeline(this, pipeline, root);
-        xpipeline.instantiate(decl);
+        return pipeline;
+    }
+
+    private XPipeline instantiate(DeclareStep pipeline) {
+        xpipeline = newPipeline(pipeline);
 
-        if (errorCode != null) {
-            throw new XProcException(errorCode, errorMessage);
+        if (getErrorCode() != null) {
+            throw new XProcException(getErrorCode(), getErrorMessage());
         }
 
         return xpipeline;
     }
 
+    /*
+     * Instantiating a pipeline doesn't change the runtime or the model, so this is safe
+     * while other instances of the same pipeline are running.
+     */
+    protected XPipeline newPipeline(DeclareStep pipeline) {
+        XRootStep root = new XRootStep(this);
+        XPipeline xpipe = new XPipeline(this, pipeline, root);
+        xpipe.instantiate(pipeline.getDeclaration());
+        return xpipe;
+    }
+
     // FIXME: This design sucks
     public XPipeline use(XdmNode p_pipeline) throws SaxonApiException {
         try {
@@ -691,30 +919,43 @@ public class XProcRuntime {
             throw xe;
         }
     }
+
+    /**
+     * Like compile(Input), but for a pipeline that has already been parsed.
+     */
+    public CompiledPipeline compile(XdmNode p_pipeline) throws SaxonApiException {
+        try {
+            return new CompiledPipeline(this, _compile(p_pipeline));
+        } catch (SaxonApiException sae) {
+            error(sae);
+            throw sae;
+        } catch (XProcException xe) {
+            error(xe);
+            throw xe;
+        }
+    }
+
     private XPipeline _use(XdmNode p_pipeline) throws SaxonApiException {
+        return instantiate(_compile(p_pipeline));
+    }
+
+    private DeclareStep _compile(XdmNode p_pipeline) throws SaxonApiException {
         reset();
         configurer.getXMLCalabashConfigurer().configRuntime(this);
         pipeline = parser.usePipeline(p_pipeline);
-        if (errorCode != null) {
-            throw new XProcException(errorCode, errorMessage);
+        if (getErrorCode() != null) {
+            throw new XProcException(getErrorCode(), getErrorMessage());
         }
 
-        XRootStep root = new XRootStep(this);
         DeclareStep decl = pipeline.getDeclaration();
         decl.setup();
 
-        if (errorCode != null) {
-            throw new XProcException(errorCode, errorMessage);
-        }
-
-        xpipeline = new XPipeline(this, pipeline, root);
-        xpipeline.instantiate(decl);
-
-        if (errorCode != null) {
-            throw new XProcException(errorCode, errorMessage);
+        if (getErrorCode() != null) {
+            throw new XProcException(getErrorCode(), getErrorMessage());
         }
+        decl.setupCalledPipelines();
 
-        return xpipeline;
+        return pipeline;
     }
 
     // FIXME: This design sucks
@@ -770,14 +1011,14 @@ public class XProcRuntime {
                 throw new UnsupportedOperationException(format("Unsupported library kind '%s'", library.getKind()));
         }
 
-        if (errorCode != null) {
-            throw new XProcException(errorCode, errorMessage);
+        if (getErrorCode() != null) {
+            throw new XProcException(getErrorCode(), getErrorMessage());
         }
 
         XLibrary xlibrary = new XLibrary(this, plibrary);
 
-        if (errorCode != null) {
-            throw new XProcException(errorCode, errorMessage);
+        if (getErrorCode() != null) {
+            throw new XProcException(getErrorCode(), getErrorMessage());
         }
 
         return xlibrary;
@@ -798,14 +1039,14 @@ public class XProcRuntime {
 
     private XLibrary _useLibrary(XdmNode library) throws SaxonApiException {
         PipelineLibrary plibrary = parser.useLibrary(library);
-        if (errorCode != null) {
-            throw new XProcException(errorCode, errorMessage);
+        if (getErrorCode() != null) {
+            throw new XProcException(getErrorCode(), getErrorMessage());
         }
 
         XLibrary xlibrary = new XLibrary(this, plibrary);
 
-        if (errorCode != null) {
-            throw new XProcException(errorCode, errorMessage);
+        if (getErrorCode() != null) {
+            throw new XProcException(getErrorCode(), getErrorMessage());
         }
 
         return xlibrary;
@@ -903,29 +1144,22 @@ public class XProcRuntime {
         }
     }
 
-    public synchronized CookieStore getCookieStore(String key) {
-        if (cookieStores.containsKey(key))
-            return cookieStores.get(key);
-        BasicCookieStore cookieStore = new BasicCookieStore();
-        cookieStores.put(key, cookieStore);
-        return cookieStore;
+    public CookieStore getCookieStore(String key) {
+        return getInvocation().getCookieStore(key);
     }
 
-    public synchronized void setCookieStore(String key, CookieStore cookieStore) {
-        if (cookieStore == null) {
-            removeCookieStore(key);
-        } else {
-            this.cookieStores.put(key, cookieStore);
-        }
+    public void setCookieStore(String key, CookieStore cookieStore) {
+        getInvocation().setCookieStore(key, cookieStore);
     }
 
-    public synchronized void removeCookieStore(String key) {
-        this.cookieStores.remove(key);
+    public void removeCookieStore(String key) {
+        getInvocation().removeCookieStore(key);
     }
 
     public synchronized HttpClient getHttpClient() {
     	if (this.httpClient == null) {
-            SystemDefaultHttpClient httpClient = new SystemDefaultHttpClient();
+            PooledHttpClient httpClient = new PooledHttpClient(config.httpMaxConnections, config.httpMaxConnectionsPerHost,
+                    config.httpIdleTimeout, config.httpKeepAlive);
             // Provide custom retry handler is necessary
             httpClient.setHttpRequestRetryHandler(new StandardHttpRequestRetryHandler(3, false));
             return this.httpClient = httpClient;
@@ -938,12 +1172,195 @@ public class XProcRuntime {
         this.httpClient = client;
     }
 
+    /**
+     * Returns the number of pooled HTTP connections that are leased, available, and waited for,
+     * or null if the HTTP client isn't a PooledHttpClient (or hasn't been created yet).
+     */
+    public synchronized PoolStats getHttpPoolStats() {
+        if (httpClient instanceof PooledHttpClient) {
+            return ((PooledHttpClient) httpClient).getPoolStats();
+        }
+        return null;
+    }
+
+    /**
+     * If true, cx:gzip and p:store compress on a separate thread while the output is being
+     * written, instead of on the step's own thread.
+     */
+    public boolean getBackgroundGzip() {
+        return config.backgroundGzip;
+    }
+
+    /**
+     * The number of threads that may be used to run steps concurrently. A value
+     * of one (the default) means that pipelines are run sequentially.
+     */
+    public int getThreadCount() {
+        return config.threadCount;
+    }
+
+    /**
+     * Returns the bounded pool of worker threads shared by everything that runs steps in
+     * parallel. When all of the workers are busy, a submitted task is run on the submitting
+     * thread instead of being queued; that keeps nested parallel constructs from deadlocking
+     * while they wait for each other.
+     *
+     * <p>With a thread count of one, there are no workers: every task is run on the thread
+     * that submits it, so cx:parallel, directory loads, and cx:zip run sequentially too.</p>
+     */
+    public synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            if (getThreadCount() <= 1) {
+                executor = new SameThreadExecutor();
+                return executor;
+            }
+
+            int threads = getThreadCount() - 1;
+            ThreadFactory factory = new ThreadFactory() {
+                private int count = 0;
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "xmlcalabash-worker-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), factory, new ThreadPoolExecutor.CallerRunsPolicy());
+            ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * The number of iterations of a p:for-each with cx:async="true" that may run at once. Those
+     * iterations spend most of their time waiting for HTTP responses, so they run on the
+     * streaming pool rather than the bounded worker pool. Each one needs a connection, so
+     * http-max-connections-per-host limits how many can be talking to any one server.
+     */
+    public int getAsyncLimit() {
+        return config.asyncLimit;
+    }
+
+    /**
+     * The number of documents a step may write ahead of the slowest reader of a streaming pipe.
+     * Zero (the default) means that pipes aren't streamed: each step runs to completion before
+     * the steps that read its outputs start.
+     */
+    public int getPipeCapacity() {
+        return config.pipeCapacity;
+    }
+
+    /**
+     * Returns the pool that runs steps connected by streaming pipes. Readers of a streaming pipe
+     * block until their writer produces a document, so every step needs a thread of its own;
+     * this pool isn't bounded, but its threads are reused.
+     */
+    public synchronized ExecutorService getStreamingExecutor() {
+        if (streamingExecutor == null) {
+            ThreadFactory factory = new ThreadFactory() {
+                private int count = 0;
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "xmlcalabash-stream-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            streamingExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), factory);
+        }
+        return streamingExecutor;
+    }
+
+    /**
+     * Returns the cache of compiled XPath expressions used by this runtime.
+     */
+    public synchronized XPathCache getXPathCache() {
+        if (xpathCache == null) {
+            xpathCache = new XPathCache(processor);
+        }
+        return xpathCache;
+    }
+
+    public synchronized XsltCache getXsltCache() {
+        if (xsltCache == null) {
+            xsltCache = new XsltCache(processor);
+        }
+        return xsltCache;
+    }
+
+    public synchronized XQueryCache getXQueryCache() {
+        if (xqueryCache == null) {
+            xqueryCache = new XQueryCache(processor, getResolver());
+        }
+        return xqueryCache;
+    }
+
+    public synchronized SchematronCache getSchematronCache() {
+        if (schematronCache == null) {
+            schematronCache = new SchematronCache(processor);
+        }
+        return schematronCache;
+    }
+
+    public synchronized SchemaCache getSchemaCache() {
+        if (schemaCache == null) {
+            schemaCache = new SchemaCache();
+        }
+        return schemaCache;
+    }
+
+    /**
+     * Returns this runtime's cache of compiled pipelines, or null if the configuration's
+     * pipelineCacheSize is 0. Compiled pipelines belong to the runtime that compiled them,
+     * so the cache isn't shared with other runtimes.
+     */
+    public synchronized PipelineCache getPipelineCache() {
+        if (pipelineCache == null && config.pipelineCacheSize > 0) {
+            pipelineCache = new PipelineCache(config.pipelineCacheSize);
+        }
+        return pipelineCache;
+    }
+
+    // Called by DocumentSequence as documents are written to and released from pipes
+    public void documentRetained(long bytes) {
+        retainedDocuments.incrementAndGet();
+        long total = retainedBytes.addAndGet(bytes);
+        long peak = peakRetainedBytes.get();
+        while (total > peak && !peakRetainedBytes.compareAndSet(peak, total)) {
+            peak = peakRetainedBytes.get();
+        }
+    }
+
+    public void documentReleased(long bytes) {
+        retainedDocuments.decrementAndGet();
+        retainedBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * The number of documents currently held by pipes. A document that has been written
+     * to more than one pipe is counted once for each of them.
+     */
+    public long getRetainedDocuments() {
+        return retainedDocuments.get();
+    }
+
+    /**
+     * An estimate of the memory used by the documents currently held by pipes.
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    public long getPeakRetainedBytes() {
+        return peakRetainedBytes.get();
+    }
+
     public QName getErrorCode() {
-        return errorCode;
+        return getInvocation().getErrorCode();
     }
 
     public String getErrorMessage() {
-        return errorMessage;
+        return getInvocation().getErrorMessage();
     }
 
     // ===========================================================
@@ -952,11 +1369,7 @@ public class XProcRuntime {
     // that errors can be trapped.
 
     public void error(XProcRunnable step, XdmNode node, String message, QName code) {
-        if (errorCode == null) {
-            errorCode = code;
-            errorNode = node;
-            errorMessage = message;
-        }
+        getInvocation().error(node, message, code);
 
         msgListener.error(step, node, message, code);
     }
@@ -979,10 +1392,14 @@ public class XProcRuntime {
 
     // ===========================================================
 
-    private Stack<XStep> runningSteps = new Stack<XStep>();
+    private ThreadLocal<Stack<XStep>> runningSteps = new ThreadLocal<Stack<XStep>>() {
+        protected Stack<XStep> initialValue() {
+            return new Stack<XStep>();
+        }
+    };
 
     public void start(XStep step) {
-        runningSteps.push(step);
+        runningSteps.get().push(step);
 
         if (profile == null) {
             return;
@@ -1026,11 +1443,33 @@ public class XProcRuntime {
     }
 
     public XStep runningStep() {
-        return runningSteps.peek();
+        return runningSteps.get().peek();
+    }
+
+    /**
+     * Returns a copy of the steps running on the current thread, so that a step handed
+     * to another thread can be run in the same context.
+     */
+    public Stack<XStep> getRunningSteps() {
+        Stack<XStep> copy = new Stack<XStep>();
+        copy.addAll(runningSteps.get());
+        return copy;
+    }
+
+    /**
+     * Replaces the steps running on the current thread with a copy of the ones given
+     * and returns the stack that was replaced.
+     */
+    public Stack<XStep> setRunningSteps(Stack<XStep> steps) {
+        Stack<XStep> old = runningSteps.get();
+        Stack<XStep> copy = new Stack<XStep>();
+        copy.addAll(steps);
+        runningSteps.set(copy);
+        return old;
     }
 
     public void finish(XStep step) {
-        runningSteps.pop();
+        runningSteps.get().pop();
 
         if (profile == null) {
             return;
@@ -1103,4 +1542,39 @@ public class XProcRuntime {
             }
         }
     }
+
+    /**
+     * Runs each task on the thread that submits it.
+     */
+    private static class SameThreadExecutor extends AbstractExecutorService {
+        private volatile boolean shutdown = false;
+
+        public void execute(Runnable command) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            command.run();
+        }
+
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return shutdown;
+        }
+    }
 }
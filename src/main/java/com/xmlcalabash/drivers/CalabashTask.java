@@ -30,6 +30,7 @@ import java.util.Map;
 import java.util.Vector;
 import javax.xml.transform.URIResolver;
 
+import com.xmlcalabash.core.XProcConfiguration;
 import com.xmlcalabash.util.Input.Type;
 import com.xmlcalabash.util.UserArgs;
 import org.apache.tools.ant.BuildException;
@@ -205,6 +206,11 @@ public class CalabashTask extends MatchingTask {
      */
     private List<Step> steps = new ArrayList<Step>();
 
+    /**
+     * The configuration used for every pipeline run, so that they share its pipeline cache.
+     */
+    private XProcConfiguration configuration = null;
+
     /* End of fields to reset at end of execute(). */
 
     /**
@@ -1205,6 +1211,7 @@ public class CalabashTask extends MatchingTask {
             // Same instance is reused when Ant runs this task
             // again, so reset everything.
             userArgs = new UserArgs();
+            configuration = null;
             inputResources.clear();
             inputMappers.clear();
             baseDir = null;
@@ -1306,7 +1313,10 @@ public class CalabashTask extends MatchingTask {
                 }
             }
 
-            new Main().run(userArgs, userArgs.createConfiguration());
+            if (configuration == null) {
+                configuration = userArgs.createConfiguration();
+            }
+            new Main().runMethod(userArgs, configuration);
         } catch (Exception e) {
             handleError(e);
         }
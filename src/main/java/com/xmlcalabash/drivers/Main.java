@@ -156,8 +156,12 @@ public class Main {
     // exceptions yourself.
     public void runMethod(String[] args) throws IOException, SaxonApiException, URISyntaxException {
         UserArgs userArgs = new ParseArgs().parse(args);
+        runMethod(userArgs, userArgs.createConfiguration());
+    }
 
-        XProcConfiguration config = userArgs.createConfiguration();
+    // Like runMethod(String[]), but the configuration, and so its pipeline cache, can be shared
+    // by several runs.
+    public void runMethod(UserArgs userArgs, XProcConfiguration config) throws IOException, SaxonApiException, URISyntaxException {
         runtime = new XProcRuntime(config);
         debug = config.debug;
 
@@ -244,7 +244,12 @@ public class Eval extends DefaultStep {
             }
         }
 
-        pipeline.run();
+        try {
+            pipeline.run();
+        } finally {
+            // The inner runtime registered its own extension functions on the shared processor
+            runtime.registerExtensionFunctions();
+        }
 
         portiter = outputports.iterator();
         while (portiter.hasNext()) {
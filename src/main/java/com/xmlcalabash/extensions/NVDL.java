@@ -10,21 +10,25 @@ import com.xmlcalabash.core.XProcRuntime;
 import com.xmlcalabash.core.XProcConstants;
 import com.xmlcalabash.core.XProcException;
 import com.xmlcalabash.runtime.XAtomicStep;
+import com.xmlcalabash.util.JingValidation;
 import com.xmlcalabash.util.S9apiUtils;
+import com.xmlcalabash.util.SchemaCache;
 import com.xmlcalabash.library.DefaultStep;
 import com.thaiopensource.xml.sax.ErrorHandlerImpl;
 import com.thaiopensource.util.PropertyMapBuilder;
 import com.thaiopensource.validate.ValidateProperty;
 import com.thaiopensource.validate.SchemaReader;
-import com.thaiopensource.validate.ValidationDriver;
+import com.thaiopensource.validate.Schema;
 import com.thaiopensource.validate.auto.AutoSchemaReader;
 import com.thaiopensource.validate.rng.CompactSchemaReader;
 import com.thaiopensource.validate.prop.rng.RngProperty;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import javax.xml.transform.sax.SAXSource;
 import java.io.StringReader;
 import java.io.IOException;
+import java.util.Vector;
 
 /**
  * Created by IntelliJ IDEA.
@@ -86,20 +90,33 @@ public class NVDL extends DefaultStep {
         XdmNode srcdoc = source.read();
         XdmNode nvdldoc = nvdlSource.read();
 
+        Vector<XdmNode> schemas = new Vector<XdmNode> ();
+        schemas.add(nvdldoc);
         while (schemaSource.moreDocuments()) {
             XdmNode schema = schemaSource.read();
+            schemas.add(schema);
             runtime.getResolver().cache(schema, schema.getBaseURI());
         }
 
-        ValidationDriver driver = new ValidationDriver(properties.toPropertyMap());
+        // The NVDL script and the schemas it refers to are compiled together, so all of
+        // them are part of the key
+        String key = SchemaCache.key(schemas, "nvdl");
+        Schema nvdl = (Schema) runtime.getSchemaCache().get(key);
 
-        InputSource nvdl = S9apiUtils.xdmToInputSource(runtime, nvdldoc);
-        InputSource doc = S9apiUtils.xdmToInputSource(runtime, srcdoc);
+        SAXSource doc = S9apiUtils.xdmToSAXSource(runtime, srcdoc);
 
         try {
-            driver.loadSchema(nvdl);
+            if (nvdl == null) {
+                // Jing parses schemas itself, so this one has to be serialized
+                InputSource nvdlSource = S9apiUtils.xdmToInputSource(runtime, nvdldoc);
+                nvdl = JingValidation.createSchema(new AutoSchemaReader(), nvdlSource, properties.toPropertyMap());
+                if (nvdl == null) {
+                    throw new XProcException(step.getNode(), "Error loading schema");
+                }
+                runtime.getSchemaCache().put(key, nvdl);
+            }
 
-            if (!driver.validate(doc)) {
+            if (!JingValidation.validate(nvdl, doc, properties.toPropertyMap())) {
                 if (assertValid) {
                     throw XProcException.stepError(53);
                 }
@@ -26,15 +26,13 @@ import com.xmlcalabash.io.ReadablePipe;
 import com.xmlcalabash.io.WritablePipe;
 import com.xmlcalabash.library.DefaultStep;
 import com.xmlcalabash.runtime.XAtomicStep;
-import com.xmlcalabash.util.Base64;
+import com.xmlcalabash.util.BinaryData;
 import com.xmlcalabash.util.S9apiUtils;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
 import org.xml.sax.InputSource;
 
-import java.io.ByteArrayInputStream;
-
 /**
  *
  * @author ndw
@@ -83,18 +81,14 @@ public class Uncompress extends DefaultStep {
         }
 
         XdmNode root = S9apiUtils.getDocumentElement(source.read());
-        byte[] decoded = null;
 
-        // N.B. The Base64.decode() method *automatically* expands gzipped data!
-        if ("base64".equals(root.getAttributeValue(_encoding))) {
-            decoded = Base64.decode(root.getStringValue());
-        } else {
+        if (!"base64".equals(root.getAttributeValue(_encoding))) {
             throw XProcException.stepError(999, "Input to cx:gunzip must be binary encoded data.");
         }
 
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(decoded);
-            InputSource is = new InputSource(bais);
+            // N.B. BinaryData.openStream() *automatically* expands gzipped data!
+            InputSource is = new InputSource(BinaryData.openStream(root));
             XdmNode doc = runtime.parse(is);
             result.write(doc);
         } catch (Exception e) {
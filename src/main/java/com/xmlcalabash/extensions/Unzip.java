@@ -1,7 +1,6 @@
 package com.xmlcalabash.extensions;
 
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -16,6 +15,7 @@ import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 
 import com.xmlcalabash.core.XMLCalabash;
+import net.sf.saxon.om.TreeModel;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
@@ -30,7 +30,7 @@ import com.xmlcalabash.io.DataStore.DataReader;
 import com.xmlcalabash.io.WritablePipe;
 import com.xmlcalabash.library.DefaultStep;
 import com.xmlcalabash.runtime.XAtomicStep;
-import com.xmlcalabash.util.Base64;
+import com.xmlcalabash.util.BinaryData;
 import com.xmlcalabash.util.TreeWriter;
 
 /**
@@ -182,6 +182,10 @@ public class Unzip extends DefaultStep {
                     // This formulation is parallel to the jar scheme.
                     URI zipURI = URI.create("zip:" + zipFn + "!" + entry.getName());
 
+                    if (!storeText) {
+                        // The bytes are kept out of the tree; see BinaryData
+                        tree.setTreeModel(TreeModel.LINKED_TREE);
+                    }
                     tree.startDocument(zipURI);
                     tree.addStartElement(XProcConstants.c_data);
                     tree.addAttribute(_name,name);
@@ -208,21 +212,7 @@ public class Unzip extends DefaultStep {
                             reader.close();
                         }
                     } else {
-                        BufferedInputStream bufstream = new BufferedInputStream(zipFile);
-                        try {
-                            int maxlen = 4096 * 3;
-                            byte[] bytes = new byte[maxlen];
-                            int read = bufstream.read(bytes, 0, maxlen);
-                            while (read >= 0) {
-                                if (read > 0) {
-                                    String base64 = Base64.encodeBytes(bytes, 0, read);
-                                    tree.addText(base64 + "\n");
-                                }
-                                read = bufstream.read(bytes, 0, maxlen);
-                            }
-                        } finally {
-                            bufstream.close();
-                        }
+                        tree.addBinary(BinaryData.read(zipFile));
                     }
 
                     tree.addEndElement();
@@ -1,7 +1,6 @@
 package com.xmlcalabash.extensions;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -17,11 +16,9 @@ import java.util.Hashtable;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
@@ -155,21 +152,24 @@ public class Zip extends DefaultStep {
             final DataStore store = runtime.getDataStore();
             store.writeEntry(zipFn, base, "application/zip", new DataStore.DataWriter() {
                 public void store(OutputStream content) throws IOException {
-                    final ZipOutputStream outZip = new ZipOutputStream(content);
+                    final ParallelZipWriter outZip = new ParallelZipWriter(content, runtime.getExecutor());
                     try {
-                        store.readEntry(zipFn, base, "application/zip", null, new DataStore.DataReader() {
-                            public void load(URI id, String media, InputStream content, long len)
-                                    throws IOException {
-                                ZipInputStream inZip = new ZipInputStream(content);
-                                try {
-                                    update(inZip, outZip);
-                                } finally {
-                                    inZip.close();
+                        try {
+                            store.readEntry(zipFn, base, "application/zip", null, new DataStore.DataReader() {
+                                public void load(URI id, String media, InputStream content, long len)
+                                        throws IOException {
+                                    ZipInputStream inZip = new ZipInputStream(content);
+                                    try {
+                                        update(inZip, outZip);
+                                    } finally {
+                                        inZip.close();
+                                    }
                                 }
-                            }
-                        });
-                    } catch (FileNotFoundException e) {
-                        update(null, outZip);
+                            });
+                        } catch (FileNotFoundException e) {
+                            update(null, outZip);
+                        }
+                        outZip.finish();
                     } finally {
                         outZip.close();
                     }
@@ -197,7 +197,7 @@ public class Zip extends DefaultStep {
         }
     }
 
-    void update(ZipInputStream inZip, final ZipOutputStream outZip) {
+    void update(ZipInputStream inZip, final ParallelZipWriter outZip) {
         String command = getOption(_command).getString();
     
         if ("create".equals(command)) {
@@ -315,9 +315,7 @@ public class Zip extends DefaultStep {
         }
     }
 
-    public void update(ZipInputStream inZip, final ZipOutputStream outZip, boolean freshen) {
-        final byte[] buffer = new byte[bufsize];
-
+    public void update(ZipInputStream inZip, final ParallelZipWriter outZip, boolean freshen) {
         try {
             if (inZip != null) {
                 ZipEntry entry;
@@ -342,88 +340,48 @@ public class Zip extends DefaultStep {
                     }
 
                     if (!skip) {
-                        outZip.putNextEntry(entry);
-                        int read = inZip.read(buffer, 0, bufsize);
-                        while (read >= 0) {
-                            outZip.write(buffer,0, read);
-                            read = inZip.read(buffer, 0, bufsize);
-                        }
-                        outZip.closeEntry();
+                        outZip.copyEntry(entry, inZip);
                     }
                 }
             }
 
-            CRC32 crc = new CRC32();
-            
+            // The entries are read, serialized, and compressed in parallel
             for (String name : zipManifest.keySet()) {
-                FileToZip file = zipManifest.get(name);
-                ZipEntry ze = new ZipEntry(name);
-                if (file.getComment() != null) {
-                    ze.setComment(file.getComment());
-                }
-                ze.setMethod(file.getMethod());
-                outZip.setLevel(file.getLevel());
-                
-                URI uri = zipManifest.get(name).getHref();
-                String href = uri.toASCIIString();
-                
-                if(ze.getMethod() == ZipEntry.STORED) {
-                    // FIXME: Using a boas is risky here, it will fail for huge files; but who STOREs a huge file?
-                    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    if (srcManifest.containsKey(uri.toString())) {
-                        XdmNode doc = srcManifest.get(href);
-                        store(file, doc, baos);
-                    } else {
-                        DataStore store = runtime.getDataStore();
-                        store.readEntry(href, href, "*/*", null, new DataReader() {
-                            public void load(URI id, String media,
-                                    InputStream stream, long len)
-                                    throws IOException {
-                                int read = stream.read(buffer, 0, bufsize);
-                                while (read>0){
-                                    baos.write(buffer,0,read);
-                                    read = stream.read(buffer, 0, bufsize);
-                                }
-                            }
-                        });
-                    }
-                    byte[] bytes =  baos.toByteArray();
-                    ze.setSize(bytes.length);
-                    crc.reset();
-                    crc.update(bytes);
-                    ze.setCrc(crc.getValue());
-                }
-
-                outZip.putNextEntry(ze);
-
-                if (srcManifest.containsKey(href)) {
-                    XdmNode doc = srcManifest.get(href);
-                    store(file, doc, outZip);
-                } else {
-                    DataStore store = runtime.getDataStore();
-                    store.readEntry(href, href, "*/*", null, new DataReader() {
-                        public void load(URI id, String media,
-                                InputStream stream, long len)
-                                throws IOException {
-                            int read = stream.read(buffer, 0, bufsize);
-                            while (read >= 0) {
-                                outZip.write(buffer,0, read);
-                                read = stream.read(buffer, 0, bufsize);
+                final FileToZip file = zipManifest.get(name);
+                final String href = file.getHref().toASCIIString();
+
+                outZip.addEntry(name, file.getMethod(), file.getLevel(), -1, file.getComment(), new ParallelZipWriter.EntryContent() {
+                    public void write(final OutputStream out) throws IOException {
+                        if (srcManifest.containsKey(href)) {
+                            try {
+                                store(file, srcManifest.get(href), out);
+                            } catch (SaxonApiException sae) {
+                                throw new XProcException(sae);
                             }
+                        } else {
+                            DataStore store = runtime.getDataStore();
+                            store.readEntry(href, href, "*/*", null, new DataReader() {
+                                public void load(URI id, String media,
+                                        InputStream stream, long len)
+                                        throws IOException {
+                                    byte[] buffer = new byte[bufsize];
+                                    int read = stream.read(buffer, 0, bufsize);
+                                    while (read >= 0) {
+                                        out.write(buffer,0, read);
+                                        read = stream.read(buffer, 0, bufsize);
+                                    }
+                                }
+                            });
                         }
-                    });
-                }
-
-                outZip.closeEntry();
+                    }
+                });
             }
         } catch (IOException ioe) {
             throw new XProcException(ioe);
-        } catch (SaxonApiException sae) {
-            throw new XProcException(sae);
         }
     }
 
-    public void delete(ZipInputStream inZip, ZipOutputStream outZip) {
+    public void delete(ZipInputStream inZip, ParallelZipWriter outZip) {
         try {
             if (inZip != null) {
                 ZipEntry entry;
@@ -436,14 +394,7 @@ public class Zip extends DefaultStep {
                     }
 
                     if (!delete) {
-                        outZip.putNextEntry(entry);
-                        byte[] buffer = new byte[bufsize];
-                        int read = inZip.read(buffer, 0, bufsize);
-                        while (read >= 0) {
-                            outZip.write(buffer,0, read);
-                            read = inZip.read(buffer, 0, bufsize);
-                        }
-                        outZip.closeEntry();
+                        outZip.copyEntry(entry, inZip);
                     }
                 }
             }
@@ -572,8 +523,7 @@ public class Zip extends DefaultStep {
     }
 
     public void storeBinary(FileToZip file, XdmNode doc, OutputStream out) throws IOException {
-        byte[] decoded = Base64.decode(doc.getStringValue());
-        out.write(decoded);
+        BinaryData.write(doc, out);
     }
 
     public void storeText(FileToZip file, XdmNode doc, OutputStream out) throws IOException {
@@ -14,6 +14,7 @@ import com.xmlcalabash.core.XProcConstants;
 import com.xmlcalabash.core.XProcException;
 import com.xmlcalabash.core.XProcRuntime;
 import com.xmlcalabash.io.DataStore;
+import com.xmlcalabash.io.FileChannelInputStream;
 import com.xmlcalabash.io.DataStore.DataReader;
 import com.xmlcalabash.io.DataStore.DataWriter;
 import com.xmlcalabash.io.WritablePipe;
@@ -75,6 +76,11 @@ public class Move extends DefaultStep {
                     RuntimeValue target = getOption(_target);
                     URI uri = store.writeEntry(target.getString(), target.getBaseURI().toASCIIString(), media, new DataWriter() {
                         public void store(OutputStream dst) throws IOException {
+                            if (src instanceof FileChannelInputStream) {
+                                // Let the operating system copy it
+                                ((FileChannelInputStream) src).transferTo(dst);
+                                return;
+                            }
                             byte[] buffer = new byte[bufsize];
                             int read = src.read(buffer, 0, bufsize);
                             while (read >= 0) {
@@ -7,6 +7,10 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Vector;
 
 import com.xmlcalabash.core.XMLCalabash;
@@ -18,6 +22,7 @@ import com.xmlcalabash.core.XProcException;
 import com.xmlcalabash.core.XProcRuntime;
 import com.xmlcalabash.io.DataStore;
 import com.xmlcalabash.io.DataStore.DataReader;
+import com.xmlcalabash.io.FileChannelInputStream;
 import com.xmlcalabash.io.WritablePipe;
 import com.xmlcalabash.library.DefaultStep;
 import com.xmlcalabash.model.RuntimeValue;
@@ -42,6 +47,7 @@ public class Tail extends DefaultStep {
     private static final QName _count = new QName("count");
     private static final QName _fail_on_error = new QName("fail-on-error");
     private static final QName c_line = new QName("c", XProcConstants.NS_XPROC_STEP, "line");
+    private static final int BLOCK_SIZE = 8192;
 
     private WritablePipe result = null;
 
@@ -84,6 +90,13 @@ public class Tail extends DefaultStep {
                     tree.addStartElement(XProcConstants.c_result);
                     tree.startContent();
 
+                    if (tail && content instanceof FileChannelInputStream && asciiLineEnds()) {
+                        // Only the end of the file is needed; one more line than we want
+                        // is enough to be sure where the first of them starts
+                        FileChannelInputStream fcis = (FileChannelInputStream) content;
+                        fcis.position(startOfLastLines(fcis.getChannel(), maxCount + 1));
+                    }
+
                     Reader rdr = new InputStreamReader(content);
                     BufferedReader brdr = new BufferedReader(rdr);
                     Vector<String> lines = new Vector<String> ();
@@ -134,4 +147,40 @@ public class Tail extends DefaultStep {
             throw new XProcException(ioe);
         }
     }
+
+    // Can line ends be found by looking for CR and LF bytes in the default encoding?
+    private static boolean asciiLineEnds() {
+        return Arrays.equals("\r\n".getBytes(Charset.defaultCharset()), new byte[] { '\r', '\n' });
+    }
+
+    /*
+     * Returns the offset of the first byte after the count'th line end from the end of the file,
+     * or 0 if there aren't that many. CR, LF, and CR LF are line ends, as for readLine().
+     */
+    private static long startOfLastLines(FileChannel channel, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        long end = channel.size();
+        int seen = 0;
+        byte next = 0;
+        while (end > 0) {
+            long start = Math.max(0, end - BLOCK_SIZE);
+            buffer.clear();
+            buffer.limit((int) (end - start));
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0) {
+                // keep reading
+            }
+            for (int pos = (int) (end - start) - 1; pos >= 0; pos--) {
+                byte b = buffer.get(pos);
+                if (b == '\n' || (b == '\r' && next != '\n')) {
+                    seen++;
+                    if (seen == count) {
+                        return start + pos + 1;
+                    }
+                }
+                next = b;
+            }
+            end = start;
+        }
+        return 0;
+    }
 }
@@ -19,12 +19,27 @@ import com.xmlcalabash.util.S9apiUtils;
 public class DocumentSequence {
     protected static final String logger = "com.xmlcalabash.io.documentsequence";
     private XProcRuntime runtime = null;
+    // The documents that haven't been released; the first one is at position base
     private Vector<XdmNode> documents = new Vector<XdmNode>();
+    private Vector<Long> sizes = new Vector<Long> ();
+    private int base = 0;
     private boolean closed = false;
     private static int idCounter = 0;
     private int id = 0;
     private PipeLogger outputlog = null;
     private int readerCount = 0;
+    // While a sequence is streaming, its writer is running concurrently with its readers
+    private boolean streaming = false;
+    // If a streaming sequence is bounded, the writer waits for this reader when it gets capacity documents ahead
+    private int capacity = 0;
+    private Pipe boundedReader = null;
+    // Once all of the readers have finished, the documents are released, unless the sequence is pinned
+    private Vector<Pipe> readers = new Vector<Pipe> ();
+    private Vector<Pipe> finishedReaders = new Vector<Pipe> ();
+    private boolean written = false;
+    private boolean pinned = false;
+    // Pinned by something that happened while the sequence was being read; reset() unpins it
+    private boolean pinnedUntilReset = false;
 
     public DocumentSequence(XProcRuntime xproc) {
         runtime = xproc;
@@ -32,38 +47,181 @@ public class DocumentSequence {
         //runtime.finest(logger, null, "Created document-sequence #" + id);
     }
 
-    public void addReader() {
+    public synchronized void addReader() {
         readerCount++;
         //System.err.println(this + ": " + readerCount);
     }
 
-    public int getReaderCount() {
+    /*
+     * Only the readers that exist before anything is written can release documents;
+     * a reader that turns up later might want documents that have already been read,
+     * and it isn't counted when the other readers finish, in this run or any later one,
+     * so it pins the sequence for good.
+     */
+    protected synchronized void addReader(Pipe reader) {
+        addReader();
+        if (written) {
+            pin();
+        } else {
+            readers.add(reader);
+        }
+    }
+
+    // Called by a pipe that writes to the sequence; it isn't one of the readers
+    protected synchronized void addWriter(Pipe writer) {
+        readers.remove(writer);
+        finishedReaders.remove(writer);
+    }
+
+    // Called by a pipe when its reader won't read it again until the sequence is reset
+    protected synchronized void finished(Pipe reader) {
+        if (reader == boundedReader) {
+            // No one is left to wait for
+            boundedReader = null;
+            notifyAll();
+        }
+
+        if (isPinned() || !readers.contains(reader)) {
+            return;
+        }
+
+        if (!finishedReaders.contains(reader)) {
+            finishedReaders.add(reader);
+        }
+
+        if (finishedReaders.size() == readers.size()) {
+            release(size());
+        }
+    }
+
+    // Drops the documents before position pos
+    private void release(int pos) {
+        while (base < pos) {
+            documents.remove(0);
+            runtime.documentReleased(sizes.remove(0));
+            base++;
+        }
+    }
+
+    public synchronized int getReaderCount() {
         return readerCount;
     }
 
+    /**
+     * Is reader the only pipe, apart from the writer's, that reads the sequence? Only a
+     * sequence with a single reader can be bounded.
+     */
+    public synchronized boolean onlyReader(Pipe writer, Pipe reader) {
+        if (isPinned() || written || !readers.contains(reader)) {
+            return false;
+        }
+        for (Pipe other : readers) {
+            if (other != reader && other != writer) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keeps every document in the sequence until it's reset. Readers that need to
+     * read the sequence more than once, in a loop for example, must pin it.
+     */
+    public synchronized void pin() {
+        pinned = true;
+    }
+
+    /**
+     * Keeps every document in the sequence until the next time it's reset, for a reader that
+     * needs to read this run's documents more than once.
+     */
+    public synchronized void pinUntilReset() {
+        pinnedUntilReset = true;
+    }
+
+    private boolean isPinned() {
+        return pinned || pinnedUntilReset;
+    }
+
     public void setLogger(Log log) {
         if (log != null) {
             outputlog = new PipeLogger(runtime, log);
         }
     }
 
+    /**
+     * Announces that the writer is about to run concurrently with the readers. Until the
+     * sequence is closed, readers wait for documents that haven't been written yet instead
+     * of assuming that there aren't any.
+     */
+    public synchronized void startStreaming() {
+        streaming = true;
+        capacity = 0;
+        boundedReader = null;
+    }
+
+    /**
+     * Streams the sequence to its only reader through a queue of the given capacity: the
+     * writer waits whenever it's that many documents ahead of the reader, and documents
+     * are released as soon as the reader has read them. The caller must make sure that the
+     * reader doesn't wait for the writer in some other way, or they'll deadlock.
+     */
+    public synchronized void startStreaming(int capacity, Pipe reader) {
+        streaming = true;
+        this.capacity = capacity;
+        boundedReader = reader;
+    }
+
     public void add(XdmNode document) {
-        if (closed) {
-            throw new XProcException("You can't add a document to a closed DocumentSequence.");
-        } else {
-            S9apiUtils.assertDocument(document);
+        S9apiUtils.assertDocument(document);
 
-            //runtime.finest(logger, null, "Wrote " + (document == null ? "null" : document.getBaseURI()) + " to " + toString());
+        //runtime.finest(logger, null, "Wrote " + (document == null ? "null" : document.getBaseURI()) + " to " + toString());
+        synchronized (this) {
+            // The sequence may be closed while the writer waits for the reader, so check after waiting
+            waitForReader();
+            if (closed) {
+                throw new XProcException("You can't add a document to a closed DocumentSequence.");
+            }
+            long size = S9apiUtils.estimateSize(document);
             documents.add(document);
-            if (outputlog != null) {
-                outputlog.log(document);
+            sizes.add(size);
+            written = true;
+            runtime.documentRetained(size);
+            notifyAll();
+        }
+        if (outputlog != null) {
+            outputlog.log(document);
+        }
+    }
+
+    // Waits until the bounded reader has read enough, or finished reading, or the sequence is closed
+    private void waitForReader() {
+        while (boundedReader != null && !closed && size() - boundedReader.position() >= capacity) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                throw new XProcException(ie);
             }
         }
     }
 
-    public XdmNode get(int count) {
-        if (count < documents.size()) {
-            XdmNode doc = documents.get(count);
+    // Called by a pipe after it has read a document
+    protected synchronized void advance(Pipe reader) {
+        if (reader == boundedReader) {
+            if (!isPinned()) {
+                release(Math.min(reader.position(), size()));
+            }
+            notifyAll();
+        }
+    }
+
+    public synchronized XdmNode get(int count) {
+        if (count < base) {
+            throw new XProcException("Document " + (count + 1) + " of " + this + " has already been released; "
+                    + "a reader that reads a sequence more than once must pin it.");
+        }
+        if (count < size()) {
+            XdmNode doc = documents.get(count - base);
             //runtime.finest(logger, null, "Read " + (doc == null ? "null" : doc.getBaseURI()) + " from " + toString());
             return doc;
         } else {
@@ -71,24 +229,66 @@ public class DocumentSequence {
         }
     }
 
-    public void close() {
+    /**
+     * Is there a document at position pos? If the sequence is streaming, this waits until
+     * the document has been written or the sequence has been closed.
+     */
+    public synchronized boolean moreDocuments(int pos) {
+        while (streaming && !closed && pos >= size()) {
+            waitForWriter();
+        }
+        return pos < size();
+    }
+
+    /**
+     * Returns the number of documents in the sequence. If the sequence is streaming,
+     * this waits until it has been closed. A reader that needs the count before it has
+     * read the documents needs all of them at once, so if the sequence is bounded, it
+     * stops being bounded.
+     */
+    public synchronized int documentCount() {
+        if (boundedReader != null) {
+            boundedReader = null;
+            pinUntilReset();
+            notifyAll();
+        }
+        while (streaming && !closed) {
+            waitForWriter();
+        }
+        return size();
+    }
+
+    private void waitForWriter() {
+        try {
+            wait();
+        } catch (InterruptedException ie) {
+            throw new XProcException(ie);
+        }
+    }
+
+    public synchronized void close() {
         readerCount--;
         closed = true;
         if (outputlog != null) {
             outputlog.stopLogging();
         }
+        notifyAll();
     }
 
-    public boolean closed() {
+    public synchronized boolean closed() {
         return closed;
     }
 
-    public int size() {
-        return documents.size();
+    public synchronized int size() {
+        return base + documents.size();
     }
 
-    public void reset() {
-        documents.clear();
+    public synchronized void reset() {
+        release(size());
+        base = 0;
+        finishedReaders.clear();
+        written = false;
+        pinnedUntilReset = false;
         closed = false;
         if (outputlog != null) {
             outputlog.stopLogging();
@@ -96,6 +296,6 @@ public class DocumentSequence {
     }
 
     public String toString() {
-        return "[document-sequence #" + id + " (" + documents.size() + " docs)]";
+        return "[document-sequence #" + id + " (" + size() + " docs)]";
     }
 }
@@ -0,0 +1,179 @@
+package com.xmlcalabash.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The stream FileDataStore gives readers of a file.
+ *
+ * <p>Large files are read through memory-mapped windows, so the bytes go from the page cache
+ * to whoever is reading them (usually a parser) without being copied into buffers on the heap
+ * first. Steps that only move the bytes somewhere else, like pxf:copy, can use transferTo(),
+ * which lets the operating system copy a file to another file directly, and steps that only
+ * need the end of a file, like pxf:tail, can get the channel and position the stream.</p>
+ *
+ * <p>Windows are unmapped as soon as the stream moves past them or is closed, rather than
+ * whenever the garbage collector gets around to it. Files smaller than a megabyte aren't
+ * mapped at all; they're read straight onto the heap.</p>
+ */
+public class FileChannelInputStream extends InputStream {
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+    private static final long MAP_SIZE = 64L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 8192;
+
+    private FileInputStream stream = null;
+    private FileChannel channel = null;
+    private long position = 0;
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private long mark = 0;
+    private byte[] single = new byte[1];
+
+    public FileChannelInputStream(File file) throws IOException {
+        stream = new FileInputStream(file);
+        channel = stream.getChannel();
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    public void position(long position) {
+        this.position = position;
+    }
+
+    public int read() throws IOException {
+        int len = read(single, 0, 1);
+        return len < 0 ? -1 : single[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        long size = channel.size();
+        if (position >= size) {
+            return -1;
+        }
+
+        int read = 0;
+        if (size < MAP_THRESHOLD) {
+            read = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (read < 0) {
+                return -1;
+            }
+        } else {
+            if (window == null || position < windowStart || position >= windowStart + window.capacity()) {
+                unmap();
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(MAP_SIZE, size - windowStart));
+            }
+            window.position((int) (position - windowStart));
+            read = Math.min(len, window.remaining());
+            window.get(b, off, read);
+        }
+        position += read;
+        return read;
+    }
+
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, channel.size() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, channel.size() - position));
+    }
+
+    public boolean markSupported() {
+        return true;
+    }
+
+    public synchronized void mark(int readlimit) {
+        mark = position;
+    }
+
+    public synchronized void reset() {
+        position = mark;
+    }
+
+    /**
+     * Writes the rest of the file to a stream. If the stream is a file, the operating system
+     * does the copying.
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        long start = position;
+        if (out instanceof FileOutputStream) {
+            FileChannel target = ((FileOutputStream) out).getChannel();
+            // The file may change size under us; it's finished when nothing more is transferred
+            long count = channel.transferTo(position, Math.max(0, channel.size() - position), target);
+            while (count > 0) {
+                position += count;
+                count = channel.transferTo(position, Math.max(0, channel.size() - position), target);
+            }
+        } else {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read = read(buffer, 0, BUFFER_SIZE);
+            while (read >= 0) {
+                out.write(buffer, 0, read);
+                read = read(buffer, 0, BUFFER_SIZE);
+            }
+        }
+        return position - start;
+    }
+
+    public void close() throws IOException {
+        unmap();
+        stream.close();
+    }
+
+    private void unmap() {
+        if (window != null) {
+            unmap(window);
+            window = null;
+        }
+    }
+
+    /*
+     * There's no public API for releasing a mapping. Java 9 and later have Unsafe.invokeCleaner(),
+     * earlier releases have a cleaner on the buffer itself. If neither can be reached, the mapping
+     * is released when the buffer is collected.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException nsme) {
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception e) {
+                // Leave it to the garbage collector
+            }
+        } catch (Exception e) {
+            // Leave it to the garbage collector
+        }
+    }
+}
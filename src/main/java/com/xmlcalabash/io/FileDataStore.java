@@ -26,7 +26,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -35,12 +34,17 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Properties;
+import java.util.Vector;
 
 /**
- * Uses {@link FileInputStream} and {@link FileOutputStream} to implement the
+ * Uses {@link FileChannelInputStream} and {@link FileOutputStream} to implement the
  * interface. The media type is stored as a File extension. The file extension
  * mapping is read from the file in the system property
  * "content.types.user.table" if present.
@@ -119,7 +123,7 @@ public class FileDataStore implements DataStore {
             if (overrideContentType != null) {
                 type = overrideContentType;
             }
-			InputStream in = new FileInputStream(file);
+			InputStream in = new FileChannelInputStream(file);
 			try {
 				handler.load(file.toURI(), type, in, file.length());
 			} finally {
@@ -221,32 +225,53 @@ public class FileDataStore implements DataStore {
 		}
 	}
 
+	/**
+	 * Lists the entries of a directory that match the accept header, sorted
+	 * by name so that the order doesn't depend on the file system. Only the
+	 * names are read; the directory is streamed rather than loaded into an
+	 * array of Files first.
+	 */
 	protected File[] listAcceptableFiles(File dir, final String accept) {
-		if (accept.contains("*/*")) {
-			File[] list = dir.listFiles();
-			if (list == null) {
-				return new File[0];
-			} else {
-				return list;
-			}
-		} else {
-			File[] list = dir.listFiles(new FileFilter() {
-				public boolean accept(File file) {
-					if (!file.isFile()) {
-						return false;
+		boolean all = accept.contains("*/*");
+		Vector<String> names = new Vector<String>();
+		try {
+			DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toPath());
+			try {
+				for (Path entry : entries) {
+					String name = entry.getFileName().toString();
+					if (all || acceptable(name, accept)) {
+						names.add(name);
 					}
-					String type = getContentTypeFromName(file.getName());
-					String primary = type.substring(0, type.indexOf('/'));
-					return accept.contains(type)
-							|| accept.contains(primary + "/*");
 				}
-			});
-			if (list == null) {
-				return new File[0];
-			} else {
-				return list;
+			} finally {
+				entries.close();
 			}
+		} catch (IOException e) {
+			return new File[0];
+		}
+
+		Collections.sort(names);
+		File[] list = new File[names.size()];
+		for (int i = 0; i < list.length; i++) {
+			list[i] = new File(dir, names.get(i));
+		}
+		if (!all) {
+			// Directories and other oddities never match a media type
+			Vector<File> files = new Vector<File>();
+			for (File file : list) {
+				if (file.isFile()) {
+					files.add(file);
+				}
+			}
+			list = files.toArray(new File[files.size()]);
 		}
+		return list;
+	}
+
+	private boolean acceptable(String name, String accept) {
+		String type = getContentTypeFromName(name);
+		String primary = type.substring(0, type.indexOf('/'));
+		return accept.contains(type) || accept.contains(primary + "/*");
 	}
 
 	protected String getContentTypeFromName(String name) {
@@ -0,0 +1,368 @@
+package com.xmlcalabash.io;
+
+import com.xmlcalabash.core.PipelineCache;
+import net.sf.saxon.s9api.XdmNode;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A disk cache of HTTP GET responses.
+ *
+ * <p>Each cached response is a body file and a properties file of what's needed to reuse it:
+ * the content type, the validators (ETag and Last-Modified), and when it stops being fresh
+ * (from Cache-Control: max-age or Expires). A fresh response is used without asking the server;
+ * a stale one is revalidated with a conditional request, and if the server answers 304 Not
+ * Modified, the body on disk is used again. Responses that can't be revalidated and don't say
+ * how long they're fresh for aren't worth keeping, nor are those marked no-store or that vary
+ * on anything but the Accept header (which is part of the key).</p>
+ *
+ * <p>An entry can also hold the document parsed from its body, so that XML resources that
+ * haven't changed aren't parsed again either. The document is only softly referenced and it
+ * goes away with the entry when a new body is fetched.</p>
+ *
+ * <p>The cache is shared by the runtimes that use the same configuration; the files survive
+ * from one run to the next.</p>
+ */
+public class HttpCache {
+    private static Logger logger = LoggerFactory.getLogger(HttpCache.class);
+    private File directory = null;
+    private HashMap<String,Entry> entries = new HashMap<String,Entry> ();
+    private AtomicLong hits = new AtomicLong(0);
+    private AtomicLong revalidations = new AtomicLong(0);
+    private AtomicLong misses = new AtomicLong(0);
+
+    public HttpCache(File directory) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.warn("Cannot create HTTP cache directory: " + directory);
+        }
+    }
+
+    /**
+     * Returns the cached response to a GET of this URI with this Accept header, or null.
+     */
+    public Entry get(URI uri, String accept) {
+        String key = key(uri, accept);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = load(key);
+                if (entry != null) {
+                    entries.put(key, entry);
+                }
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Stores a 200 response to a GET of this URI with this Accept header, consuming its body.
+     * Returns the new entry, or null (leaving the body alone) if the response isn't cacheable.
+     */
+    public Entry put(URI uri, String accept, URI contentId, HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null || !cacheable(response)) {
+            return null;
+        }
+
+        String key = key(uri, accept);
+        Entry entry = new Entry(key);
+        entry.props.setProperty("uri", uri.toASCIIString());
+        entry.props.setProperty("content-id", contentId.toASCIIString());
+        if (entity.getContentType() != null) {
+            entry.props.setProperty("content-type", entity.getContentType().getValue());
+        }
+        entry.update(response);
+
+        File body = File.createTempFile("body", ".tmp", directory);
+        try {
+            InputStream content = entity.getContent();
+            OutputStream out = new FileOutputStream(body);
+            try {
+                byte[] buf = new byte[8192];
+                int len = content.read(buf);
+                while (len >= 0) {
+                    out.write(buf, 0, len);
+                    len = content.read(buf);
+                }
+            } finally {
+                out.close();
+                content.close();
+            }
+
+            // Each body gets a new name so that readers of the old one aren't disturbed
+            File target = new File(directory, key + "-" + System.currentTimeMillis() + ".body");
+            if (!body.renameTo(target)) {
+                throw new IOException("Cannot rename " + body + " to " + target);
+            }
+            body = target;
+        } catch (IOException ioe) {
+            body.delete();
+            throw ioe;
+        }
+        entry.props.setProperty("body", body.getName());
+
+        Entry old = null;
+        synchronized (entries) {
+            old = entries.put(key, entry);
+            entry.save();
+        }
+        if (old != null && !old.getBody().equals(body)) {
+            old.getBody().delete();
+        }
+
+        misses.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Records that the server says this entry hasn't changed (with a 304 Not Modified).
+     */
+    public void revalidated(Entry entry, HttpResponse response) throws IOException {
+        synchronized (entries) {
+            entry.update(response);
+            entry.save();
+        }
+        revalidations.incrementAndGet();
+    }
+
+    /**
+     * Records that a fresh entry was used without asking the server.
+     */
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    /**
+     * Returns the entry whose body this stream reads, if it came from Entry.open().
+     */
+    public static Entry getEntry(InputStream stream) {
+        if (stream instanceof EntryInputStream) {
+            return ((EntryInputStream) stream).entry;
+        }
+        return null;
+    }
+
+    // Responses used without asking the server
+    public long getHits() {
+        return hits.get();
+    }
+
+    // Responses that were used after the server said they hadn't changed
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    // Responses that had to be fetched
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private boolean cacheable(HttpResponse response) {
+        if (response.getStatusLine().getStatusCode() != 200) {
+            return false;
+        }
+        for (Header header : response.getHeaders("Cache-Control")) {
+            for (HeaderElement elem : header.getElements()) {
+                if ("no-store".equalsIgnoreCase(elem.getName())) {
+                    return false;
+                }
+            }
+        }
+        for (Header header : response.getHeaders("Vary")) {
+            for (HeaderElement elem : header.getElements()) {
+                if (!"accept".equalsIgnoreCase(elem.getName())) {
+                    return false;
+                }
+            }
+        }
+        return response.getFirstHeader("ETag") != null
+                || response.getFirstHeader("Last-Modified") != null
+                || expires(response) > System.currentTimeMillis();
+    }
+
+    private Entry load(String key) {
+        File file = new File(directory, key + ".properties");
+        if (!file.exists()) {
+            return null;
+        }
+
+        Entry entry = new Entry(key);
+        try {
+            InputStream stream = new FileInputStream(file);
+            try {
+                entry.props.load(stream);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException ioe) {
+            logger.debug("Ignoring unreadable HTTP cache entry: " + file);
+            return null;
+        }
+
+        if (entry.props.getProperty("body") == null || !entry.getBody().exists()) {
+            return null;
+        }
+        return entry;
+    }
+
+    private static String key(URI uri, String accept) {
+        try {
+            String id = uri.toASCIIString() + "\n" + (accept == null ? "" : accept);
+            return PipelineCache.digest(new ByteArrayInputStream(id.getBytes("UTF-8")));
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe); // can't happen
+        }
+    }
+
+    // When a response stops being fresh; 0 if it must always be revalidated
+    private static long expires(HttpResponse response) {
+        long now = System.currentTimeMillis();
+        for (Header header : response.getHeaders("Cache-Control")) {
+            for (HeaderElement elem : header.getElements()) {
+                if ("no-cache".equalsIgnoreCase(elem.getName())) {
+                    return 0;
+                }
+                if ("max-age".equalsIgnoreCase(elem.getName()) && elem.getValue() != null) {
+                    try {
+                        long age = 0;
+                        Header ageHeader = response.getFirstHeader("Age");
+                        if (ageHeader != null) {
+                            age = Long.parseLong(ageHeader.getValue().trim());
+                        }
+                        return now + (Long.parseLong(elem.getValue().trim()) - age) * 1000;
+                    } catch (NumberFormatException nfe) {
+                        return 0;
+                    }
+                }
+            }
+        }
+
+        Header expires = response.getFirstHeader("Expires");
+        if (expires != null) {
+            try {
+                long when = DateUtils.parseDate(expires.getValue()).getTime();
+                // Allow for the server's clock being different from ours
+                Header date = response.getFirstHeader("Date");
+                if (date != null) {
+                    when = now + when - DateUtils.parseDate(date.getValue()).getTime();
+                }
+                return when;
+            } catch (DateParseException dpe) {
+                return 0;
+            }
+        }
+
+        return 0;
+    }
+
+    public class Entry {
+        private String key = null;
+        private Properties props = new Properties();
+        private SoftReference<XdmNode> document = null;
+
+        private Entry(String key) {
+            this.key = key;
+        }
+
+        public URI getContentId() {
+            return URI.create(props.getProperty("content-id"));
+        }
+
+        public String getContentType() {
+            return props.getProperty("content-type");
+        }
+
+        public File getBody() {
+            return new File(directory, props.getProperty("body"));
+        }
+
+        public synchronized boolean isFresh() {
+            return Long.parseLong(props.getProperty("expires", "0")) > System.currentTimeMillis();
+        }
+
+        /**
+         * Makes the request conditional on this entry having changed.
+         */
+        public synchronized void addConditions(HttpUriRequest request) {
+            if (props.getProperty("etag") != null) {
+                request.setHeader("If-None-Match", props.getProperty("etag"));
+            }
+            if (props.getProperty("last-modified") != null) {
+                request.setHeader("If-Modified-Since", props.getProperty("last-modified"));
+            }
+        }
+
+        public InputStream open() throws IOException {
+            return new EntryInputStream(this);
+        }
+
+        /**
+         * Returns the document parsed from the body, if it's been cached and not collected.
+         */
+        public synchronized XdmNode getDocument() {
+            return document == null ? null : document.get();
+        }
+
+        public synchronized void setDocument(XdmNode doc) {
+            document = new SoftReference<XdmNode>(doc);
+        }
+
+        private synchronized void update(HttpResponse response) {
+            Header etag = response.getFirstHeader("ETag");
+            if (etag != null) {
+                props.setProperty("etag", etag.getValue());
+            }
+            Header lastModified = response.getFirstHeader("Last-Modified");
+            if (lastModified != null) {
+                props.setProperty("last-modified", lastModified.getValue());
+            }
+            props.setProperty("expires", String.valueOf(expires(response)));
+        }
+
+        private synchronized void save() throws IOException {
+            File tmp = File.createTempFile("props", ".tmp", directory);
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                props.store(out, null);
+            } finally {
+                out.close();
+            }
+            File file = new File(directory, key + ".properties");
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    private static class EntryInputStream extends FileInputStream {
+        private Entry entry = null;
+
+        private EntryInputStream(Entry entry) throws IOException {
+            super(entry.getBody());
+            this.entry = entry;
+        }
+    }
+}
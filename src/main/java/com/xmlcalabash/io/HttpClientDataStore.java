@@ -58,6 +58,8 @@ import org.apache.http.protocol.HttpContext;
  * When writing documents, the document is sent to the target URI via HTTP POST.
  * If the server response with a Location in the response header, that is
  * assumed to be the URI of the created document.
+ * If an {@link HttpCache} is set, documents that are read are cached and
+ * revalidated with conditional requests.
  * 
  * @author James Leigh <james@3roundstones.com>
  * 
@@ -66,6 +68,7 @@ public class HttpClientDataStore implements DataStore {
 	private final DataStore fallback;
 	private HttpClient client;
 	private HttpParams params;
+	private HttpCache cache;
 
 	public HttpClientDataStore(HttpClient client, DataStore fallback) {
 		super();
@@ -81,6 +84,14 @@ public class HttpClientDataStore implements DataStore {
 		this.client = client;
 	}
 
+	public synchronized HttpCache getCache() {
+		return cache;
+	}
+
+	public synchronized void setCache(HttpCache cache) {
+		this.cache = cache;
+	}
+
 	public synchronized HttpParams getHttpParams() {
 		if (params == null) {
 			params = new BasicHttpParams();
@@ -151,7 +162,10 @@ public class HttpClientDataStore implements DataStore {
 		URI baseURI = URI.create(base);
 		URI uri = baseURI.resolve(href);
 		String sch = uri.getScheme();
-		if ("http".equalsIgnoreCase(sch) || "https".equalsIgnoreCase(sch)) {
+		if (("http".equalsIgnoreCase(sch) || "https".equalsIgnoreCase(sch))
+				&& getCache() != null) {
+			readCachedEntity(uri, accept, overrideContentType, handler);
+		} else if ("http".equalsIgnoreCase(sch) || "https".equalsIgnoreCase(sch)) {
 			readHttpEntity(uri, accept, overrideContentType, handler);
 		} else {
 			fallback.readEntry(href, base, accept, overrideContentType, handler);
@@ -242,23 +256,82 @@ public class HttpClientDataStore implements DataStore {
 		execute(get, new ResponseHandler<Void>() {
 			public Void handleResponse(HttpResponse response)
 					throws IOException {
-				URI contentId = getContentId(localContext);
-				HttpEntity entity = response.getEntity();
-				Header hd = entity.getContentType();
-				String type = null;
-				if (hd != null) {
-					type = hd.getValue();
-				}
-                if (overrideContentType != null) {
-                    type = overrideContentType;
-                }
-				handler.load(contentId, type, entity.getContent(),
-						entity.getContentLength());
+				load(getContentId(localContext), response,
+						overrideContentType, handler);
 				return null;
 			}
 		}, localContext);
 	}
 
+	private void load(URI contentId, HttpResponse response,
+			String overrideContentType, DataReader handler) throws IOException {
+		HttpEntity entity = response.getEntity();
+		Header hd = entity.getContentType();
+		String type = null;
+		if (hd != null) {
+			type = hd.getValue();
+		}
+		if (overrideContentType != null) {
+			type = overrideContentType;
+		}
+		handler.load(contentId, type, entity.getContent(),
+				entity.getContentLength());
+	}
+
+	private void readCachedEntity(final URI uri, final String accept,
+			final String overrideContentType, final DataReader handler)
+			throws IOException {
+		final HttpCache cache = getCache();
+		final HttpCache.Entry cached = cache.get(uri, accept);
+		HttpCache.Entry entry = cached;
+		if (cached != null && cached.isFresh()) {
+			cache.hit();
+		} else {
+			final HttpContext localContext = new BasicHttpContext();
+			final HttpGet get = new HttpGet(uri);
+			get.setHeader("Accept", accept);
+			if (cached != null) {
+				cached.addConditions(get);
+			}
+			get.setParams(getHttpParams());
+			entry = getHttpClient().execute(get,
+					new ResponseHandler<HttpCache.Entry>() {
+						public HttpCache.Entry handleResponse(HttpResponse response)
+								throws IOException {
+							int respCode = response.getStatusLine().getStatusCode();
+							if (respCode == 304 && cached != null) {
+								cache.revalidated(cached, response);
+								return cached;
+							} else if (!successful(respCode)) {
+								throw error(get, respCode);
+							}
+
+							URI contentId = getContentId(localContext);
+							HttpCache.Entry entry = cache.put(uri, accept, contentId, response);
+							if (entry == null) {
+								// Not cacheable, so just read it
+								load(contentId, response, overrideContentType, handler);
+							}
+							return entry;
+						}
+					}, localContext);
+			if (entry == null) {
+				return;
+			}
+		}
+
+		String type = entry.getContentType();
+		if (overrideContentType != null) {
+			type = overrideContentType;
+		}
+		InputStream content = entry.open();
+		try {
+			handler.load(entry.getContentId(), type, content, entry.getBody().length());
+		} finally {
+			content.close();
+		}
+	}
+
 	private <T> T execute(final HttpUriRequest request,
 			final ResponseHandler<? extends T> handler, HttpContext context)
 			throws IOException, ClientProtocolException {
@@ -266,8 +339,7 @@ public class HttpClientDataStore implements DataStore {
 		return getHttpClient().execute(request, new ResponseHandler<T>() {
 			public T handleResponse(HttpResponse response) throws IOException {
 				int respCode = response.getStatusLine().getStatusCode();
-				if (respCode == 200 || respCode == 201 || respCode == 203
-						|| respCode == 204 || respCode == 205) {
+				if (successful(respCode)) {
 					return handler.handleResponse(response);
 				} else {
 					throw error(request, respCode);
@@ -276,6 +348,11 @@ public class HttpClientDataStore implements DataStore {
 		}, context);
 	}
 
+	private static boolean successful(int respCode) {
+		return respCode == 200 || respCode == 201 || respCode == 203
+				|| respCode == 204 || respCode == 205;
+	}
+
 	IOException error(final HttpUriRequest request, int respCode) {
 		String uri = request.getURI().toASCIIString();
 		if (respCode == 401 || respCode == 402 || respCode == 403) {
@@ -37,7 +37,8 @@ public class Pipe implements ReadablePipe, WritablePipe {
     private int id = 0;
     private XProcRuntime runtime = null;
     private DocumentSequence documents = null;
-    private int pos = 0;
+    // Read by the writer's thread when the sequence is streaming
+    private volatile int pos = 0;
     private boolean readSeqOk = false;
     private boolean writeSeqOk = false;
     private Step writer = null;
@@ -49,14 +50,14 @@ public class Pipe implements ReadablePipe, WritablePipe {
     public Pipe(XProcRuntime xproc) {
         runtime = xproc;
         documents = new DocumentSequence(xproc);
-        documents.addReader();
+        documents.addReader(this);
         id = idCounter++;
     }
 
     public Pipe(XProcRuntime xproc, DocumentSequence seq) {
         runtime = xproc;
         documents = seq;
-        seq.addReader();
+        seq.addReader(this);
         id = ++idCounter;
     }
 
@@ -83,6 +84,7 @@ public class Pipe implements ReadablePipe, WritablePipe {
     }
     
     public void resetWriter() {
+        documents.addWriter(this);
         documents.reset();
         pos = 0;
     }
@@ -100,7 +102,7 @@ public class Pipe implements ReadablePipe, WritablePipe {
     }
 
     public boolean moreDocuments() {
-        return pos < documents.size();
+        return documents.moreDocuments(pos);
     }
 
     public boolean closed() {
@@ -112,7 +114,7 @@ public class Pipe implements ReadablePipe, WritablePipe {
     }
 
     public int documentCount() {
-        return documents.size();
+        return documents.documentCount();
     }
 
     public DocumentSequence documents() {
@@ -124,7 +126,9 @@ public class Pipe implements ReadablePipe, WritablePipe {
             dynamicError(6);
         }
 
+        documents.moreDocuments(pos); // wait for the writer, if it's still running
         XdmNode doc = documents.get(pos++);
+        documents.advance(this);
 
         if (reader != null) {
             logger.trace(MessageFormatter.nodeMessage(reader.getNode(),
@@ -139,6 +143,7 @@ public class Pipe implements ReadablePipe, WritablePipe {
             logger.trace(MessageFormatter.nodeMessage(writer.getNode(),
                     writer.getName() + " wrote '" + (doc == null ? "null" : doc.getBaseURI()) + "' to " + this));
         }
+        documents.addWriter(this);
         documents.add(doc);
 
         if (documents.size() > 1 && !writeSeqOk) {
@@ -146,6 +151,18 @@ public class Pipe implements ReadablePipe, WritablePipe {
         }
     }
 
+    /**
+     * Tells the pipe that its reader has finished with it. When all of the readers of a
+     * sequence have finished, the documents are released (unless the sequence is pinned).
+     */
+    public void finished() {
+        documents.finished(this);
+    }
+
+    protected int position() {
+        return pos;
+    }
+
     public String toString() {
         return "[pipe #" + id + "] (" + documents + ")";
     }
@@ -28,6 +28,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 
 import com.xmlcalabash.util.*;
+import net.sf.saxon.om.TreeModel;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
@@ -148,6 +149,10 @@ public class ReadableData implements ReadablePipe {
         String charset = parseCharset(contentType);
 
         TreeWriter tree = new TreeWriter(runtime);
+        if (!isText(contentType, charset)) {
+            // The bytes are kept out of the tree; see BinaryData
+            tree.setTreeModel(TreeModel.LINKED_TREE);
+        }
         tree.startDocument(dataURI);
 		if (contentType != null && "content/unknown".equals(serverContentType)) {
 		    // pretend...
@@ -215,29 +220,7 @@ public class ReadableData implements ReadablePipe {
 		        }
 		        bufreader.close();
 		    } else {
-		        // Fill the buffer each time so that we get an even number of base64 lines
-		        int maxlen = 4096 * 3;
-		        byte[] bytes = new byte[maxlen];
-		        int pos = 0;
-		        int readlen = maxlen;
-		        boolean done = false;
-		        while (!done) {
-		            int read = stream.read(bytes, pos, readlen);
-		            if (read >= 0) {
-		                pos += read;
-		                readlen -= read;
-		            } else {
-		                done = true;
-		            }
-
-		            if ((readlen == 0) || done) {
-		                String base64 = Base64.encodeBytes(bytes, 0, pos);
-		                tree.addText(base64 + "\n");
-		                pos = 0;
-		                readlen = maxlen;
-		            }
-		        }
-		        stream.close();
+		        tree.addBinary(BinaryData.read(stream));
 		    }
 		    tree.addEndElement();
 		}
@@ -26,6 +26,10 @@ import java.io.InputStreamReader;
 import java.net.URI;
 import java.nio.charset.Charset;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import com.xmlcalabash.util.MessageFormatter;
@@ -167,13 +171,17 @@ public class ReadableDocument implements ReadablePipe {
                             };
                             String entry = id.toASCIIString();
                             if (media == null) {
+                                final Vector<String> entries = new Vector<String> ();
                                 store.listEachEntry(entry, entry, accept, new DataInfo() {
                                     public void list(URI id, String media, long lastModified)
                                             throws IOException {
-                                        String entry = id.toASCIIString();
-                                        store.readEntry(entry, entry, accept, null, handler);
+                                        String name = new File(id).getName();
+                                        if (pattern == null || pattern.matcher(name).matches()) {
+                                            entries.add(id.toASCIIString());
+                                        }
                                     }
                                 });
+                                parseAll(entries);
                             } else {
                                 store.readEntry(entry, entry, accept, null, handler);
                             }
@@ -215,6 +223,47 @@ public class ReadableDocument implements ReadablePipe {
         }
     }
 
+    /*
+     * Parses the files in a directory on the runtime's bounded pool. The documents are added
+     * in the order they were listed, whatever order they're parsed in; if any of them can't be
+     * parsed, the error for the first one that failed is thrown.
+     */
+    private void parseAll(Vector<String> entries) {
+        if (entries.size() < 2) {
+            for (String entry : entries) {
+                documents.add(parse(entry, base));
+            }
+            return;
+        }
+
+        ExecutorService executor = runtime.getExecutor();
+        Vector<Future<XdmNode>> parsed = new Vector<Future<XdmNode>> ();
+        try {
+            for (final String entry : entries) {
+                parsed.add(executor.submit(new Callable<XdmNode>() {
+                    public XdmNode call() {
+                        return parse(entry, base);
+                    }
+                }));
+            }
+
+            for (Future<XdmNode> doc : parsed) {
+                documents.add(doc.get());
+            }
+        } catch (InterruptedException ie) {
+            throw new XProcException(ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new XProcException(ee.getCause());
+        } finally {
+            for (Future<XdmNode> doc : parsed) {
+                doc.cancel(false);
+            }
+        }
+    }
+
     private XdmNode parse(String uri, String base) {
         XdmNode doc = runtime.parse(uri, base);
 
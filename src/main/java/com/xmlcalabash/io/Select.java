@@ -22,6 +22,7 @@ package com.xmlcalabash.io;
 import com.xmlcalabash.util.MessageFormatter;
 import net.sf.saxon.s9api.*;
 
+import java.util.Collections;
 import java.util.Iterator;
 
 import com.xmlcalabash.core.XProcException;
@@ -74,13 +75,8 @@ public class Select implements ReadablePipe {
         initialized = true;
         try {
             NamespaceBinding bindings = new NamespaceBinding(runtime,context);
-            XPathCompiler xcomp = runtime.getProcessor().newXPathCompiler();
-            xcomp.setBaseURI(context.getBaseURI());
-            for (String prefix : bindings.getNamespaceBindings().keySet()) {
-                xcomp.declareNamespace(prefix, bindings.getNamespaceBindings().get(prefix));
-            }
-
-            XPathExecutable xexec = xcomp.compile(select);
+            XPathExecutable xexec = runtime.getXPathCache().compile(select, context.getBaseURI(),
+                    bindings.getNamespaceBindings(), Collections.<QName>emptySet());
             selector = xexec.load();
             // FIXME: Set getVariables
         } catch (SaxonApiException sae) {
@@ -262,24 +262,16 @@ public class DefaultStep implements XProcStep {
         Configuration config = runtime.getProcessor().getUnderlyingConfiguration();
 
         try {
-            XPathCompiler xcomp = runtime.getProcessor().newXPathCompiler();
             URI baseURI = step.getNode().getBaseURI();
-            if (!"".equals(baseURI.toASCIIString())) {
-                xcomp.setBaseURI(baseURI);
+            if ("".equals(baseURI.toASCIIString())) {
+                baseURI = null;
             }
 
             // Extension functions are not available here...
 
-            for (QName varname : globals.keySet()) {
-                xcomp.declareVariable(varname);
-            }
-
-            for (String prefix : nsBindings.keySet()) {
-                xcomp.declareNamespace(prefix, nsBindings.get(prefix));
-            }
             XPathExecutable xexec = null;
             try {
-                xexec = xcomp.compile(xpath);
+                xexec = runtime.getXPathCache().compile(xpath, baseURI, nsBindings, globals.keySet());
             } catch (SaxonApiException sae) {
                 Throwable t = sae.getCause();
                 if (t instanceof XPathException) {
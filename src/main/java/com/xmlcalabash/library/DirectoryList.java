@@ -22,8 +22,6 @@ package com.xmlcalabash.library;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
-import java.util.ArrayList;
-import java.util.List;
 
 import com.xmlcalabash.core.XMLCalabash;
 import com.xmlcalabash.util.MessageFormatter;
@@ -140,7 +138,8 @@ public class DirectoryList extends DefaultStep {
                     }
 
                     if (use) {
-                        if (!isFile(id)) {
+                        // Directories (and anything else that isn't a document) have no media type
+                        if (media == null) {
                             tree.addStartElement(c_directory);
                             tree.addAttribute(_name, filename);
                             tree.addEndElement();
@@ -176,20 +175,5 @@ public class DirectoryList extends DefaultStep {
         }
         return path.replaceAll("^.*/", "");
 	}
-
-	boolean isFile(URI id) throws IOException {
-		final String entry = id.toASCIIString();
-		final List<String> entries = new ArrayList<String>();
-		DataStore store = runtime.getDataStore();
-		store.infoEntry(entry, entry, "*/*", new DataInfo() {
-			public void list(URI id, String media, long lastModified)
-					throws IOException {
-				if (media != null) {
-					entries.add(media);
-				}
-			}
-		});
-		return !entries.isEmpty();
-	}
 }
 
@@ -20,14 +20,20 @@ package com.xmlcalabash.library;
  */
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
@@ -36,6 +42,7 @@ import javax.xml.XMLConstants;
 
 import com.xmlcalabash.core.XMLCalabash;
 import com.xmlcalabash.util.*;
+import net.sf.saxon.om.TreeModel;
 import net.sf.saxon.s9api.Axis;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
@@ -68,7 +75,7 @@ import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.params.CookiePolicy;
 import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.cookie.Cookie;
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.BasicCookieStore;
@@ -346,7 +353,6 @@ public class HttpRequest extends DefaultStep {
             HttpHost host = (HttpHost) localContext.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
             HttpUriRequest req = (HttpUriRequest) localContext.getAttribute(ExecutionContext.HTTP_REQUEST);
             URI root = new URI(host.getSchemeName(), null, host.getHostName(), host.getPort(), "/", null, null);
-            tree.startDocument(root.resolve(req.getURI()));
 
             // Deal with cookies
             if (saveCookieKey != null) {
@@ -368,6 +374,12 @@ public class HttpRequest extends DefaultStep {
                 contentType = overrideContentType;
             }
 
+            // Binary bodies are kept out of the tree, which only a linked tree allows; see BinaryData
+            if (!statusOnly && (contentType.startsWith("multipart/") || binaryContentType(contentType))) {
+                tree.setTreeModel(TreeModel.LINKED_TREE);
+            }
+            tree.startDocument(root.resolve(req.getURI()));
+
             if (detailed) {
                 tree.addStartElement(XProcConstants.c_response);
                 tree.addAttribute(_status, "" + statusCode);
@@ -577,11 +589,18 @@ public class HttpRequest extends DefaultStep {
                     }
                 }
 
-                String escapedContent = decodeBase64(body, charset);
-                StringWriter writer = new StringWriter();
-                writer.write(escapedContent);
-                writer.close();
-                postContent = writer.toString();
+                // Send the decoded bytes as they are, rather than decoding them into a string
+                MessageBytes byteContent = new MessageBytes();
+                byteContent.appendBinary(body);
+                try {
+                    byteContent.setContentType(ContentType.create(contentType, charset).toString());
+                } catch (UnsupportedCharsetException uce) {
+                    throw XProcException.stepError(10, uce);
+                } catch (IllegalCharsetNameException icne) {
+                    throw XProcException.stepError(10, icne);
+                }
+                method.setEntity(byteContent);
+                return;
             } else {
                 if (jsonContentType(contentType)) {
                     postContent = XMLtoJSON.convert(body);
@@ -758,8 +777,7 @@ public class HttpRequest extends DefaultStep {
                 } else if (jsonContentType(contentType)) {
                     byteContent.append(XMLtoJSON.convert(body));
                 } else if (!encodeBinary && "base64".equals(bodyEncoding)) {
-                    byte[] decoded = Base64.decode(body.getStringValue());
-                    byteContent.append(decoded, decoded.length);
+                    byteContent.appendBinary(body);
                 } else {
                     StringWriter writer = new StringWriter();
                     XdmSequenceIterator iter = body.axisIterator(Axis.CHILD);
@@ -787,9 +805,9 @@ public class HttpRequest extends DefaultStep {
         //postContent += "--" + boundary + "--\r\n";
         byteContent.append("--" + boundary + "--\r\n");
 
-        ByteArrayEntity requestEntity = new ByteArrayEntity(byteContent.content(), ContentType.create(multipartContentType));
+        byteContent.setContentType(multipartContentType);
         //StringRequestEntity requestEntity = new StringRequestEntity(postContent, multipartContentType, null);
-        method.setEntity(requestEntity);
+        method.setEntity(byteContent);
     }
 
     private String getFullContentType(HttpResponse method) {
@@ -903,6 +921,10 @@ public class HttpRequest extends DefaultStep {
         return HttpUtils.textContentType(contentType);
     }
 
+    private boolean binaryContentType(String contentType) {
+        return !xmlContentType(contentType) && !textContentType(contentType) && !jsonContentType(contentType);
+    }
+
     private void readBodyContent(TreeWriter tree, InputStream bodyStream, HttpResponse method) throws SaxonApiException, IOException {
         String contentType = getFullContentType(method);
         Charset cs = ContentType.getOrDefault(method.getEntity()).getCharset();
@@ -1003,29 +1025,7 @@ public class HttpRequest extends DefaultStep {
                 }
             } else {
                 // Read it as binary
-                byte bytes[] = new byte[bufSize];
-                int pos = 0;
-                int readLen = bufSize;
-                int len = partStream.read(bytes, 0, bufSize);
-                while (len >= 0) {
-                    pos += len;
-                    readLen -= len;
-                    if (readLen == 0) {
-                        tree.addText(Base64.encodeBytes(bytes));
-                        pos = 0;
-                        readLen = bufSize;
-                    }
-
-                    len = partStream.read(bytes, pos, readLen);
-                }
-
-                if (pos > 0) {
-                    byte lastBytes[] = new byte[pos];
-                    System.arraycopy(bytes, 0, lastBytes, 0, pos);
-                    tree.addText(Base64.encodeBytes(lastBytes));
-                }
-
-                tree.addText("\n"); // FIXME: should we be doing this?
+                tree.addBinary(BinaryData.read(partStream));
             }
 
             tree.addEndElement();
@@ -1055,52 +1055,7 @@ public class HttpRequest extends DefaultStep {
             tree.addSubtree(jsonDoc);
         } else {
             // Read it as binary
-            byte bytes[] = new byte[bufSize];
-            int pos = 0;
-            int readLen = bufSize;
-            int len = bodyStream.read(bytes, 0, bufSize);
-            while (len >= 0) {
-                pos += len;
-                readLen -= len;
-                if (readLen == 0) {
-                    String encoded = Base64.encodeBytes(bytes);
-                    tree.addText(encoded);
-                    pos = 0;
-                    readLen = bufSize;
-                }
-
-                len = bodyStream.read(bytes, pos, readLen);
-            }
-
-            if (pos > 0) {
-                byte lastBytes[] = new byte[pos];
-                System.arraycopy(bytes, 0, lastBytes, 0, pos);
-                tree.addText(Base64.encodeBytes(lastBytes));
-            }
-
-            tree.addText("\n"); // FIXME: should we be doing this?
-        }
-    }
-
-    private String extractText(XdmNode doc) {
-        String content = "";
-        XdmSequenceIterator iter = doc.axisIterator(Axis.CHILD);
-        while (iter.hasNext()) {
-            XdmNode child = (XdmNode) iter.next();
-            if (child.getNodeKind() == XdmNodeKind.ELEMENT || child.getNodeKind() == XdmNodeKind.TEXT) {
-                content += child.getStringValue();
-            }
-        }
-        return content;
-    }
-
-    private String decodeBase64(XdmNode doc, String charset) {
-        String content = extractText(doc);
-        byte[] decoded = Base64.decode(content);
-        try {
-            return new String(decoded, charset);
-        } catch (UnsupportedEncodingException uee) {
-            throw XProcException.stepError(10, uee);
+            tree.addBinary(BinaryData.read(bodyStream));
         }
     }
 
@@ -1116,6 +1071,10 @@ public class HttpRequest extends DefaultStep {
                     String charset = HttpUtils.getCharset(contentType, defCharset);
 
                     TreeWriter tree = new TreeWriter(runtime);
+                    if (!xmlContentType(contentType) && !textContentType(contentType)) {
+                        // The bytes are kept out of the tree; see BinaryData
+                        tree.setTreeModel(TreeModel.LINKED_TREE);
+                    }
                     tree.startDocument(id);
 
                     try {
@@ -1148,10 +1107,14 @@ public class HttpRequest extends DefaultStep {
         }
     }
 
-    private class MessageBytes {
-        int chunkSize = 8192;
-        byte[] byteContent = new byte[chunkSize];
-        int pos = 0;
+    /**
+     * A request body built from text and binary parts. Binary parts are streamed from their
+     * BinaryData when the request is sent, so they're never copied into memory, and can be
+     * sent again if the request is retried.
+     */
+    private class MessageBytes extends AbstractHttpEntity {
+        Vector<Object> parts = new Vector<Object> ();
+        ByteArrayOutputStream current = null;
 
         public MessageBytes() {
         }
@@ -1167,19 +1130,65 @@ public class HttpRequest extends DefaultStep {
         }
 
         public void append(byte[] bytes, int size) {
-            if (pos + bytes.length > byteContent.length) {
-                byte[] newBytes = new byte[byteContent.length + bytes.length + chunkSize];
-                System.arraycopy(byteContent, 0, newBytes, 0, byteContent.length);
-                byteContent = newBytes;
+            if (current == null) {
+                current = new ByteArrayOutputStream();
+                parts.add(current);
+            }
+            current.write(bytes, 0, size);
+        }
+
+        public void appendBinary(XdmNode node) throws IOException {
+            if (BinaryData.getDecodedLength(node) < 0) {
+                // Base64 text, or gzipped bytes, so the length is only known once it's decoded
+                byte[] decoded = BinaryData.decode(node);
+                append(decoded, decoded.length);
+            } else {
+                parts.add(node);
+                current = null;
+            }
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public boolean isStreaming() {
+            return false;
+        }
+
+        public long getContentLength() {
+            long length = 0;
+            for (Object part : parts) {
+                if (part instanceof ByteArrayOutputStream) {
+                    length += ((ByteArrayOutputStream) part).size();
+                } else {
+                    length += BinaryData.getBinaryData((XdmNode) part).getLength();
+                }
             }
-            System.arraycopy(bytes, 0, byteContent, pos, bytes.length);
-            pos += bytes.length;
+            return length;
         }
 
-        public byte[] content() {
-            byte[] bytes = new byte[pos];
-            System.arraycopy(byteContent, 0, bytes, 0, pos);
-            return bytes;
+        public InputStream getContent() throws IOException {
+            Vector<InputStream> streams = new Vector<InputStream> ();
+            for (Object part : parts) {
+                if (part instanceof ByteArrayOutputStream) {
+                    streams.add(new ByteArrayInputStream(((ByteArrayOutputStream) part).toByteArray()));
+                } else {
+                    streams.add(BinaryData.openStream((XdmNode) part));
+                }
+            }
+            return new SequenceInputStream(streams.elements());
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            for (Object part : parts) {
+                if (part instanceof ByteArrayOutputStream) {
+                    ((ByteArrayOutputStream) part).writeTo(out);
+                } else {
+                    BinaryData.write((XdmNode) part, out);
+                }
+            }
+            out.flush();
         }
     }
 }
@@ -20,6 +20,7 @@
 package com.xmlcalabash.library;
 
 import java.util.Map;
+import java.util.Vector;
 
 import com.xmlcalabash.core.XMLCalabash;
 import com.xmlcalabash.core.XProcException;
@@ -45,6 +46,7 @@ public class Insert extends DefaultStep implements ProcessMatchingNodes {
     private static final QName _match = new QName("match");
     private static final QName _position = new QName("position");
     private ReadablePipe insertion = null;
+    private Vector<XdmNode> insertions = null;
     private ReadablePipe source = null;
     private WritablePipe result = null;
     private Map<QName, RuntimeValue> inScopeOptions = null;
@@ -71,6 +73,7 @@ public class Insert extends DefaultStep implements ProcessMatchingNodes {
 
     public void reset() {
         source.resetReader();
+        insertion.resetReader();
         result.resetWriter();
     }
 
@@ -79,6 +82,12 @@ public class Insert extends DefaultStep implements ProcessMatchingNodes {
 
         position = getOption(_position).getString();
 
+        // The insertion is needed at every match, so read it once
+        insertions = new Vector<XdmNode> ();
+        while (insertion.moreDocuments()) {
+            insertions.add(insertion.read());
+        }
+
         XdmNode doc = source.read();
 
         matcher = new ProcessMatch(runtime, this);
@@ -164,14 +173,12 @@ public class Insert extends DefaultStep implements ProcessMatchingNodes {
     }
 
     private void doInsert() throws SaxonApiException {
-        while (insertion.moreDocuments()) {
-            XdmNode doc = insertion.read();
+        for (XdmNode doc : insertions) {
             XdmSequenceIterator iter = doc.axisIterator(Axis.CHILD);
             while (iter.hasNext()) {
                 XdmNode child = (XdmNode) iter.next();
                 matcher.addSubtree(child);
             }
         }
-        insertion.resetReader();
     }
 }
@@ -28,7 +28,6 @@ import com.xmlcalabash.model.RuntimeValue;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
-import net.sf.saxon.s9api.XPathCompiler;
 import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.sxpath.XPathExpression;
@@ -41,6 +40,8 @@ import net.sf.saxon.value.BooleanValue;
 import com.xmlcalabash.runtime.XAtomicStep;
 import com.xmlcalabash.util.DocumentSequenceIterator;
 
+import java.util.Collections;
+
 /**
  *
  * @author ndw
@@ -88,24 +89,14 @@ public class SplitSequence extends DefaultStep {
         initialOnly = getOption(_initial_only, false);
         boolean stillOk = true;
 
-        int count = 0;
-        while (source.moreDocuments()) {
-            count++;
-            source.read();
-        }
-        source.resetReader();
+        // The test may use last(), so the documents can't be split as they arrive
+        int count = source.documentCount();
 
         DocumentSequenceIterator xsi = new DocumentSequenceIterator(); // See below
         xsi.setLast(count);
 
-        XPathCompiler xcomp = runtime.getProcessor().newXPathCompiler();
-        xcomp.setBaseURI(step.getNode().getBaseURI());
-
-        for (String prefix : test.getNamespaceBindings().keySet()) {
-            xcomp.declareNamespace(prefix, test.getNamespaceBindings().get(prefix));
-        }
-
-        XPathExecutable xexec = xcomp.compile(test.getString());
+        XPathExecutable xexec = runtime.getXPathCache().compile(test.getString(), step.getNode().getBaseURI(),
+                test.getNamespaceBindings(), Collections.<QName>emptySet());
 
         // From Michael Kay: http://markmail.org/message/vkb2vaq2miylgndu
         //
@@ -19,7 +19,6 @@
 
 package com.xmlcalabash.library;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -29,6 +28,7 @@ import java.util.zip.GZIPOutputStream;
 
 import com.xmlcalabash.core.XMLCalabash;
 import com.xmlcalabash.util.*;
+import net.sf.saxon.om.TreeModel;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.Serializer;
@@ -90,7 +90,7 @@ public class Store extends DefaultStep {
 
     public void run() throws SaxonApiException {
         RuntimeValue hrefOpt = getOption(_href);
-        super.run(": href=" + hrefOpt.getValue().toString());
+        super.run(hrefOpt == null ? "" : ": href=" + hrefOpt.getValue().toString());
 
         if (runtime.getSafeMode()) {
             throw XProcException.dynamicError(21);
@@ -169,43 +169,16 @@ public class Store extends DefaultStep {
         }
 
         try {
-            if (href == null) {
-                OutputStream outstr;
-                ByteArrayOutputStream baos;
-                baos = new ByteArrayOutputStream();
-                outstr = baos;
-                try {
-                    if (method == CompressionMethod.GZIP) {
-                        GZIPOutputStream gzout = new GZIPOutputStream(outstr);
-                        outstr = gzout;
-                    }
-
+            return write(href, base, media, new DataWriter() {
+                public void store(OutputStream outstr) throws IOException {
                     serializer.setOutputStream(outstr);
-                    S9apiUtils.serialize(runtime, doc, serializer);
-                } finally {
-                    outstr.close();
-                }
-                returnData(baos);
-                return null;
-            } else {
-                DataStore store = runtime.getDataStore();
-                return store.writeEntry(href, base, media, new DataWriter() {
-                    public void store(OutputStream outstr)
-                            throws IOException {
-                        if (method == CompressionMethod.GZIP) {
-                            GZIPOutputStream gzout = new GZIPOutputStream(outstr);
-                            outstr = gzout;
-                        }
-
-                        serializer.setOutputStream(outstr);
-                        try {
-                            S9apiUtils.serialize(runtime, doc, serializer);
-                        } catch (SaxonApiException e) {
-                            throw new IOException(e);
-                        }
+                    try {
+                        S9apiUtils.serialize(runtime, doc, serializer);
+                    } catch (SaxonApiException e) {
+                        throw new IOException(e);
                     }
-                });
-            }
+                }
+            });
         } catch (FileNotFoundException e) {
             throw XProcException.stepError(50);
         } catch (IOException ioe) {
@@ -216,44 +189,17 @@ public class Store extends DefaultStep {
         }
     }
 
-    private URI storeBinary(XdmNode doc, String href, String base, String media) {
+    private URI storeBinary(final XdmNode doc, String href, String base, String media) {
         if (media == null) {
             media = "application/octet-stream";
         }
 
         try {
-            final byte[] decoded = Base64.decode(doc.getStringValue());
-
-            if (href == null) {
-                OutputStream outstr = null;
-                ByteArrayOutputStream baos = null;
-                baos = new ByteArrayOutputStream();
-                outstr = baos;
-                try {
-                    if (method == CompressionMethod.GZIP) {
-                        GZIPOutputStream gzout = new GZIPOutputStream(outstr);
-                        outstr = gzout;
-                    }
-
-                    outstr.write(decoded);
-                } finally {
-                    outstr.close();
+            return write(href, base, media, new DataWriter() {
+                public void store(OutputStream outstr) throws IOException {
+                    BinaryData.write(doc, outstr);
                 }
-                returnData(baos);
-                return null;
-            } else {
-                DataStore store = runtime.getDataStore();
-                return store.writeEntry(href, base, media, new DataWriter() {
-                    public void store(OutputStream outstr) throws IOException {
-                        if (method == CompressionMethod.GZIP) {
-                            GZIPOutputStream gzout = new GZIPOutputStream(outstr);
-                            outstr = gzout;
-                        }
-
-                        outstr.write(decoded);
-                    }
-                });
-            }
+            });
         } catch (FileNotFoundException e) {
             throw XProcException.stepError(50);
         } catch (IOException ioe) {
@@ -261,7 +207,7 @@ public class Store extends DefaultStep {
         }
     }
 
-    private URI storeText(XdmNode doc, String href, String base, String media) {
+    private URI storeText(final XdmNode doc, String href, String base, String media) {
         final Serializer serializer = makeSerializer();
         serializer.setOutputProperty(Serializer.Property.METHOD, "text");
 
@@ -270,32 +216,16 @@ public class Store extends DefaultStep {
         }
 
         try {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            OutputStream outstr = baos;
-
-            if (method == CompressionMethod.GZIP) {
-                GZIPOutputStream gzout = new GZIPOutputStream(outstr);
-                outstr = gzout;
-            }
-
-            serializer.setOutputStream(outstr);
-            try {
-                S9apiUtils.serialize(runtime, doc, serializer);
-            } catch (SaxonApiException e) {
-                throw new IOException(e);
-            }
-
-            if (href == null) {
-                returnData(baos);
-                return null;
-            } else {
-                DataStore store = runtime.getDataStore();
-                return store.writeEntry(href, base, media, new DataWriter() {
-                    public void store(OutputStream outstr) throws IOException {
-                        outstr.write(baos.toByteArray());
+            return write(href, base, media, new DataWriter() {
+                public void store(OutputStream outstr) throws IOException {
+                    serializer.setOutputStream(outstr);
+                    try {
+                        S9apiUtils.serialize(runtime, doc, serializer);
+                    } catch (SaxonApiException e) {
+                        throw new IOException(e);
                     }
-                });
-            }
+                }
+            });
         } catch (FileNotFoundException e) {
             throw XProcException.stepError(50);
         } catch (IOException ioe) {
@@ -310,46 +240,16 @@ public class Store extends DefaultStep {
         }
 
         try {
-            if (href == null) {
-                OutputStream outstr = null;
-                ByteArrayOutputStream baos = null;
-
-                baos = new ByteArrayOutputStream();
-                outstr = baos;
-                try {
-                    if (method == CompressionMethod.GZIP) {
-                        GZIPOutputStream gzout = new GZIPOutputStream(outstr);
-                        outstr = gzout;
-                    }
-
+            return write(href, base, media, new DataWriter() {
+                public void store(OutputStream outstr) throws IOException {
                     PrintWriter writer = new PrintWriter(outstr);
                     String json = XMLtoJSON.convert(doc);
                     writer.print(json);
-                } finally {
-                    // no need to close both 
-                    // writer.close();
-                    outstr.close();
+                    // Don't close the writer; that would close outstr, which belongs to
+                    // the DataStore (or to write()).
+                    writer.flush();
                 }
-                returnData(baos);
-                return null;
-            } else {
-                DataStore store = runtime.getDataStore();
-                return store.writeEntry(href, base, media, new DataWriter() {
-                    public void store(OutputStream outstr) throws IOException {
-                        if (method == CompressionMethod.GZIP) {
-                            GZIPOutputStream gzout = new GZIPOutputStream(outstr);
-                            outstr = gzout;
-                        }
-
-                        PrintWriter writer = new PrintWriter(outstr);
-                        String json = XMLtoJSON.convert(doc);
-                        writer.print(json);
-                        // No need to close writer here - the underlying 
-                        // outstr gets closed by the DataStore implementation 
-                        // writer.close();
-                    }
-                });
-            }
+            });
         } catch (FileNotFoundException e) {
             throw XProcException.stepError(50);
         } catch (IOException ioe) {
@@ -357,20 +257,62 @@ public class Store extends DefaultStep {
         }
     }
 
-    public void returnData(ByteArrayOutputStream baos) {
+    /*
+     * Everything is written straight through to the DataStore's output stream, compressing it
+     * on the way if this is cx:gzip. If there's no href (only cx:gzip allows that), it's written
+     * to a BinaryData that's returned on the result port instead.
+     */
+    private URI write(String href, String base, String media, final DataWriter writer) throws IOException {
+        if (href == null) {
+            BinaryData.Output data = new BinaryData.Output();
+            try {
+                compress(data, writer);
+            } finally {
+                data.close();
+            }
+            returnData(data.getData());
+            return null;
+        } else {
+            DataStore store = runtime.getDataStore();
+            return store.writeEntry(href, base, media, new DataWriter() {
+                public void store(OutputStream outstr) throws IOException {
+                    compress(outstr, writer);
+                }
+            });
+        }
+    }
+
+    private void compress(OutputStream outstr, DataWriter writer) throws IOException {
+        if (method != CompressionMethod.GZIP) {
+            writer.store(outstr);
+        } else if (runtime.getBackgroundGzip()) {
+            BackgroundGzipOutputStream gzout = new BackgroundGzipOutputStream(outstr, runtime.getStreamingExecutor());
+            try {
+                writer.store(gzout);
+            } finally {
+                gzout.finish();
+            }
+        } else {
+            GZIPOutputStream gzout = new GZIPOutputStream(outstr);
+            writer.store(gzout);
+            gzout.finish();
+        }
+    }
+
+    public void returnData(BinaryData data) {
         // We're only called if the output is compressed
 
         TreeWriter tree = new TreeWriter(runtime);
+        tree.setTreeModel(TreeModel.LINKED_TREE);
         tree.startDocument(step.getNode().getBaseURI());
         tree.addStartElement(XProcConstants.c_data);
         tree.addAttribute(_encoding, "base64");
         tree.addAttribute(_content_type, "application/x-gzip");
         tree.startContent();
-        tree.addText(Base64.encodeBytes(baos.toByteArray()));
+        tree.addBinary(data);
         tree.addEndElement();
         tree.endDocument();
         result.write(tree.getResult());
-
     }
 
     protected enum CompressionMethod { NONE, GZIP };
@@ -33,10 +33,12 @@ import com.xmlcalabash.core.XProcRuntime;
 import com.xmlcalabash.core.XProcException;
 import com.xmlcalabash.core.XProcConstants;
 import com.xmlcalabash.runtime.XAtomicStep;
+import com.xmlcalabash.util.JingValidation;
 import com.xmlcalabash.util.S9apiUtils;
+import com.xmlcalabash.util.SchemaCache;
 import com.thaiopensource.validate.SchemaReader;
 import com.thaiopensource.validate.ValidateProperty;
-import com.thaiopensource.validate.ValidationDriver;
+import com.thaiopensource.validate.Schema;
 import com.thaiopensource.validate.prop.rng.RngProperty;
 import com.thaiopensource.validate.auto.AutoSchemaReader;
 import com.thaiopensource.validate.rng.CompactSchemaReader;
@@ -47,9 +49,11 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
+import javax.xml.transform.sax.SAXSource;
 import java.io.IOException;
 import java.io.StringReader;
 import java.net.URI;
+import java.util.Collections;
 
 /**
  * Created by IntelliJ IDEA.
@@ -122,8 +126,6 @@ public class ValidateJing extends DefaultStep {
 
         docBaseURI = doc.getBaseURI();
 
-        SchemaReader sr = null;
-
         boolean compact = XProcConstants.c_data.equals(root.getNodeName());
 
         String contentType = root.getAttributeValue(XProcConstants.c_content_type);
@@ -131,36 +133,49 @@ public class ValidateJing extends DefaultStep {
             compact |= contentType.startsWith("text/") || contentType.equals("application/relax-ng-compact-syntax");
         }
 
-        InputSource schemaInputSource = null;
         JingConfigurer configurer = runtime.getConfigurer().getJingConfigurer();
-
         if (compact) {
-            // Compact syntax
             configurer.configRNC(properties);
-            sr = CompactSchemaReader.getInstance();
-
-            // Grotesque hack!
-            StringReader srdr = new StringReader(compactSchema(root));
-            schemaInputSource = new InputSource(srdr);
-            schemaInputSource.setSystemId(root.getBaseURI().toASCIIString());
         } else {
-            // XML syntax
             configurer.configRNG(properties);
-            sr = new AutoSchemaReader();
-            schemaInputSource = S9apiUtils.xdmToInputSource(runtime, schema);
         }
 
-        ValidationDriver driver = new ValidationDriver(properties.toPropertyMap(), sr);
+        // Compiled schemas are thread safe; each document gets its own validator
+        String key = SchemaCache.key(Collections.singleton(schema), "jing " + compact + " " + checkIdRefs);
+        Schema compiledSchema = (Schema) runtime.getSchemaCache().get(key);
+
         try {
-            if (driver.loadSchema(schemaInputSource)) {
-                InputSource din = S9apiUtils.xdmToInputSource(runtime, doc);
-                if (!driver.validate(din)) {
-                    if (assertValid) {
-                        throw XProcException.stepError(53);
-                    }
+            if (compiledSchema == null) {
+                SchemaReader sr = null;
+                InputSource schemaInputSource = null;
+
+                if (compact) {
+                    // Compact syntax
+                    sr = CompactSchemaReader.getInstance();
+
+                    // Grotesque hack!
+                    StringReader srdr = new StringReader(compactSchema(root));
+                    schemaInputSource = new InputSource(srdr);
+                    schemaInputSource.setSystemId(root.getBaseURI().toASCIIString());
+                } else {
+                    // XML syntax
+                    sr = new AutoSchemaReader();
+                    // Jing parses schemas itself, so this one has to be serialized
+                    schemaInputSource = S9apiUtils.xdmToInputSource(runtime, schema);
+                }
+
+                compiledSchema = JingValidation.createSchema(sr, schemaInputSource, properties.toPropertyMap());
+                if (compiledSchema == null) {
+                    throw new XProcException(step.getNode(), "Error loading schema");
+                }
+                runtime.getSchemaCache().put(key, compiledSchema);
+            }
+
+            SAXSource din = S9apiUtils.xdmToSAXSource(runtime, doc);
+            if (!JingValidation.validate(compiledSchema, din, properties.toPropertyMap())) {
+                if (assertValid) {
+                    throw XProcException.stepError(53);
                 }
-            } else {
-                throw new XProcException(step.getNode(), "Error loading schema");
             }
         } catch (SAXParseException e) {
             if (assertValid) {
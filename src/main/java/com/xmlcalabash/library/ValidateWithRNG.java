@@ -22,16 +22,20 @@ package com.xmlcalabash.library;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.Collections;
 
 import com.xmlcalabash.core.XProcConstants;
 import com.xmlcalabash.io.ReadablePipe;
 import com.xmlcalabash.io.WritablePipe;
 import com.xmlcalabash.util.S9apiUtils;
+import com.xmlcalabash.util.SchemaCache;
 import com.xmlcalabash.core.XProcException;
 import com.xmlcalabash.core.XProcRuntime;
 import com.xmlcalabash.util.TreeWriter;
+import com.xmlcalabash.util.XdmNodeReader;
 import org.iso_relax.verifier.VerifierFactory;
 import org.iso_relax.verifier.Verifier;
+import org.iso_relax.verifier.VerifierHandler;
 import org.iso_relax.verifier.Schema;
 import org.iso_relax.verifier.VerifierConfigurationException;
 import org.slf4j.Logger;
@@ -87,22 +91,30 @@ public class ValidateWithRNG extends DefaultStep {
         XdmNode doc = null;
 
         try {
-            VerifierFactory vfactory = new com.sun.msv.verifier.jarv.TheFactoryImpl();
-            // FIXME: VerifierFactory.newInstance(language);
-
             Verifier verifier = null;
             XdmNode schemaNode = schema.read();
-            InputSource schemaSource = S9apiUtils.xdmToInputSource(runtime, schemaNode);
-            schemaSource.setSystemId(schemaNode.getBaseURI().toASCIIString());
 
-            Schema docSchema = vfactory.compileSchema(schemaSource);
+            // Compiled schemas are thread safe; each document gets its own verifier
+            String key = SchemaCache.key(Collections.singleton(schemaNode), "msv");
+            Schema docSchema = (Schema) runtime.getSchemaCache().get(key);
+            if (docSchema == null) {
+                VerifierFactory vfactory = new com.sun.msv.verifier.jarv.TheFactoryImpl();
+                // FIXME: VerifierFactory.newInstance(language);
+
+                InputSource schemaSource = S9apiUtils.xdmToInputSource(runtime, schemaNode);
+                schemaSource.setSystemId(schemaNode.getBaseURI().toASCIIString());
+
+                docSchema = vfactory.compileSchema(schemaSource);
+                runtime.getSchemaCache().put(key, docSchema);
+            }
+
             verifier = docSchema.newVerifier();
             verifier.setErrorHandler(new RNGErrorHandler());
 
             doc = source.read();
             docBaseURI = doc.getBaseURI();
 
-            if (verifier != null && !verifier.verify(S9apiUtils.xdmToInputSource(runtime, doc))) {
+            if (verifier != null && !verify(verifier, doc)) {
                 throw new XProcException(XProcException.err_E0001, "Document is not valid");
             }
 
@@ -122,6 +134,15 @@ public class ValidateWithRNG extends DefaultStep {
         }
     }
 
+    // Sends the document straight to the verifier rather than serializing it for it to parse
+    private boolean verify(Verifier verifier, XdmNode doc) throws SAXException, IOException {
+        VerifierHandler handler = verifier.getVerifierHandler();
+        XdmNodeReader reader = new XdmNodeReader(runtime.getProcessor(), doc);
+        reader.setContentHandler(handler);
+        reader.parse(new InputSource());
+        return handler.isValid();
+    }
+
     class RNGErrorHandler implements ErrorHandler {
         public void fatalError(SAXParseException e) throws SAXException {
             error(e);
@@ -17,13 +17,9 @@ import com.xmlcalabash.core.XProcConstants;
 import com.xmlcalabash.runtime.XAtomicStep;
 import com.xmlcalabash.util.S9apiUtils;
 import com.xmlcalabash.model.RuntimeValue;
-import org.xml.sax.InputSource;
+import com.xmlcalabash.util.SchematronCache;
 
-import javax.xml.transform.sax.SAXSource;
-import javax.xml.transform.URIResolver;
-import javax.xml.transform.Source;
-import javax.xml.transform.TransformerException;
-import java.io.InputStream;
+import java.util.TreeMap;
 import java.util.Vector;
 import java.util.Hashtable;
 import java.util.Iterator;
@@ -43,7 +39,6 @@ import java.util.Iterator;
 public class ValidateWithSCH extends DefaultStep {
     private static final QName _assert_valid = new QName("", "assert-valid");
     private static final QName _phase = new QName("", "phase");
-    private InputStream  skeleton = null;
     private ReadablePipe source = null;
     private ReadablePipe schema = null;
     private WritablePipe resultPipe = null;
@@ -94,10 +89,6 @@ public class ValidateWithSCH extends DefaultStep {
 
         XdmNode schemaXML = schema.read();
 
-        XsltCompiler compiler;
-        XsltExecutable exec;
-        XdmDestination result;
-
         // From http://www.schematron.com/
         // ...
         // So the basic processing now looks like this:
@@ -107,61 +98,67 @@ public class ValidateWithSCH extends DefaultStep {
         // xslt -stylesheet iso_svrl_for_xsltn.xsl  theSchema2.sch > theSchema.xsl
         // xslt -stylesheet theSchema.xsl  myDocument.xml > myResult.xml
 
-        // It would be nice to load these stylesheets only once, but sometimes (i.e. from RunTest),
-        // there are different controllers involved and you can't do that.
-        XdmNode theSchema1_sch = transform(schemaXML, getSchematronXSLT("iso_dsdl_include.xsl"));
-        XdmNode theSchema2_sch = transform(theSchema1_sch, getSchematronXSLT("iso_abstract_expand.xsl"));
-
-        skeleton = getClass().getResourceAsStream("/etc/schematron/iso_schematron_skeleton_for_saxon.xsl");
-        if (skeleton == null) {
-            throw new UnsupportedOperationException("Failed to load iso_schematron_skeleton_for_saxon.xsl from JAR file.");
-        }
-
-        compiler = runtime.getProcessor().newXsltCompiler();
-        compiler.setSchemaAware(schemaAware);
-        compiler.setURIResolver(new UResolver());
-        exec = compiler.compile(getSchematronXSLT("iso_svrl_for_xslt2.xsl"));
-        XsltTransformer schemaCompiler = exec.load();
+        // The skeleton stylesheets are compiled once for each runtime, and the generated
+        // stylesheet once for each schema, phase and set of parameters.
+        SchematronCache cache = runtime.getSchematronCache();
+        runtime.getConfigurer().getSaxonConfigurer().configSchematron(runtime.getProcessor().getUnderlyingConfiguration());
 
+        String phase = null;
         if (getOption(_phase) != null) {
-            String phase = getOption(_phase).getString();
-            schemaCompiler.setParameter(new QName("","phase"), new XdmAtomicValue(phase));
+            phase = getOption(_phase).getString();
         }
 
+        TreeMap<String,String> paramStrings = new TreeMap<String,String> ();
         for (QName name : params.keySet()) {
-            RuntimeValue v = params.get(name);
-            schemaCompiler.setParameter(name, new XdmAtomicValue(v.getString()));
+            paramStrings.put(name.getClarkName(), params.get(name).getString());
         }
 
-        schemaCompiler.setInitialContextNode(theSchema2_sch);
-        result = new XdmDestination();
-        schemaCompiler.setDestination(result);
+        String key = schemaAware + "\u0000" + schemaXML.getBaseURI() + "\u0000" + S9apiUtils.digest(schemaXML)
+                + "\u0000" + phase + "\u0000" + paramStrings;
 
-        runtime.getConfigurer().getSaxonConfigurer().configSchematron(schemaCompiler.getUnderlyingController().getConfiguration());
+        XsltExecutable exec = cache.getValidator(key);
+        if (exec == null) {
+            XdmNode theSchema1_sch = transform(schemaXML, cache.getStage("iso_dsdl_include.xsl", schemaAware));
+            XdmNode theSchema2_sch = transform(theSchema1_sch, cache.getStage("iso_abstract_expand.xsl", schemaAware));
 
-        schemaCompiler.transform();
+            XsltTransformer schemaCompiler = cache.getStage("iso_svrl_for_xslt2.xsl", schemaAware).load();
 
-        XdmNode compiledSchema = result.getXdmNode();
-        XdmNode compiledRoot = S9apiUtils.getDocumentElement(compiledSchema);
-        
-        if (compiledRoot == null) {
-            XdmNode schemaRoot = S9apiUtils.getDocumentElement(schemaXML);
-            String root = schemaRoot == null ? "null" : schemaRoot.getNodeName().toString();
-            throw new XProcException("p:validate-with-schematron failed to compile provided schema: " + root);
-        }
+            if (phase != null) {
+                schemaCompiler.setParameter(new QName("","phase"), new XdmAtomicValue(phase));
+            }
+
+            for (QName name : params.keySet()) {
+                RuntimeValue v = params.get(name);
+                schemaCompiler.setParameter(name, new XdmAtomicValue(v.getString()));
+            }
 
-        XsltTransformer transformer;
+            schemaCompiler.setInitialContextNode(theSchema2_sch);
+            XdmDestination result = new XdmDestination();
+            schemaCompiler.setDestination(result);
+            schemaCompiler.transform();
+
+            XdmNode compiledSchema = result.getXdmNode();
+            XdmNode compiledRoot = S9apiUtils.getDocumentElement(compiledSchema);
+
+            if (compiledRoot == null) {
+                XdmNode schemaRoot = S9apiUtils.getDocumentElement(schemaXML);
+                String root = schemaRoot == null ? "null" : schemaRoot.getNodeName().toString();
+                throw new XProcException("p:validate-with-schematron failed to compile provided schema: " + root);
+            }
 
-        compiler = runtime.getProcessor().newXsltCompiler();
-        compiler.setSchemaAware(schemaAware);
-        exec = compiler.compile(compiledSchema.asSource());
-        transformer = exec.load();
+            XsltCompiler compiler = runtime.getProcessor().newXsltCompiler();
+            compiler.setSchemaAware(schemaAware);
+            exec = compiler.compile(compiledSchema.asSource());
+            cache.putValidator(key, exec);
+        }
+
+        XsltTransformer transformer = exec.load();
 	    for (QName name : params.keySet()) {
              RuntimeValue v = params.get(name);
              transformer.setParameter(name, v.getUntypedAtomic(runtime));
         }        
         transformer.setInitialContextNode(sourceXML);
-        result = new XdmDestination();
+        XdmDestination result = new XdmDestination();
         transformer.setDestination(result);
         transformer.transform();
 
@@ -232,32 +229,8 @@ public class ValidateWithSCH extends DefaultStep {
         return results.size() != 0;
     }
 
-    private class UResolver implements URIResolver {
-
-        public Source resolve(String href, String base) throws TransformerException {
-            if ("iso_schematron_skeleton_for_saxon.xsl".equals(href)) {
-                return new SAXSource(new InputSource(skeleton));
-            } else {
-                throw new XProcException(step.getNode(), "Failed to resolve " + href + " from JAR file.");
-            }
-        }
-    }
-
-    private SAXSource getSchematronXSLT(String xslt) {
-        InputStream instream = getClass().getResourceAsStream("/etc/schematron/" + xslt);
-        if (instream == null) {
-            throw new UnsupportedOperationException("Failed to load " + xslt + " from JAR file.");
-        }
-
-        return new SAXSource(new InputSource(instream));
-    }
-
-    private XdmNode transform(XdmNode source, SAXSource stylesheet) throws SaxonApiException {
-        XsltCompiler compiler = runtime.getProcessor().newXsltCompiler();
-        compiler.setSchemaAware(schemaAware);
-        compiler.setURIResolver(new UResolver());
-        XsltExecutable exec = compiler.compile(stylesheet);
-        XsltTransformer schemaCompiler = exec.load();
+    private XdmNode transform(XdmNode source, XsltExecutable stylesheet) throws SaxonApiException {
+        XsltTransformer schemaCompiler = stylesheet.load();
 
         schemaCompiler.setInitialContextNode(source);
         XdmDestination result = new XdmDestination();
@@ -28,10 +28,11 @@ import com.xmlcalabash.io.ReadablePipe;
 import com.xmlcalabash.io.WritablePipe;
 import com.xmlcalabash.util.MessageFormatter;
 import com.xmlcalabash.util.S9apiUtils;
+import com.xmlcalabash.util.SchemaCache;
 import com.xmlcalabash.util.TreeWriter;
+import com.xmlcalabash.util.XsdCache;
 import net.sf.saxon.Configuration;
 import org.xml.sax.ErrorHandler;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import net.sf.saxon.s9api.QName;
@@ -53,7 +54,6 @@ import com.xmlcalabash.runtime.XAtomicStep;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.SourceLocator;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.Source;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Schema;
@@ -125,44 +125,24 @@ public class ValidateWithXSD extends DefaultStep {
         }
     }
 
-    public void validateWithSaxonSA(SchemaManager manager) throws SaxonApiException {
+    public void validateWithSaxonSA(final SchemaManager manager) throws SaxonApiException {
         logger.trace(MessageFormatter.nodeMessage(step.getNode(), "Validating with Saxon"));
 
-        String xsdVersion = step.getExtensionAttribute(cx_version);
-        if (xsdVersion != null) {
-            manager.setXsdVersion(xsdVersion);
-        }
+        final String xsdVersion = step.getExtensionAttribute(cx_version);
 
-        Configuration config = runtime.getProcessor().getUnderlyingConfiguration();
+        final Configuration config = runtime.getProcessor().getUnderlyingConfiguration();
 
         runtime.getConfigurer().getSaxonConfigurer().configXSD(config);
 
-        // Saxon 9.2.0.4j introduces a clearSchemaCache method on Configuration.
-        // Call it if it's available.
-        try {
-            Method clearSchemaCache = config.getClass().getMethod("clearSchemaCache", paramTypes);
-            clearSchemaCache.invoke(config);
-            logger.trace(MessageFormatter.nodeMessage(step.getNode(), "Cleared schema cache."));
-        } catch (NoSuchMethodException nsme) {
-            // nop; oh, well
-            logger.debug(MessageFormatter.nodeMessage(step.getNode(), "Cannot reset schema cache."));
-        } catch (IllegalAccessException nsme) {
-            // nop; oh, well
-            logger.debug(MessageFormatter.nodeMessage(step.getNode(), "Cannot reset schema cache."));
-        } catch (InvocationTargetException nsme) {
-            // nop; oh, well
-            logger.debug(MessageFormatter.nodeMessage(step.getNode(), "Cannot reset schema cache."));
-        }
-
-        XdmNode doc = source.read();
+        final XdmNode doc = source.read();
         docBaseURI = doc.getBaseURI();
 
-        String namespace = S9apiUtils.getDocumentElement(doc).getNodeName().getNamespaceURI();
+        final String namespace = S9apiUtils.getDocumentElement(doc).getNodeName().getNamespaceURI();
         boolean tryNamespaces = getOption(_try_namespaces, false) && !"".equals(namespace);
 
         // Populate the URI cache so that URI references in schema documents will find
         // the schemas provided preferentially
-        Vector<XdmNode> schemaDocuments = new Vector<XdmNode> ();
+        final Vector<XdmNode> schemaDocuments = new Vector<XdmNode> ();
         while (schemas.moreDocuments()) {
             XdmNode schemaNode = schemas.read();
             String targetNS = schemaNode.getBaseURI().toASCIIString();
@@ -174,26 +154,64 @@ public class ValidateWithXSD extends DefaultStep {
             runtime.getResolver().cache(schemaNode, schemaNode.getBaseURI());
         }
 
-        if (tryNamespaces) {
-            // Need to load one more schema
-            try {
-                XdmNode nsSchemaDoc = runtime.parse(namespace, doc.getBaseURI().toASCIIString(), false);
-                schemaDocuments.add(nsSchemaDoc);
-                runtime.getResolver().cache(nsSchemaDoc, nsSchemaDoc.getBaseURI());
-            } catch (Exception e) {
-                // nevermind
+        // The schema for the namespace is only read if the schemas have to be loaded again
+        final boolean loadNamespace = tryNamespaces;
+        String key = SchemaCache.key(schemaDocuments, "saxon " + xsdVersion + (tryNamespaces ? " " + namespace : ""));
+
+        // The XSD version is part of the configuration too, so only the loader sets it,
+        // under the cache's write lock
+        XsdCache cache = runtime.getConfiguration().getXsdCache();
+        cache.lockSaxonSchemas(key, new XsdCache.SchemaLoader() {
+            public void load() throws SaxonApiException {
+                clearSchemaCache(config);
+                if (xsdVersion != null) {
+                    manager.setXsdVersion(xsdVersion);
+                }
+
+                Vector<XdmNode> loadDocuments = new Vector<XdmNode> (schemaDocuments);
+                if (loadNamespace) {
+                    // Need to load one more schema
+                    try {
+                        XdmNode nsSchemaDoc = runtime.parse(namespace, doc.getBaseURI().toASCIIString(), false);
+                        loadDocuments.add(nsSchemaDoc);
+                        runtime.getResolver().cache(nsSchemaDoc, nsSchemaDoc.getBaseURI());
+                    } catch (Exception e) {
+                        // nevermind
+                    }
+                }
+
+                // FIXME: HACK! Do this the right way
+                for (XdmNode schemaNode : loadDocuments) {
+                    manager.load(S9apiUtils.xdmToSAXSource(runtime, schemaNode));
+                }
+            }
+
+            public void importComponents(XdmNode components) throws SaxonApiException {
+                clearSchemaCache(config);
+                if (xsdVersion != null) {
+                    manager.setXsdVersion(xsdVersion);
+                }
+                manager.importComponents(components.asSource());
             }
-        }
 
+            public XdmNode exportComponents() throws SaxonApiException {
+                XdmDestination destination = new XdmDestination();
+                manager.exportComponents(destination);
+                return destination.getXdmNode();
+            }
+        });
 
-        // FIXME: HACK! Do this the right way
-        for (XdmNode schemaNode : schemaDocuments) {
-            InputSource schemaSource = S9apiUtils.xdmToInputSource(runtime, schemaNode);
-            schemaSource.setSystemId(schemaNode.getBaseURI().toASCIIString());
-            SAXSource source = new SAXSource(schemaSource);
-            manager.load(source);
+        // Writing the result can wait for a reader, so it mustn't hold the lock
+        XdmNode valid = null;
+        try {
+            valid = validateWithSaxonSA(manager, config, doc);
+        } finally {
+            cache.unlockSaxonSchemas();
         }
+        result.write(valid);
+    }
 
+    private XdmNode validateWithSaxonSA(SchemaManager manager, Configuration config, XdmNode doc) throws SaxonApiException {
         XdmDestination destination = new XdmDestination();
         Controller controller = new Controller(config);
         Receiver receiver = destination.getReceiver(controller.getConfiguration());
@@ -225,8 +243,26 @@ public class ValidateWithXSD extends DefaultStep {
             }
         }
         
-        XdmNode valid = destination.getXdmNode();
-        result.write(valid);
+        return destination.getXdmNode();
+    }
+
+    private void clearSchemaCache(Configuration config) {
+        // Saxon 9.2.0.4j introduces a clearSchemaCache method on Configuration.
+        // Call it if it's available.
+        try {
+            Method clearSchemaCache = config.getClass().getMethod("clearSchemaCache", paramTypes);
+            clearSchemaCache.invoke(config);
+            logger.trace(MessageFormatter.nodeMessage(step.getNode(), "Cleared schema cache."));
+        } catch (NoSuchMethodException nsme) {
+            // nop; oh, well
+            logger.debug(MessageFormatter.nodeMessage(step.getNode(), "Cannot reset schema cache."));
+        } catch (IllegalAccessException nsme) {
+            // nop; oh, well
+            logger.debug(MessageFormatter.nodeMessage(step.getNode(), "Cannot reset schema cache."));
+        } catch (InvocationTargetException nsme) {
+            // nop; oh, well
+            logger.debug(MessageFormatter.nodeMessage(step.getNode(), "Cannot reset schema cache."));
+        }
     }
 
     private void validateWithXerces() throws SaxonApiException {
@@ -243,22 +279,25 @@ public class ValidateWithXSD extends DefaultStep {
         docBaseURI = doc.getBaseURI();
 
         try {
-            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-
-            runtime.getConfigurer().getJaxpConfigurer().configSchemaFactory(factory);
+            // Schema objects are thread safe, so one compiled schema serves every validation
+            XsdCache cache = runtime.getConfiguration().getXsdCache();
+            String key = SchemaCache.key(schemaDocuments, "xerces");
+            Schema schema = cache.getSchema(key);
+            if (schema == null) {
+                SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+
+                runtime.getConfigurer().getJaxpConfigurer().configSchemaFactory(factory);
+
+                XdmNode schemaNode = schemaDocuments.get(0);
+                schema = factory.newSchema(S9apiUtils.xdmToSAXSource(runtime, schemaNode));
+                cache.putSchema(key, schema);
+            }
 
-            XdmNode schemaNode = schemaDocuments.get(0);
-            InputSource is = S9apiUtils.xdmToInputSource(runtime, schemaNode);
-            is.setSystemId(schemaNode.getBaseURI().toASCIIString());
-            Schema schema = factory.newSchema(new SAXSource(is));
             Validator validator = schema.newValidator();
             validator.setErrorHandler(new XSDErrorHandler());
 
-            InputSource docSource = S9apiUtils.xdmToInputSource(runtime, doc);
-            docSource.setSystemId(doc.getBaseURI().toASCIIString());
-
             try {
-                validator.validate(new SAXSource(docSource));
+                validator.validate(S9apiUtils.xdmToSAXSource(runtime, doc));
                 if (validationException != null) {
                     throw (SAXParseException) validationException;
                 }
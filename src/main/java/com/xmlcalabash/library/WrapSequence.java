@@ -127,12 +127,8 @@ public class WrapSequence extends DefaultStep {
         String last = null;
         boolean open = false;
 
-        int count = 0;
-        while (source.moreDocuments()) {
-            count++;
-            source.read();
-        }
-        source.resetReader();
+        // The expression may use last(), so the documents can't be grouped as they arrive
+        int count = source.documentCount();
 
         DocumentSequenceIterator xsi = new DocumentSequenceIterator(); // See below
         xsi.setLast(count);
@@ -30,12 +30,12 @@ import com.xmlcalabash.model.RuntimeValue;
 import com.xmlcalabash.core.XProcException;
 import com.xmlcalabash.core.XProcRuntime;
 import com.xmlcalabash.core.XProcConstants;
-import net.sf.saxon.lib.CollectionURIResolver;
 import net.sf.saxon.s9api.*;
 import net.sf.saxon.Configuration;
 import com.xmlcalabash.runtime.XAtomicStep;
 import com.xmlcalabash.util.TreeWriter;
 import com.xmlcalabash.util.CollectionResolver;
+import com.xmlcalabash.util.ThreadCollectionResolver;
 import com.xmlcalabash.util.Base64;
 import com.xmlcalabash.util.S9apiUtils;
 
@@ -113,16 +113,15 @@ public class XQuery extends DefaultStep {
 
         runtime.getConfigurer().getSaxonConfigurer().configXQuery(config);
 
-        CollectionURIResolver collectionResolver = config.getCollectionURIResolver();
-
-        config.setCollectionURIResolver(new CollectionResolver(runtime, defaultCollection, collectionResolver));
+        // The default collection is registered for this thread, which is the one that
+        // evaluates the query.
+        ThreadCollectionResolver collectionResolver = ThreadCollectionResolver.getInstance(config);
+        collectionResolver.register(
+                new CollectionResolver(runtime, defaultCollection, collectionResolver.getChainedResolver()));
 
         try {
-            Processor qtproc = runtime.getProcessor();
-            XQueryCompiler xqcomp = qtproc.newXQueryCompiler();
-            xqcomp.setBaseURI(root.getBaseURI());
-            xqcomp.setModuleURIResolver(runtime.getResolver());
-            XQueryExecutable xqexec = xqcomp.compile(queryString);
+            XQueryExecutable xqexec = runtime.getXQueryCache().compile(queryString, root.getBaseURI(),
+                    new Hashtable<String,String> ());
             XQueryEvaluator xqeval = xqexec.load();
             if (document != null) {
                 xqeval.setContextItem(document);
@@ -196,7 +195,7 @@ public class XQuery extends DefaultStep {
                 result.write(node);
             }
         } finally {
-            config.setCollectionURIResolver(collectionResolver);
+            collectionResolver.unregister();
         }
     }
 }
@@ -31,7 +31,6 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.sax.SAXSource;
 
 import com.xmlcalabash.core.XMLCalabash;
 import com.xmlcalabash.core.XProcException;
@@ -43,9 +42,10 @@ import com.xmlcalabash.model.RuntimeValue;
 import com.xmlcalabash.util.MessageFormatter;
 import com.xmlcalabash.util.TreeWriter;
 import com.xmlcalabash.util.CollectionResolver;
+import com.xmlcalabash.util.ThreadCollectionResolver;
 import com.xmlcalabash.util.S9apiUtils;
 import net.sf.saxon.Configuration;
-import net.sf.saxon.lib.CollectionURIResolver;
+import net.sf.saxon.Controller;
 import net.sf.saxon.lib.OutputURIResolver;
 import net.sf.saxon.lib.UnparsedTextURIResolver;
 import net.sf.saxon.s9api.DocumentBuilder;
@@ -54,7 +54,6 @@ import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XdmDestination;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
-import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.s9api.XsltExecutable;
 import net.sf.saxon.s9api.XsltTransformer;
 import net.sf.saxon.s9api.XdmAtomicValue;
@@ -63,7 +62,6 @@ import net.sf.saxon.s9api.ValidationMode;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.event.Receiver;
 import com.xmlcalabash.runtime.XAtomicStep;
-import org.xml.sax.InputSource;
 
 /**
  *
@@ -192,60 +190,58 @@ public class XSLT extends DefaultStep {
 
         runtime.getConfigurer().getSaxonConfigurer().configXSLT(config);
 
-        OutputURIResolver uriResolver = config.getOutputURIResolver();
-        CollectionURIResolver collectionResolver = config.getCollectionURIResolver();
+        ThreadCollectionResolver collectionResolver = ThreadCollectionResolver.getInstance(config);
         UnparsedTextURIResolver unparsedTextURIResolver = runtime.getResolver();
 
-        config.setOutputURIResolver(new OutputResolver());
-        config.setCollectionURIResolver(new CollectionResolver(runtime, defaultCollection, collectionResolver));
-
-        XdmDestination result = null;
-        try {
-            XsltCompiler compiler = runtime.getProcessor().newXsltCompiler();
-            compiler.setSchemaAware(processor.isSchemaAware());
-            XsltExecutable exec = compiler.compile(stylesheet.asSource());
-            XsltTransformer transformer = exec.load();
-
-            for (QName name : params.keySet()) {
-                RuntimeValue v = params.get(name);
-                if (runtime.getAllowGeneralExpressions()) {
-                    transformer.setParameter(name, v.getValue());
-                } else {
-                    transformer.setParameter(name, v.getUntypedAtomic(runtime));
-                }
+        // The resolvers are specific to this transformation, the configuration is left alone
+        // so that transformations on other threads aren't affected.
+        XsltExecutable exec = runtime.getXsltCache().compile(stylesheet);
+        XsltTransformer transformer = exec.load();
+        Controller controller = transformer.getUnderlyingController();
+        controller.setOutputURIResolver(new OutputResolver());
+
+        for (QName name : params.keySet()) {
+            RuntimeValue v = params.get(name);
+            if (runtime.getAllowGeneralExpressions()) {
+                transformer.setParameter(name, v.getValue());
+            } else {
+                transformer.setParameter(name, v.getUntypedAtomic(runtime));
             }
+        }
 
-            if (document != null) {
-                transformer.setInitialContextNode(document);
-            }
-            transformer.setMessageListener(new CatchMessages());
-            result = new XdmDestination();
-            transformer.setDestination(result);
+        if (document != null) {
+            transformer.setInitialContextNode(document);
+        }
+        transformer.setMessageListener(new CatchMessages());
+        XdmDestination result = new XdmDestination();
+        transformer.setDestination(result);
 
-            if (initialMode != null) {
-                transformer.setInitialMode(initialMode);
-            }
+        if (initialMode != null) {
+            transformer.setInitialMode(initialMode);
+        }
 
-            if (templateName != null) {
-                transformer.setInitialTemplate(templateName);
-            }
+        if (templateName != null) {
+            transformer.setInitialTemplate(templateName);
+        }
 
-            if (outputBaseURI != null) {
-                transformer.setBaseOutputURI(outputBaseURI);
-                // The following hack works around https://saxonica.plan.io/issues/1724
-                try {
-                    result.setBaseURI(new URI(outputBaseURI));
-                } catch (URISyntaxException use) {
-                    // whatever
-                }
+        if (outputBaseURI != null) {
+            transformer.setBaseOutputURI(outputBaseURI);
+            // The following hack works around https://saxonica.plan.io/issues/1724
+            try {
+                result.setBaseURI(new URI(outputBaseURI));
+            } catch (URISyntaxException use) {
+                // whatever
             }
+        }
 
-            transformer.setSchemaValidationMode(ValidationMode.DEFAULT);
-            transformer.getUnderlyingController().setUnparsedTextURIResolver(unparsedTextURIResolver);
+        transformer.setSchemaValidationMode(ValidationMode.DEFAULT);
+        controller.setUnparsedTextURIResolver(unparsedTextURIResolver);
+        collectionResolver.register(
+                new CollectionResolver(runtime, defaultCollection, collectionResolver.getChainedResolver()));
+        try {
             transformer.transform();
         } finally {
-            config.setOutputURIResolver(uriResolver);
-            config.setCollectionURIResolver(collectionResolver);
+            collectionResolver.unregister();
         }
 
         XdmNode xformed = result.getXdmNode();
@@ -299,10 +295,8 @@ public class XSLT extends DefaultStep {
     
     public void run10(XdmNode stylesheet, XdmNode document) {
         try {
-            InputSource is = S9apiUtils.xdmToInputSource(runtime, stylesheet);
-            
             TransformerFactory tfactory = TransformerFactory.newInstance();
-            Transformer transformer = tfactory.newTransformer(new SAXSource(is));
+            Transformer transformer = tfactory.newTransformer(S9apiUtils.xdmToSAXSource(runtime, stylesheet));
 
             transformer.setURIResolver(runtime.getResolver());
 
@@ -312,8 +306,7 @@ public class XSLT extends DefaultStep {
             }
 
             DOMResult result = new DOMResult();
-            is = S9apiUtils.xdmToInputSource(runtime, document);
-            transformer.transform(new SAXSource(is), result);
+            transformer.transform(S9apiUtils.xdmToSAXSource(runtime, document), result);
 
             DocumentBuilder xdmBuilder = runtime.getConfiguration().getProcessor().newDocumentBuilder();
             XdmNode xformed = xdmBuilder.build(new DOMSource(result.getNode()));
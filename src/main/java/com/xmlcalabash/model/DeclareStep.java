@@ -298,6 +298,31 @@ public class DeclareStep extends CompoundStep {
         }
     }
 
+    /**
+     * Sets up the declarations of the pipelines that this one calls, and of the ones they call,
+     * so that running the pipeline doesn't change the model.
+     */
+    public void setupCalledPipelines() {
+        HashSet<DeclareStep> done = new HashSet<DeclareStep> ();
+        done.add(this);
+        setupCalledPipelines(this, done);
+    }
+
+    private void setupCalledPipelines(Step step, HashSet<DeclareStep> done) {
+        for (Step substep : step.subpipeline()) {
+            if (substep instanceof CompoundStep) {
+                setupCalledPipelines(substep, done);
+            } else if (substep.isPipelineCall() && done.add(substep.getDeclaration())) {
+                DeclareStep decl = substep.getDeclaration();
+                decl.setup();
+                if (runtime.getErrorCode() != null) {
+                    throw new XProcException(runtime.getErrorCode(), runtime.getErrorMessage());
+                }
+                setupCalledPipelines(decl, done);
+            }
+        }
+    }
+
     protected boolean checkOutputBindings() {
         HashSet<Output> uboutputs = new HashSet<Output> ();
 
@@ -70,6 +70,8 @@ public class Parser {
     private boolean loadingStandardLibrary = false;
     private Logger logger = LoggerFactory.getLogger(Parser.class);
     private static int importCount = 0;
+    // The documents that have been read, so that a compiled pipeline can tell if it's out of date
+    private Vector<URI> loadedDocuments = new Vector<URI> ();
 
     public Parser(XProcRuntime runtime) {
         this.runtime = runtime;
@@ -100,6 +102,7 @@ public class Parser {
 
     public DeclareStep loadPipeline(String uri, String base) throws SaxonApiException {
         XdmNode doc = runtime.parse(uri, base);
+        loadedDocuments.add(doc.getBaseURI());
         return loadPipeline(doc);
     }
 
@@ -125,6 +128,14 @@ public class Parser {
 
 
     public PipelineLibrary loadStandardLibrary() throws FileNotFoundException, URISyntaxException, SaxonApiException {
+        return loadStandardLibrary(parseStandardLibrary());
+    }
+
+    /**
+     * Parses the standard library document. The document doesn't belong to any runtime, so
+     * it can be parsed once and passed to loadStandardLibrary(XdmNode) by every runtime.
+     */
+    public XdmNode parseStandardLibrary() throws FileNotFoundException, URISyntaxException, SaxonApiException {
         URI home = URIUtils.homeAsURI();
         URI cwd = URIUtils.cwdAsURI();
         URI puri = home;
@@ -134,7 +145,10 @@ public class Parser {
             throw new UnsupportedOperationException("Failed to load standard pipeline library from JAR file");
         }
 
-        XdmNode doc = parse(instream, puri);
+        return parse(instream, puri);
+    }
+
+    public PipelineLibrary loadStandardLibrary(XdmNode doc) {
         XdmNode root = S9apiUtils.getDocumentElement(doc);
 
         if (!XProcConstants.p_library.equals(root.getNodeName())) {
@@ -148,6 +162,14 @@ public class Parser {
         return library;
     }
 
+    /**
+     * Returns the URIs of the pipelines, libraries and function modules that this parser has
+     * read from URIs. Documents read from input streams aren't included.
+     */
+    public Vector<URI> getLoadedDocuments() {
+        return loadedDocuments;
+    }
+
     private XdmNode loadExtensionLibrary() throws FileNotFoundException, URISyntaxException, SaxonApiException {
         URI home = URIUtils.homeAsURI();
         URI puri = home;
@@ -189,6 +211,7 @@ public class Parser {
 
     public PipelineLibrary loadLibrary(String libraryURI) throws SaxonApiException {
         XdmNode doc = runtime.parse(libraryURI, URIUtils.cwdAsURI().toASCIIString());
+        loadedDocuments.add(doc.getBaseURI());
         XdmNode root = S9apiUtils.getDocumentElement(doc);
         return useLibrary(root);
     }
@@ -1509,6 +1532,9 @@ public class Parser {
         }
 
         //System.err.println("BASE: " + doc.getBaseURI());
+        if (!importURI.toASCIIString().equals(XProcConstants.CALABASH_EXTENSION_LIBRARY_1_0)) {
+            loadedDocuments.add(doc.getBaseURI());
+        }
         importURI = doc.getBaseURI();
 
         XdmNode root = S9apiUtils.getDocumentElement(doc);
@@ -1897,7 +1923,9 @@ public class Parser {
         }
 
         try {
-            URL url = runtime.getStaticBaseURI().resolve(href).toURL();
+            URI uri = runtime.getStaticBaseURI().resolve(href);
+            loadedDocuments.add(uri);
+            URL url = uri.toURL();
             URLConnection connection = url.openConnection();
             FunctionLibrary fl = null;
 
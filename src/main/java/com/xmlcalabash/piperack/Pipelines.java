@@ -4,7 +4,6 @@ import com.xmlcalabash.core.XProcException;
 import com.xmlcalabash.core.XProcRuntime;
 import com.xmlcalabash.runtime.XPipeline;
 import com.xmlcalabash.util.TreeWriter;
-import net.sf.saxon.s9api.XdmNode;
 import org.restlet.Request;
 import org.restlet.data.Form;
 import org.restlet.data.MediaType;
@@ -15,7 +14,6 @@ import org.restlet.representation.Representation;
 import org.restlet.representation.StringRepresentation;
 import org.restlet.representation.Variant;
 import org.restlet.util.Series;
-import org.xml.sax.InputSource;
 
 import java.net.URI;
 import java.text.SimpleDateFormat;
@@ -101,12 +99,8 @@ public class Pipelines extends BaseResource {
         XProcRuntime runtime = new XProcRuntime(getConfiguration());
 
         try {
-            InputSource is = new InputSource(entity.getStream());
             String base = getHostRef().toString();
-            is.setSystemId(base + "/" + name);
-
-            XdmNode doc = runtime.parse(is);
-            XPipeline pipeline = runtime.use(doc);
+            XPipeline pipeline = runtime.load(new com.xmlcalabash.util.Input(entity.getStream(), base + "/" + name));
             getPipelines().put(id, new PipelineConfiguration(runtime, pipeline, expires));
         } catch (Exception e) {
             throw new XProcException(e);
@@ -145,8 +145,8 @@ public class PiperackApplication extends Application {
         XProcRuntime runtime = new XProcRuntime(getConfiguration());
 
         try {
-            XdmNode doc = runtime.parse(uri, runtime.getStaticBaseURI().toASCIIString());
-            XPipeline pipeline = runtime.use(doc);
+            // Loading the pipeline by URI lets the runtime use the configuration's pipeline cache
+            XPipeline pipeline = runtime.load(new com.xmlcalabash.util.Input(uri));
             getPipelines().put(id, new PipelineConfiguration(runtime, pipeline, expires));
         } catch (Exception e) {
             throw new XProcException(e);
@@ -0,0 +1,264 @@
+package com.xmlcalabash.runtime;
+
+import com.xmlcalabash.core.InvocationContext;
+import com.xmlcalabash.core.XProcData;
+import com.xmlcalabash.core.XProcException;
+import com.xmlcalabash.core.XProcRuntime;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import java.util.Stack;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the iterations of a p:for-each or p:viewport concurrently.
+ *
+ * <p>Each worker is a private, detached copy of the compound step with its own instance of
+ * the subpipeline, so iterations don't share pipes. The workers take iterations in order from
+ * a shared counter and each one runs in its own data frame, so p:iteration-position() and
+ * p:iteration-size() are correct. If an iteration fails, no new iterations are started and,
+ * once the workers have finished, the error from the earliest failing iteration is thrown.</p>
+ *
+ * <p>Results are handed to a Receiver on the calling thread, in iteration order, as soon as
+ * each one and all of the ones before it are available. The workers never get more than
+ * WINDOW iterations per worker ahead of the receiver, so a slow iteration holds up the ones
+ * after it instead of letting their results pile up.</p>
+ *
+ * <p>The workers normally run on the runtime's bounded pool. Iterations that mostly wait for
+ * I/O (cx:async) can be given the streaming pool instead, so that there can be more of them
+ * than there are processors.</p>
+ */
+public class IterationRunner {
+    private static final int WINDOW = 2;
+
+    public interface Body {
+        /**
+         * Runs the subpipeline over one item and returns whatever the caller needs
+         * to assemble the results.
+         */
+        public Object iterate(XdmNode node, int position) throws SaxonApiException;
+    }
+
+    public interface Receiver {
+        /**
+         * Receives the result of the next iteration.
+         */
+        public void receive(Object result) throws SaxonApiException;
+    }
+
+    private XProcRuntime runtime = null;
+    private Vector<? extends XCompoundStep> workers = null;
+    private ExecutorService executor = null;
+
+    public IterationRunner(XProcRuntime runtime, Vector<? extends XCompoundStep> workers) {
+        this(runtime, workers, runtime.getExecutor());
+    }
+
+    public IterationRunner(XProcRuntime runtime, Vector<? extends XCompoundStep> workers, ExecutorService executor) {
+        this.runtime = runtime;
+        this.workers = workers;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the result of each iteration, in iteration order.
+     */
+    public Vector<Object> run(Vector<XdmNode> nodes) throws SaxonApiException {
+        final Vector<Object> results = new Vector<Object> ();
+        run(nodes, new Receiver() {
+            public void receive(Object result) {
+                results.add(result);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Passes the result of each iteration to the receiver, in iteration order.
+     */
+    public void run(final Vector<XdmNode> nodes, Receiver receiver) throws SaxonApiException {
+        final int count = nodes.size();
+        final Progress progress = new Progress(count, WINDOW * workers.size());
+        final Stack<?> frames = runtime.getXProcData().getFrames();
+        final Stack<XStep> running = runtime.getRunningSteps();
+        final InvocationContext invocation = runtime.getInvocation();
+
+        Vector<Future<?>> futures = new Vector<Future<?>> ();
+        for (int pos = 0; pos < Math.min(count, workers.size()); pos++) {
+            final XCompoundStep worker = workers.get(pos);
+            progress.started();
+            Callable<Object> task = new Callable<Object>() {
+                public Object call() throws InterruptedException {
+                    XProcData data = runtime.getXProcData();
+                    Stack<?> savedFrames = data.setFrames(frames);
+                    Stack<XStep> savedRunning = runtime.setRunningSteps(running);
+                    InvocationContext savedInvocation = runtime.setInvocation(invocation);
+                    data.openFrame(worker);
+                    try {
+                        data.setIterationSize(count);
+                        int iter = progress.take();
+                        while (iter >= 0) {
+                            try {
+                                progress.done(iter, ((Body) worker).iterate(nodes.get(iter), iter + 1), null);
+                            } catch (Throwable t) {
+                                progress.done(iter, null, t);
+                            }
+                            iter = progress.take();
+                        }
+                    } finally {
+                        data.closeFrame();
+                        data.setFrames(savedFrames);
+                        runtime.setRunningSteps(savedRunning);
+                        runtime.setInvocation(savedInvocation);
+                        progress.finished();
+                    }
+                    return null;
+                }
+            };
+            try {
+                futures.add(executor.submit(task));
+            } catch (RuntimeException re) {
+                progress.finished();
+                progress.stop();
+                throw re;
+            }
+        }
+
+        Throwable failure = null;
+        int delivered = 0;
+        try {
+            while (delivered < count && failure == null && progress.await(delivered)) {
+                failure = progress.failure(delivered);
+                if (failure == null) {
+                    receiver.receive(progress.result(delivered));
+                    delivered++;
+                    progress.delivered(delivered);
+                }
+            }
+        } catch (Throwable t) {
+            failure = t;
+        }
+
+        // If the results weren't all delivered, don't start any more iterations
+        progress.stop();
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException ie) {
+                if (failure == null) {
+                    failure = ie;
+                }
+            } catch (ExecutionException ee) {
+                if (failure == null) {
+                    failure = ee.getCause();
+                }
+            }
+        }
+
+        if (failure == null && delivered < count) {
+            failure = new XProcException("Iteration " + (delivered + 1) + " of " + count + " was never run");
+        }
+
+        if (failure != null) {
+            if (failure instanceof SaxonApiException) {
+                throw (SaxonApiException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            } else {
+                throw new XProcException(failure);
+            }
+        }
+    }
+
+    // Which iterations have been started, finished and delivered
+    private static class Progress {
+        private int count = 0;
+        private int window = 0;
+        private int next = 0;
+        private int delivered = 0;
+        private int active = 0;
+        private boolean stopped = false;
+        // The thread that receives the results
+        private Thread receiver = Thread.currentThread();
+        private Object[] results = null;
+        private Throwable[] failures = null;
+        private boolean[] done = null;
+
+        private Progress(int count, int window) {
+            this.count = count;
+            this.window = window;
+            results = new Object[count];
+            failures = new Throwable[count];
+            done = new boolean[count];
+        }
+
+        /*
+         * Returns the next iteration to run, or -1 if there are no more. A worker that the
+         * executor runs on the receiving thread (SameThreadExecutor, CallerRunsPolicy) can't
+         * wait for results to be received, so it doesn't.
+         */
+        private synchronized int take() throws InterruptedException {
+            while (!stopped && next < count && next >= delivered + window && Thread.currentThread() != receiver) {
+                wait();
+            }
+            if (stopped || next >= count) {
+                return -1;
+            }
+            return next++;
+        }
+
+        private synchronized void done(int iter, Object result, Throwable failure) {
+            results[iter] = result;
+            failures[iter] = failure;
+            done[iter] = true;
+            if (failure != null) {
+                stopped = true;
+            }
+            notifyAll();
+        }
+
+        private synchronized void started() {
+            active++;
+        }
+
+        private synchronized void finished() {
+            active--;
+            notifyAll();
+        }
+
+        // Waits for an iteration to finish; returns false if the workers stopped without running it
+        private synchronized boolean await(int iter) throws InterruptedException {
+            while (!done[iter] && active > 0) {
+                wait();
+            }
+            return done[iter];
+        }
+
+        // Returns the result of an iteration, and forgets it
+        private synchronized Object result(int iter) {
+            Object result = results[iter];
+            results[iter] = null;
+            return result;
+        }
+
+        private synchronized Throwable failure(int iter) {
+            return failures[iter];
+        }
+
+        private synchronized void delivered(int count) {
+            delivered = count;
+            notifyAll();
+        }
+
+        private synchronized void stop() {
+            stopped = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.xmlcalabash.runtime;
+
+import com.xmlcalabash.core.InvocationContext;
+import com.xmlcalabash.core.XProcConstants;
+import com.xmlcalabash.core.XProcData;
+import com.xmlcalabash.core.XProcException;
+import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.io.DocumentSequence;
+import com.xmlcalabash.io.Pipe;
+import com.xmlcalabash.io.ReadablePipe;
+import com.xmlcalabash.io.WritablePipe;
+import net.sf.saxon.s9api.SaxonApiException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Stack;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+
+/**
+ * Runs the steps of a subpipeline as a dataflow graph.
+ *
+ * <p>Each step is submitted to the runtime's worker pool as soon as every sibling step it
+ * depends on (because it reads one of its ports, or names it in cx:depends-on) has finished.
+ * Independent branches therefore run concurrently. If a step fails, no further steps are
+ * started; once the running steps have finished, the error from the step that comes first
+ * in the sequential order is thrown, just as it would have been by the sequential loop.</p>
+ *
+ * <p>A step whose outputs are read by neither a sibling nor the container is assumed to be
+ * there for its side effects (p:store, for example), so it is run in sequential order with
+ * respect to all of its siblings. Other steps that interact only through side effects must be ordered
+ * with cx:depends-on.</p>
+ *
+ * <p>If the runtime has a pipe capacity, the outputs of the steps are streamed: a step that
+ * reads another step's output starts as soon as that step has started, and blocks until the
+ * documents it reads have been written. Ordering dependencies (cx:depends-on and the side
+ * effect rule above) still wait for the earlier step to finish. A pipe is bounded by the
+ * capacity when its reader can't deadlock with its writer; other pipes stream without a
+ * bound.</p>
+ */
+public class StepScheduler {
+    private static Logger logger = LoggerFactory.getLogger(StepScheduler.class);
+    private XProcRuntime runtime = null;
+    private XCompoundStep container = null;
+    private Vector<XStep> steps = null;
+    private boolean streaming = false;
+
+    public StepScheduler(XProcRuntime runtime, XCompoundStep container) {
+        this.runtime = runtime;
+        this.container = container;
+        steps = container.subpipeline;
+        streaming = runtime.getPipeCapacity() > 0;
+    }
+
+    /**
+     * Should the steps be run concurrently? Profiling records a single, nested trace, so
+     * it forces sequential evaluation.
+     */
+    public static boolean parallel(XProcRuntime runtime, Vector<XStep> steps) {
+        return (runtime.getThreadCount() > 1 || runtime.getPipeCapacity() > 0)
+                && runtime.getProfile() == null && steps.size() > 1;
+    }
+
+    public void run() throws SaxonApiException {
+        int count = steps.size();
+
+        HashMap<String,Integer> index = new HashMap<String,Integer> ();
+        for (int pos = 0; pos < count; pos++) {
+            index.put(steps.get(pos).getName(), pos);
+        }
+
+        // A step waits for its "start" predecessors to start and its "finish" predecessors
+        // to finish. Without streaming, every dependency is a finish dependency.
+        int[] waitingStart = new int[count];
+        int[] waitingFinish = new int[count];
+        Vector<Vector<Integer>> startFollowers = new Vector<Vector<Integer>> ();
+        Vector<Vector<Integer>> finishFollowers = new Vector<Vector<Integer>> ();
+        for (int pos = 0; pos < count; pos++) {
+            startFollowers.add(new Vector<Integer> ());
+            finishFollowers.add(new Vector<Integer> ());
+        }
+
+        HashSet<String> consumed = new HashSet<String> (container.getOutputSources());
+        Vector<HashSet<Integer>> dataDeps = new Vector<HashSet<Integer>> ();
+        for (int pos = 0; pos < count; pos++) {
+            XStep step = steps.get(pos);
+            HashSet<String> ordering = new HashSet<String> ();
+            if (streaming) {
+                orderingDependencies(step, ordering);
+            }
+            HashSet<Integer> data = new HashSet<Integer> ();
+            for (String stepName : step.getStep().getDependencies()) {
+                Integer dep = index.get(stepName);
+                if (dep != null && dep != pos) {
+                    if (streaming && !ordering.contains(stepName)) {
+                        startFollowers.get(dep).add(pos);
+                        waitingStart[pos]++;
+                        data.add(dep);
+                    } else {
+                        finishFollowers.get(dep).add(pos);
+                        waitingFinish[pos]++;
+                    }
+                    consumed.add(stepName);
+                }
+            }
+            dataDeps.add(data);
+        }
+
+        for (int pos = 0; pos < count; pos++) {
+            if (!consumed.contains(steps.get(pos).getName())) {
+                for (int other = 0; other < count; other++) {
+                    int first = Math.min(pos, other);
+                    int last = Math.max(pos, other);
+                    if (other != pos && !finishFollowers.get(first).contains(last)
+                            && !dataDeps.get(last).contains(first)) {
+                        finishFollowers.get(first).add(last);
+                        waitingFinish[last]++;
+                    }
+                }
+            }
+        }
+
+        if (streaming) {
+            startStreaming(startFollowers, finishFollowers, dataDeps);
+        }
+
+        Stack<?> frames = runtime.getXProcData().getFrames();
+        Stack<XStep> running = runtime.getRunningSteps();
+        InvocationContext invocation = runtime.getInvocation();
+        Throwable[] failures = new Throwable[count];
+        boolean[] started = new boolean[count];
+        CompletionService<Integer> service = new ExecutorCompletionService<Integer>(
+                streaming ? runtime.getStreamingExecutor() : runtime.getExecutor());
+
+        Vector<Integer> ready = new Vector<Integer> ();
+        for (int pos = 0; pos < count; pos++) {
+            if (waitingStart[pos] == 0 && waitingFinish[pos] == 0) {
+                ready.add(pos);
+            }
+        }
+
+        int active = 0;
+        boolean failed = false;
+        while (!ready.isEmpty() || active > 0) {
+            while (!ready.isEmpty()) {
+                int pos = ready.remove(0);
+                started[pos] = true;
+                service.submit(new StepTask(pos, frames, running, invocation, failures));
+                active++;
+                for (Integer next : startFollowers.get(pos)) {
+                    waitingStart[next]--;
+                    if (waitingStart[next] == 0 && waitingFinish[next] == 0) {
+                        ready.add(next);
+                    }
+                }
+            }
+
+            if (active == 0) {
+                break;
+            }
+
+            int pos;
+            try {
+                pos = service.take().get();
+            } catch (InterruptedException ie) {
+                throw new XProcException(ie);
+            } catch (ExecutionException ee) {
+                // StepTask catches everything, so this can't happen
+                throw new XProcException(ee.getCause());
+            }
+            active--;
+
+            if (failures[pos] != null && !failed) {
+                failed = true;
+                // Nothing else is going to be started, so make sure no reader waits for it
+                for (int other = 0; other < count; other++) {
+                    if (!started[other]) {
+                        closeOutputs(steps.get(other));
+                    }
+                }
+            }
+
+            if (!failed) {
+                for (Integer next : finishFollowers.get(pos)) {
+                    waitingFinish[next]--;
+                    if (waitingStart[next] == 0 && waitingFinish[next] == 0) {
+                        ready.add(next);
+                    }
+                }
+            }
+        }
+
+        for (int pos = 0; pos < count; pos++) {
+            Throwable t = failures[pos];
+            if (t != null) {
+                if (t instanceof SaxonApiException) {
+                    throw (SaxonApiException) t;
+                } else if (t instanceof RuntimeException) {
+                    throw (RuntimeException) t;
+                } else if (t instanceof Error) {
+                    throw (Error) t;
+                } else {
+                    throw new XProcException(t);
+                }
+            }
+        }
+    }
+
+    /*
+     * A bounded pipe makes its writer wait for its reader, so it's only safe if the reader
+     * can't be waiting for the writer some other way: it must be an atomic step that reads
+     * nothing else that's still being written, starts as soon as the writer does, and
+     * doesn't wait for anything that waits for the writer. Otherwise the pipe streams
+     * without a bound.
+     */
+    private void startStreaming(Vector<Vector<Integer>> startFollowers, Vector<Vector<Integer>> finishFollowers,
+                                Vector<HashSet<Integer>> dataDeps) {
+        int count = steps.size();
+        Vector<HashSet<Integer>> preds = new Vector<HashSet<Integer>> ();
+        for (int pos = 0; pos < count; pos++) {
+            preds.add(new HashSet<Integer> ());
+        }
+        HashSet<DocumentSequence> streamed = new HashSet<DocumentSequence> ();
+        for (int pos = 0; pos < count; pos++) {
+            for (Integer next : startFollowers.get(pos)) {
+                preds.get(next).add(pos);
+            }
+            for (Integer next : finishFollowers.get(pos)) {
+                preds.get(next).add(pos);
+            }
+            for (Pipe pipe : streamedOutputs(steps.get(pos))) {
+                streamed.add(pipe.documents());
+            }
+        }
+
+        int capacity = runtime.getPipeCapacity();
+        for (int pos = 0; pos < count; pos++) {
+            for (Pipe pipe : streamedOutputs(steps.get(pos))) {
+                DocumentSequence seq = pipe.documents();
+                Pipe reader = null;
+                for (int other = 0; other < count && reader == null; other++) {
+                    if (other != pos && startFollowers.get(pos).contains(other)
+                            && dataDeps.get(other).size() == 1 && !dependsIndirectly(other, pos, preds)) {
+                        reader = onlyInput(steps.get(other), seq, streamed);
+                    }
+                }
+                if (reader != null && seq.onlyReader(pipe, reader)) {
+                    logger.trace("Bounded " + pipe + " to " + capacity + " documents");
+                    seq.startStreaming(capacity, reader);
+                } else {
+                    seq.startStreaming();
+                }
+            }
+        }
+    }
+
+    // Does step pos depend on step on through some other step?
+    private static boolean dependsIndirectly(int pos, int on, Vector<HashSet<Integer>> preds) {
+        HashSet<Integer> seen = new HashSet<Integer> ();
+        Vector<Integer> todo = new Vector<Integer> ();
+        for (Integer pred : preds.get(pos)) {
+            if (pred != on) {
+                todo.add(pred);
+            }
+        }
+        while (!todo.isEmpty()) {
+            int step = todo.remove(todo.size() - 1);
+            if (step == on) {
+                return true;
+            }
+            if (seen.add(step)) {
+                todo.addAll(preds.get(step));
+            }
+        }
+        return false;
+    }
+
+    // The pipe through which an atomic step reads seq, if that's the only input it reads that's still being written
+    private static Pipe onlyInput(XStep step, DocumentSequence seq, HashSet<DocumentSequence> streamed) {
+        if (!(step instanceof XAtomicStep)) {
+            return null;
+        }
+
+        Pipe found = null;
+        for (Vector<ReadablePipe> readers : ((XAtomicStep) step).inputs.values()) {
+            for (ReadablePipe reader : readers) {
+                if (reader instanceof XSelect) {
+                    // It reads its source all at once, and may not read seq at all
+                    return null;
+                } else if (reader instanceof Pipe && streamed.contains(((Pipe) reader).documents())) {
+                    if (found != null || ((Pipe) reader).documents() != seq) {
+                        return null;
+                    }
+                    found = (Pipe) reader;
+                }
+            }
+        }
+        return found;
+    }
+
+    // The names of the steps that this step, or any step inside it, is ordered after with cx:depends-on
+    private static void orderingDependencies(XStep step, HashSet<String> names) {
+        String dependsOn = step.getStep().getExtensionAttribute(XProcConstants.cx_depends_on);
+        if (dependsOn != null) {
+            names.add(dependsOn);
+        }
+        if (step instanceof XCompoundStep) {
+            for (XStep substep : ((XCompoundStep) step).subpipeline) {
+                orderingDependencies(substep, names);
+            }
+        }
+    }
+
+    // The output pipes that the step's siblings and container read; the "port|" pipes
+    // of a compound step are read only by its own substeps.
+    private static Vector<Pipe> streamedOutputs(XStep step) {
+        Vector<Pipe> pipes = new Vector<Pipe> ();
+        if (step instanceof XAtomicStep) {
+            XAtomicStep astep = (XAtomicStep) step;
+            for (String port : astep.outputs.keySet()) {
+                WritablePipe wpipe = astep.outputs.get(port);
+                if (!port.endsWith("|") && wpipe instanceof Pipe) {
+                    pipes.add((Pipe) wpipe);
+                }
+            }
+        }
+        return pipes;
+    }
+
+    private void closeOutputs(XStep step) {
+        if (streaming) {
+            for (Pipe pipe : streamedOutputs(step)) {
+                if (!pipe.closed()) {
+                    pipe.close();
+                }
+            }
+        }
+    }
+
+    private class StepTask implements Callable<Integer> {
+        private int pos = 0;
+        private Stack<?> frames = null;
+        private Stack<XStep> running = null;
+        private InvocationContext invocation = null;
+        private Throwable[] failures = null;
+
+        public StepTask(int pos, Stack<?> frames, Stack<XStep> running, InvocationContext invocation, Throwable[] failures) {
+            this.pos = pos;
+            this.frames = frames;
+            this.running = running;
+            this.invocation = invocation;
+            this.failures = failures;
+        }
+
+        public Integer call() {
+            XStep step = steps.get(pos);
+            XProcData data = runtime.getXProcData();
+            Stack<?> savedFrames = data.setFrames(frames);
+            Stack<XStep> savedRunning = runtime.setRunningSteps(running);
+            InvocationContext savedInvocation = runtime.setInvocation(invocation);
+            try {
+                logger.trace("Scheduled " + step.getName() + " on " + Thread.currentThread().getName());
+                step.run();
+            } catch (Throwable t) {
+                failures[pos] = t;
+            } finally {
+                // Not every step closes its outputs, and readers of a streaming pipe wait until it's closed
+                closeOutputs(step);
+                data.setFrames(savedFrames);
+                runtime.setRunningSteps(savedRunning);
+                runtime.setInvocation(savedInvocation);
+            }
+            return pos;
+        }
+    }
+}
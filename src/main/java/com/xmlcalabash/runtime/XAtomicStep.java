@@ -38,7 +38,6 @@ import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.Axis;
 import net.sf.saxon.s9api.XdmNodeKind;
 import net.sf.saxon.s9api.XdmAtomicValue;
-import net.sf.saxon.s9api.XPathCompiler;
 import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XPathSelector;
 import net.sf.saxon.s9api.XdmItem;
@@ -72,6 +71,8 @@ public class XAtomicStep extends XStep {
 
     protected Hashtable<String, Vector<ReadablePipe>> inputs = new Hashtable<String, Vector<ReadablePipe>> ();
     protected Hashtable<String, WritablePipe> outputs = new Hashtable<String, WritablePipe> ();
+    // The pipes that options and parameters read their context documents from
+    private Hashtable<ComputableValue, ReadablePipe> valuePipes = new Hashtable<ComputableValue, ReadablePipe> ();
 
     public XAtomicStep(XProcRuntime runtime, Step step, XCompoundStep parent) {
         super(runtime, step);
@@ -172,8 +173,39 @@ public class XAtomicStep extends XStep {
         }
     }
 
+    /*
+     * A pipe that's made after its documents have been written can't stop them from being
+     * released, so the pipes that options and parameters read from are made along with the
+     * step's other readers, not when their values are computed.
+     */
+    protected void instantiateValueReaders(Step step) {
+        for (QName name : step.getOptions()) {
+            instantiateValueReader(step.getOption(name));
+        }
+        for (Parameter param : step.parameters()) {
+            instantiateValueReader(param);
+        }
+    }
+
+    private void instantiateValueReader(ComputableValue value) {
+        if (value.getBinding().size() > 0
+                && value.getBinding().firstElement().getBindingType() == Binding.PIPE_NAME_BINDING) {
+            valuePipes.put(value, getPipeFromBinding(value.getBinding().firstElement()));
+        }
+    }
+
+    // Called when the step has computed its options and parameters for this run
+    protected void finishValueReaders() {
+        for (ReadablePipe pipe : valuePipes.values()) {
+            if (pipe instanceof Pipe) {
+                ((Pipe) pipe).finished();
+            }
+        }
+    }
+
     public void instantiate(Step step) {
         instantiateReaders(step);
+        instantiateValueReaders(step);
 
         for (Output output : step.outputs()) {
             String port = output.getPort();
@@ -321,7 +353,9 @@ public class XAtomicStep extends XStep {
                     ReadablePipe pipe = inputs.get(port).firstElement();
                     pipe.setReader(step);
                     if (pipe.moreDocuments()) {
-                        totalDocs += pipe.documentCount();
+                        // Counting the documents on a streaming pipe waits for the writer to
+                        // finish, so only do it if the count matters
+                        totalDocs += input.getSequence() ? 1 : pipe.documentCount();
                     } else if (pipe instanceof ReadableDocument) {
                         totalDocs++;
                     }
@@ -384,12 +418,21 @@ public class XAtomicStep extends XStep {
         XProcData data = runtime.getXProcData();
         data.openFrame(this);
 
+        // FIXME: Is it sufficient to only do this for atomic steps?
+        String cache = getInheritedExtensionAttribute(XProcConstants.cx_cache);
+        if ("true".equals(cache)) {
+            // Keep the outputs around until they've been cached
+            for (WritablePipe wpipe : outputs.values()) {
+                if (wpipe instanceof Pipe) {
+                    ((Pipe) wpipe).documents().pinUntilReset();
+                }
+            }
+        }
+
         runtime.start(this);
         try {
             xstep.run();
 
-            // FIXME: Is it sufficient to only do this for atomic steps?
-            String cache = getInheritedExtensionAttribute(XProcConstants.cx_cache);
             if ("true".equals(cache)) {
                 for (String port : outputs.keySet()) {
                     WritablePipe wpipe = outputs.get(port);
@@ -414,6 +457,18 @@ public class XAtomicStep extends XStep {
                 WritablePipe wpipe = outputs.get(port);
                 wpipe.close(); // Indicate we're done
             }
+
+            // Let the input documents go, if no one else needs them
+            finishValueReaders();
+            for (Vector<ReadablePipe> readers : inputs.values()) {
+                for (ReadablePipe reader : readers) {
+                    if (reader instanceof Pipe) {
+                        ((Pipe) reader).finished();
+                    } else if (reader instanceof XSelect) {
+                        ((XSelect) reader).finished();
+                    }
+                }
+            }
             
             runtime.finish(this);
             data.closeFrame();
@@ -432,7 +487,7 @@ public class XAtomicStep extends XStep {
             return;
         }
 
-        Parameter p = new Parameter(step.getXProc(),pnode);
+        Parameter p = new Parameter(runtime,pnode);
         String port = p.getPort();
         String name = pnode.getAttributeValue(_name);
         String ns = pnode.getAttributeValue(_namespace);
@@ -481,7 +536,7 @@ public class XAtomicStep extends XStep {
     }
 
     private void parseParameterValueNode(XProcStep impl, XdmNode pnode) {
-        Parameter p = new Parameter(step.getXProc(),pnode);
+        Parameter p = new Parameter(runtime,pnode);
         String port = p.getPort();
         String name = pnode.getAttributeValue(_name);
         String ns = pnode.getAttributeValue(_namespace);
@@ -581,6 +636,9 @@ public class XAtomicStep extends XStep {
                 ReadablePipe pipe = null;
                 if (binding.getBindingType() == Binding.ERROR_BINDING) {
                     pipe = ((XCatch) this).errorPipe;
+                } else if (valuePipes.containsKey(var)) {
+                    pipe = valuePipes.get(var);
+                    pipe.resetReader();
                 } else {
                     pipe = getPipeFromBinding(binding);
                 }
@@ -607,13 +665,6 @@ public class XAtomicStep extends XStep {
                 localBindings = nsv.getNamespaceBindings();
             } else if (nsbinding.getXPath() != null) {
                 try {
-                    XPathCompiler xcomp = runtime.getProcessor().newXPathCompiler();
-                    xcomp.setBaseURI(step.getNode().getBaseURI());
-
-                    for (QName varname : globals.keySet()) {
-                        xcomp.declareVariable(varname);
-                    }
-
                     // Make sure the namespace bindings for evaluating the XPath expr are correct
                     // FIXME: Surely there's a better way to do this?
                     Hashtable<String,String> lclnsBindings = new Hashtable<String, String>();
@@ -627,11 +678,8 @@ public class XAtomicStep extends XStep {
                         lclnsBindings.put(nspfx, nsuri);
                     }
 
-                    for (String prefix : lclnsBindings.keySet()) {
-                        xcomp.declareNamespace(prefix, lclnsBindings.get(prefix));
-                    }
-
-                    XPathExecutable xexec = xcomp.compile(nsbinding.getXPath());
+                    XPathExecutable xexec = runtime.getXPathCache().compile(nsbinding.getXPath(),
+                            step.getNode().getBaseURI(), lclnsBindings, globals.keySet());
                     XPathSelector selector = xexec.load();
 
                     for (QName varname : globals.keySet()) {
@@ -804,26 +852,18 @@ public class XAtomicStep extends XStep {
         }
 
         try {
-            XPathCompiler xcomp = runtime.getProcessor().newXPathCompiler();
             URI baseURI = step.getNode().getBaseURI();
             if (baseURI == null || !baseURI.isAbsolute())  {
                 if (runtime.getBaseURI() != null) {
-                    xcomp.setBaseURI(runtime.getBaseURI().resolve(baseURI));
+                    baseURI = runtime.getBaseURI().resolve(baseURI);
+                } else {
+                    baseURI = null;
                 }
-            } else {
-                xcomp.setBaseURI(baseURI);
             }
 
-            for (QName varname : boundOpts.keySet()) {
-                xcomp.declareVariable(varname);
-            }
-
-            for (String prefix : nsBindings.keySet()) {
-                xcomp.declareNamespace(prefix, nsBindings.get(prefix));
-            }
             XPathExecutable xexec = null;
             try {
-                xexec = xcomp.compile(xpath);
+                xexec = runtime.getXPathCache().compile(xpath, baseURI, nsBindings, boundOpts.keySet());
             } catch (SaxonApiException sae) {
                 Throwable t = sae.getCause();
                 if (t instanceof XPathException) {
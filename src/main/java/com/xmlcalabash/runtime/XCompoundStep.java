@@ -3,6 +3,8 @@ package com.xmlcalabash.runtime;
 import com.xmlcalabash.core.XProcRuntime;
 import com.xmlcalabash.core.XProcConstants;
 import com.xmlcalabash.core.XProcData;
+import com.xmlcalabash.core.XProcException;
+import com.xmlcalabash.io.Pipe;
 import com.xmlcalabash.io.ReadablePipe;
 import com.xmlcalabash.io.WritablePipe;
 import com.xmlcalabash.io.ReadableEmpty;
@@ -14,6 +16,7 @@ import net.sf.saxon.s9api.SaxonApiException;
 
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Vector;
 
@@ -27,6 +30,10 @@ import java.util.Vector;
 public class XCompoundStep extends XAtomicStep {
     protected Hashtable<QName, RuntimeValue> variables = new Hashtable<QName,RuntimeValue> ();
     protected Vector<XStep> subpipeline = new Vector<XStep> ();
+    // The names of the substeps that write to this step's outputs
+    protected HashSet<String> outputSources = new HashSet<String> ();
+    // Copies made to run iterations concurrently aren't part of their parent's subpipeline
+    protected boolean detached = false;
 
     public XCompoundStep(XProcRuntime runtime, Step step, XCompoundStep parent) {
         super(runtime, step, parent);
@@ -67,6 +74,55 @@ public class XCompoundStep extends XAtomicStep {
         }
     }
 
+    /**
+     * How many iterations may run at once? This is the value of cx:parallel on a p:for-each
+     * or p:viewport, or 1 if it's absent. The iterations share the runtime's worker pool, so
+     * they only run concurrently if the thread count is greater than one.
+     */
+    protected int getParallelism() {
+        String value = getExtensionAttribute(XProcConstants.cx_parallel);
+        if (value == null) {
+            return 1;
+        }
+
+        int count = 0;
+        try {
+            count = Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            // fall through
+        }
+        if (count < 1) {
+            throw new XProcException(step.getNode(), "The value of cx:parallel must be a positive integer: " + value);
+        }
+        return count;
+    }
+
+    /**
+     * How many iterations may wait for I/O at once? This is the value of cx:async on a
+     * p:for-each: "true" means the configured async limit, a positive integer is the limit
+     * itself, and "false" (or no cx:async at all) means 0.
+     */
+    protected int getAsyncLimit() {
+        String value = getExtensionAttribute(XProcConstants.cx_async);
+        if (value == null || "false".equals(value.trim())) {
+            return 0;
+        }
+        if ("true".equals(value.trim())) {
+            return runtime.getAsyncLimit();
+        }
+
+        int count = 0;
+        try {
+            count = Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            // fall through
+        }
+        if (count < 1) {
+            throw new XProcException(step.getNode(), "The value of cx:async must be true, false, or a positive integer: " + value);
+        }
+        return count;
+    }
+
     public ReadablePipe getBinding(String stepName, String portName) {
         if (name.equals(stepName)) {
             XInput input = getInput(portName);
@@ -84,7 +140,20 @@ public class XCompoundStep extends XAtomicStep {
                 }
             }
         }
-        return parent.getBinding(stepName, portName);
+
+        ReadablePipe rpipe = parent.getBinding(stepName, portName);
+        if (iterates() && rpipe instanceof Pipe) {
+            // Steps in a loop read the documents from outside it on every iteration
+            rpipe.documents().pin();
+        }
+        return rpipe;
+    }
+
+    /**
+     * Does this step run its subpipeline more than once?
+     */
+    protected boolean iterates() {
+        return false;
     }
 
     protected void addStep(XStep step) {
@@ -95,7 +164,9 @@ public class XCompoundStep extends XAtomicStep {
         logger.trace(MessageFormatter.nodeMessage(step.getNode(), "--> instantiate " + step));
         
         instantiateReaders(step);
-        parent.addStep(this);
+        if (!detached) {
+            parent.addStep(this);
+        }
 
         DeclareStep decl = step.getDeclaration();
 
@@ -159,6 +230,10 @@ public class XCompoundStep extends XAtomicStep {
                     inputs.put(port, readers);
                 }
                 for (Binding binding : input.getBinding()) {
+                    if (binding.getBindingType() == Binding.PIPE_NAME_BINDING) {
+                        outputSources.add(((PipeNameBinding) binding).getStep());
+                    }
+
                     ReadablePipe pipe = getPipeFromBinding(binding);
                     pipe.canReadSequence(input.getSequence());
                     pipe.setReader(step);
@@ -231,6 +306,20 @@ public class XCompoundStep extends XAtomicStep {
         }
     }
 
+    public HashSet<String> getOutputSources() {
+        return outputSources;
+    }
+
+    protected void runSubpipeline() throws SaxonApiException {
+        if (StepScheduler.parallel(runtime, subpipeline)) {
+            new StepScheduler(runtime, this).run();
+        } else {
+            for (XStep step : subpipeline) {
+                step.run();
+            }
+        }
+    }
+
     public void run() throws SaxonApiException {
         XProcData data = runtime.getXProcData();
         data.openFrame(this);
@@ -258,9 +347,7 @@ public class XCompoundStep extends XAtomicStep {
         runtime.start(this);
 
         try {
-            for (XStep step : subpipeline) {
-                step.run();
-            }
+            runSubpipeline();
 
             for (String port : inputs.keySet()) {
                 if (port.startsWith("|")) {
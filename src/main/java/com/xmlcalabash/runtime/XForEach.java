@@ -15,7 +15,9 @@ import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.QName;
 
+import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Created by IntelliJ IDEA.
@@ -24,10 +26,11 @@ import java.util.Vector;
  * Time: 5:44:42 AM
  * To change this template use File | Settings | File Templates.
  */
-public class XForEach extends XCompoundStep {
+public class XForEach extends XCompoundStep implements IterationRunner.Body {
     private Pipe current = null;
     private int sequencePosition = 0;
     private int sequenceLength = 0;
+    private Vector<XForEach> workers = null;
 
     public XForEach(XProcRuntime runtime, Step step, XCompoundStep parent) {
         super(runtime, step, parent);
@@ -48,6 +51,10 @@ public class XForEach extends XCompoundStep {
         // nop;
     }
 
+    protected boolean iterates() {
+        return true;
+    }
+
     public void reset() {
         super.reset();
         sequenceLength = 0;
@@ -87,7 +94,17 @@ public class XForEach extends XCompoundStep {
 
         runtime.start(this);
 
+        // Asynchronous iterations are mostly waiting for responses, so they don't need to be
+        // limited to the number of worker threads
+        int async = getAsyncLimit();
+        int parallelism = Math.min(async > 0 ? async : getParallelism(), nodes.size());
+
         try {
+            if (parallelism > 1) {
+                runParallel(nodes, parallelism, async > 0 ? runtime.getStreamingExecutor() : runtime.getExecutor());
+                return;
+            }
+
             for (XdmNode is_doc : nodes) {
                 // Setup the current port before we compute variables!
                 current.resetWriter();
@@ -113,9 +130,7 @@ public class XForEach extends XCompoundStep {
                     inScopeOptions.put(var.getName(), value);
                 }
 
-                for (XStep step : subpipeline) {
-                    step.run();
-                }
+                runSubpipeline();
 
                 for (String port : inputs.keySet()) {
                     if (port.startsWith("|")) {
@@ -162,4 +177,78 @@ public class XForEach extends XCompoundStep {
             data.closeFrame();
         }
     }
+
+    private void runParallel(Vector<XdmNode> nodes, int parallelism, ExecutorService executor) throws SaxonApiException {
+        if (workers == null) {
+            workers = new Vector<XForEach> ();
+        }
+        while (workers.size() < parallelism) {
+            XForEach worker = new XForEach(runtime, step, parent);
+            worker.detached = true;
+            worker.instantiate(step);
+            workers.add(worker);
+        }
+
+        // Each iteration's results are written as soon as the iterations before it have been written
+        new IterationRunner(runtime, workers, executor).run(nodes, new IterationRunner.Receiver() {
+            public void receive(Object iterResult) {
+                @SuppressWarnings("unchecked")
+                HashMap<String,Vector<XdmNode>> result = (HashMap<String,Vector<XdmNode>>) iterResult;
+                for (String wport : result.keySet()) {
+                    WritablePipe pipe = outputs.get(wport);
+                    pipe.canWriteSequence(true);
+                    for (XdmNode doc : result.get(wport)) {
+                        pipe.write(doc);
+                    }
+                }
+            }
+        });
+    }
+
+    // Runs one iteration on a worker copy and returns what it wrote to each output port
+    public HashMap<String,Vector<XdmNode>> iterate(XdmNode is_doc, int position) throws SaxonApiException {
+        for (XStep step : subpipeline) {
+            step.reset();
+        }
+
+        if (current == null) {
+            current = new Pipe(runtime);
+        }
+        current.resetWriter();
+        current.write(is_doc);
+
+        runtime.getXProcData().setIterationPosition(position);
+
+        inScopeOptions = parent.getInScopeOptions();
+        for (Variable var : step.getVariables()) {
+            RuntimeValue value = computeValue(var);
+            inScopeOptions.put(var.getName(), value);
+        }
+
+        runSubpipeline();
+
+        HashMap<String,Vector<XdmNode>> result = new HashMap<String,Vector<XdmNode>> ();
+        for (String port : inputs.keySet()) {
+            if (port.startsWith("|")) {
+                String wport = port.substring(1);
+                boolean seqOk = step.getOutput(wport).getSequence();
+
+                Vector<XdmNode> docs = new Vector<XdmNode> ();
+                for (ReadablePipe reader : inputs.get(port)) {
+                    reader.canReadSequence(true);
+                    while (reader.moreDocuments()) {
+                        docs.add(reader.read());
+                    }
+                    reader.resetReader();
+                }
+
+                if (docs.size() != 1 && !seqOk) {
+                    throw XProcException.dynamicError(6, "Writing to " + wport + " on " + getStep().getName());
+                }
+                result.put(wport, docs);
+            }
+        }
+
+        return result;
+    }
 }
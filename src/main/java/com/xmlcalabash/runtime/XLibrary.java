@@ -3,6 +3,7 @@ package com.xmlcalabash.runtime;
 import com.xmlcalabash.core.XProcConstants;
 import com.xmlcalabash.core.XProcRuntime;
 import com.xmlcalabash.core.XProcException;
+import com.xmlcalabash.model.Binding;
 import com.xmlcalabash.model.ErrorBinding;
 import com.xmlcalabash.model.Input;
 import com.xmlcalabash.model.Output;
@@ -73,12 +74,26 @@ public class XLibrary {
                 pInput.setParameterInput(input.getParameterInput());
                 pipeline.addInput(pInput);
 
+                // The declaration may be used again, so its ports aren't bound or moved
+                Input aInput = new Input(runtime, input.getNode());
+                aInput.setPort(input.getPort());
+                if (input.getPrimarySet()) {
+                    aInput.setPrimary(input.getPrimary());
+                }
+                aInput.setSequence(input.getSequence());
+                aInput.setParameterInput(input.getParameterInput());
+                aInput.setSelect(input.getSelect());
+                aInput.setPosition(input.getPosition());
+                for (Binding binding : input.getBinding()) {
+                    aInput.addBinding(binding);
+                }
+
                 PipeNameBinding pnb = new PipeNameBinding(runtime, input.getNode());
                 pnb.setStep(wrapper);
                 pnb.setPort(pInput.getPort());
-                input.addBinding(pnb);
+                aInput.addBinding(pnb);
 
-                atomicReplacement.addInput(input);
+                atomicReplacement.addInput(aInput);
             }
 
             for (Output output : step.outputs()) {
@@ -99,7 +114,18 @@ public class XLibrary {
 
                 pipeline.addOutput(pOutput);
 
-                atomicReplacement.addOutput(output);
+                Output aOutput = new Output(runtime, output.getNode());
+                aOutput.setPort(output.getPort());
+                if (output.getPrimarySet()) {
+                    aOutput.setPrimary(output.getPrimary());
+                }
+                aOutput.setSequence(output.getSequence());
+                aOutput.setSerialization(output.getSerialization());
+                for (Binding binding : output.getBinding()) {
+                    aOutput.addBinding(binding);
+                }
+
+                atomicReplacement.addOutput(aOutput);
             }
 
             pipeline.addStep(atomicReplacement);
@@ -110,6 +136,7 @@ public class XLibrary {
         } else {
             step.setup();
         }
+        step.setupCalledPipelines();
 
         XPipeline xpipeline = new XPipeline(runtime, step, root);
 
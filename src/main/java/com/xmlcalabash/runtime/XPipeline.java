@@ -1,5 +1,6 @@
 package com.xmlcalabash.runtime;
 
+import com.xmlcalabash.core.InvocationContext;
 import com.xmlcalabash.core.XProcConstants;
 import com.xmlcalabash.core.XProcData;
 import com.xmlcalabash.core.XProcException;
@@ -36,6 +37,7 @@ public class XPipeline extends XCompoundStep {
     private static final QName _value = new QName("value");
 
     private Hashtable<QName, RuntimeValue> optionsPassedIn = null;
+    private InvocationContext invocation = null;
 
     public XPipeline(XProcRuntime runtime, Step step, XCompoundStep parent) {
         super(runtime, step, parent);
@@ -45,6 +47,18 @@ public class XPipeline extends XCompoundStep {
         return step.getDeclaration();
     }
 
+    /**
+     * Gives this pipeline an invocation context of its own. Without one, it runs in the
+     * context of whatever is running it.
+     */
+    public void setInvocation(InvocationContext invocation) {
+        this.invocation = invocation;
+    }
+
+    public InvocationContext getInvocation() {
+        return invocation;
+    }
+
     public void passOption(QName name, RuntimeValue value) {
         if (optionsPassedIn == null) {
             optionsPassedIn = new Hashtable<QName,RuntimeValue> ();
@@ -128,6 +142,27 @@ public class XPipeline extends XCompoundStep {
             logger.trace(MessageFormatter.nodeMessage(step.getNode(), "Running with the 'general-values' extension enabled."));
         }
 
+        InvocationContext saved = null;
+        if (invocation != null) {
+            saved = runtime.setInvocation(invocation);
+        }
+        try {
+            if (runtime.getProfile() != null) {
+                // Instances of a compiled pipeline can run concurrently, but there's only one profile
+                synchronized (runtime.getProfile()) {
+                    runFrame();
+                }
+            } else {
+                runFrame();
+            }
+        } finally {
+            if (invocation != null) {
+                runtime.setInvocation(saved);
+            }
+        }
+    }
+
+    private void runFrame() throws SaxonApiException {
         XProcData data = runtime.getXProcData();
         data.openFrame(this);
 
@@ -232,9 +267,7 @@ public class XPipeline extends XCompoundStep {
             inScopeOptions.put(var.getName(), value);
         }
 
-        for (XStep step : subpipeline) {
-            step.run();
-        }
+        runSubpipeline();
 
         for (String port : inputs.keySet()) {
             if (port.startsWith("|")) {
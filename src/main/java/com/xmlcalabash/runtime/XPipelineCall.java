@@ -1,7 +1,6 @@
 package com.xmlcalabash.runtime;
 
 import com.xmlcalabash.core.XProcRuntime;
-import com.xmlcalabash.core.XProcException;
 import com.xmlcalabash.model.*;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.QName;
@@ -35,12 +34,7 @@ public class XPipelineCall extends XAtomicStep {
     public void run() throws SaxonApiException {
         logger.trace("Running " + step.getType());
 
-        decl.setup();
-
-        if (runtime.getErrorCode() != null) {
-            throw new XProcException(runtime.getErrorCode(), runtime.getErrorMessage());
-        }
-
+        // The declaration was set up when the pipeline was compiled; see XProcRuntime
         XRootStep root = new XRootStep(runtime);
         XPipeline newstep = new XPipeline(runtime, decl, root);
 
@@ -77,6 +71,7 @@ public class XPipelineCall extends XAtomicStep {
                 newstep.setParameter(port, name, value);
             }
         }
+        finishValueReaders();
 
         for (String port : inputs.keySet()) {
             if (!port.startsWith("|")) {
@@ -1,5 +1,6 @@
 package com.xmlcalabash.runtime;
 
+import com.xmlcalabash.io.Pipe;
 import com.xmlcalabash.io.ReadablePipe;
 import com.xmlcalabash.io.DocumentSequence;
 import com.xmlcalabash.core.XProcRuntime;
@@ -15,7 +16,6 @@ import java.util.Hashtable;
 import org.slf4j.Logger;
 
 import net.sf.saxon.s9api.*;
-import net.sf.saxon.sxpath.IndependentContext;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -82,11 +82,6 @@ public class XSelect implements ReadablePipe {
 
         try {
             NamespaceBinding bindings = new NamespaceBinding(runtime,context);
-            XPathCompiler xcomp = runtime.getProcessor().newXPathCompiler();
-            xcomp.setBaseURI(context.getBaseURI());
-
-            IndependentContext icontext = (IndependentContext) xcomp.getUnderlyingStaticContext();
-
             Hashtable<QName, RuntimeValue> inScopeOptions = new Hashtable<QName, RuntimeValue> ();
             try {
                 inScopeOptions = ((XCompoundStep) forStep).getInScopeOptions();
@@ -102,15 +97,8 @@ public class XSelect implements ReadablePipe {
                 }
             }
 
-            for (QName varname : boundOpts.keySet()) {
-                xcomp.declareVariable(varname);
-            }
-
-            for (String prefix : bindings.getNamespaceBindings().keySet()) {
-                xcomp.declareNamespace(prefix, bindings.getNamespaceBindings().get(prefix));
-            }
-
-            XPathExecutable xexec = xcomp.compile(select);
+            XPathExecutable xexec = runtime.getXPathCache().compile(select, context.getBaseURI(),
+                    bindings.getNamespaceBindings(), boundOpts.keySet());
             selector = xexec.load();
 
             for (QName varname : boundOpts.keySet()) {
@@ -174,6 +162,13 @@ public class XSelect implements ReadablePipe {
         initialized = false;
     }
 
+    // The reader has finished with the selection, so it's finished with the source too
+    public void finished() {
+        if (source instanceof Pipe) {
+            ((Pipe) source).finished();
+        }
+    }
+
     public boolean moreDocuments() {
         if (!initialized) {
             readSource();
@@ -56,6 +56,10 @@ public class XUntilUnchanged extends XCompoundStep {
         // nop;
     }
 
+    protected boolean iterates() {
+        return true;
+    }
+
     public void reset() {
         super.reset();
         sequenceLength = 0;
@@ -125,9 +129,7 @@ public class XUntilUnchanged extends XCompoundStep {
                             inScopeOptions.put(var.getName(), value);
                         }
 
-                        for (XStep step : subpipeline) {
-                            step.run();
-                        }
+                        runSubpipeline();
 
                         int docsCopied = 0;
 
@@ -13,6 +13,9 @@ import com.xmlcalabash.util.TreeWriter;
 import com.xmlcalabash.model.*;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+
+import java.util.Vector;
 
 /**
  * Created by IntelliJ IDEA.
@@ -21,11 +24,13 @@ import net.sf.saxon.s9api.XdmNode;
  * Time: 7:03:35 AM
  * To change this template use File | Settings | File Templates.
  */
-public class XViewport extends XCompoundStep implements ProcessMatchingNodes {
+public class XViewport extends XCompoundStep implements ProcessMatchingNodes, IterationRunner.Body {
     private Pipe current = null;
     private ProcessMatch matcher = null;
     private int sequencePosition = 0;
     private int sequenceLength = 0;
+    private Vector<Object> results = null;
+    private Vector<XViewport> workers = null;
 
     public XViewport(XProcRuntime runtime, Step step, XCompoundStep parent) {
         super(runtime, step, parent);
@@ -46,6 +51,10 @@ public class XViewport extends XCompoundStep implements ProcessMatchingNodes {
         // nop;
     }
 
+    protected boolean iterates() {
+        return true;
+    }
+
     public void reset() {
         super.reset();
         sequenceLength = 0;
@@ -80,14 +89,49 @@ public class XViewport extends XCompoundStep implements ProcessMatchingNodes {
         
         matcher = new ProcessMatch(runtime, this);
 
-        // FIXME: Only do this if we really need to!
-        sequenceLength = matcher.count(doc, match, false);
+        // Extract the matching subtrees first; that also tells us the iteration size
+        Vector<XdmNode> nodes = matcher.select(doc, match);
+        for (XdmNode node : nodes) {
+            if (node.getNodeKind() == XdmNodeKind.ATTRIBUTE) {
+                processAttribute(node);
+            } else if (node.getNodeKind() != XdmNodeKind.ELEMENT) {
+                processText(node);
+            }
+        }
 
+        sequenceLength = nodes.size();
         runtime.getXProcData().setIterationSize(sequenceLength);
 
         runtime.start(this);
-        matcher.match(doc, match);
-        runtime.finish(this);
+        try {
+            int parallelism = Math.min(getParallelism(), nodes.size());
+            if (parallelism > 1) {
+                if (workers == null) {
+                    workers = new Vector<XViewport> ();
+                }
+                while (workers.size() < parallelism) {
+                    XViewport worker = new XViewport(runtime, step, parent);
+                    worker.detached = true;
+                    worker.instantiate(step);
+                    workers.add(worker);
+                }
+                results = new IterationRunner(runtime, workers).run(nodes);
+            } else {
+                results = new Vector<Object> ();
+                for (XdmNode node : nodes) {
+                    sequencePosition++;
+                    results.add(iterate(node, sequencePosition));
+                }
+            }
+
+            // Stitch the results back into the document in document order
+            sequencePosition = 0;
+            matcher.match(doc, match);
+        } finally {
+            results = null;
+            runtime.finish(this);
+            data.closeFrame();
+        }
 
         for (String port : inputs.keySet()) {
             if (port.startsWith("|")) {
@@ -109,19 +153,31 @@ public class XViewport extends XCompoundStep implements ProcessMatchingNodes {
     }
 
     public boolean processStartElement(XdmNode node) {
+        @SuppressWarnings("unchecked")
+        Vector<XdmNode> docs = (Vector<XdmNode>) results.get(sequencePosition++);
+        for (XdmNode doc : docs) {
+            matcher.addSubtree(doc);
+        }
+        return false;
+    }
+
+    // Runs the subpipeline over one matching node and returns the documents it produced
+    public Vector<XdmNode> iterate(XdmNode node, int position) throws SaxonApiException {
         // Use a TreeWriter to make the matching node into a proper document
         TreeWriter treeWriter = new TreeWriter(runtime);
         treeWriter.startDocument(node.getBaseURI());
         treeWriter.addSubtree(node);
         treeWriter.endDocument();
 
+        if (current == null) {
+            current = new Pipe(runtime);
+        }
         current.resetWriter();
         current.write(treeWriter.getResult());
 
         logger.trace(MessageFormatter.nodeMessage(step.getNode(), "Viewport copy matching node to " + current));
 
-        sequencePosition++;
-        runtime.getXProcData().setIterationPosition(sequencePosition);
+        runtime.getXProcData().setIterationPosition(position);
 
         // Calculate all the variables
         inScopeOptions = parent.getInScopeOptions();
@@ -130,43 +186,31 @@ public class XViewport extends XCompoundStep implements ProcessMatchingNodes {
             inScopeOptions.put(var.getName(), value);
         }
 
-        try {
-            for (XStep step : subpipeline) {
-                step.reset();
-                step.run();
-            }
-        } catch (SaxonApiException sae) {
-            throw new XProcException(sae);
+        for (XStep step : subpipeline) {
+            step.reset();
         }
+        runSubpipeline();
 
-
-        try {
-            int count = 0;
-            for (String port : inputs.keySet()) {
-                if (port.startsWith("|")) {
-                    for (ReadablePipe reader : inputs.get(port)) {
-                        while (reader.moreDocuments()) {
-                            count++;
-
-                            if (count > 1) {
-                                XOutput output = getOutput(port.substring(1));
-                                if (!output.getSequence()) {
-                                    throw XProcException.dynamicError(7);
-                                }
+        Vector<XdmNode> docs = new Vector<XdmNode> ();
+        for (String port : inputs.keySet()) {
+            if (port.startsWith("|")) {
+                for (ReadablePipe reader : inputs.get(port)) {
+                    while (reader.moreDocuments()) {
+                        if (docs.size() > 0) {
+                            XOutput output = getOutput(port.substring(1));
+                            if (!output.getSequence()) {
+                                throw XProcException.dynamicError(7);
                             }
-
-                            XdmNode doc = reader.read();
-                            matcher.addSubtree(doc);
                         }
-                        reader.resetReader();
+
+                        docs.add(reader.read());
                     }
+                    reader.resetReader();
                 }
             }
-        } catch (SaxonApiException sae) {
-            throw new XProcException(sae);
         }
 
-        return false;
+        return docs;
     }
 
     public void processEndElement(XdmNode node) {
@@ -0,0 +1,139 @@
+package com.xmlcalabash.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A gzip output stream that compresses on another thread.
+ *
+ * <p>Whatever is written is collected into blocks which are handed to a task that gzips them
+ * into the underlying stream, so the compression overlaps with the work of producing the
+ * output (serializing a document, for example). Only a few blocks are queued; if the compressor
+ * falls behind, writers wait for it. Errors in the compressor are reported to the writer.</p>
+ *
+ * <p>The executor must run the task on a thread of its own; a pool that runs tasks on the caller
+ * when it's busy would deadlock.</p>
+ */
+public class BackgroundGzipOutputStream extends OutputStream {
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int QUEUED_BLOCKS = 4;
+    private static final byte[] END = new byte[0];
+
+    private OutputStream out = null;
+    private BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUED_BLOCKS);
+    private Future<Void> compressor = null;
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int count = 0;
+    private boolean finished = false;
+
+    public BackgroundGzipOutputStream(OutputStream out, ExecutorService executor) throws IOException {
+        this.out = out;
+        final GZIPOutputStream gzout = new GZIPOutputStream(out, BLOCK_SIZE);
+        compressor = executor.submit(new Callable<Void>() {
+            public Void call() throws IOException, InterruptedException {
+                byte[] bytes = queue.take();
+                while (bytes != END) {
+                    gzout.write(bytes);
+                    bytes = queue.take();
+                }
+                gzout.finish();
+                return null;
+            }
+        });
+    }
+
+    public void write(int b) throws IOException {
+        if (count == BLOCK_SIZE) {
+            sendBlock();
+        }
+        block[count++] = (byte) b;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == BLOCK_SIZE) {
+                sendBlock();
+            }
+            int n = Math.min(len, BLOCK_SIZE - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Compresses everything that's been written and writes the gzip trailer, without closing
+     * the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        if (count > 0) {
+            sendBlock();
+        }
+        send(END);
+
+        try {
+            compressor.get();
+        } catch (InterruptedException ie) {
+            compressor.cancel(true);
+            throw new InterruptedIOException();
+        } catch (ExecutionException ee) {
+            throw failure(ee);
+        }
+    }
+
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    private void sendBlock() throws IOException {
+        byte[] bytes = block;
+        if (count == BLOCK_SIZE) {
+            block = new byte[BLOCK_SIZE];
+        } else {
+            bytes = new byte[count];
+            System.arraycopy(block, 0, bytes, 0, count);
+        }
+        count = 0;
+        send(bytes);
+    }
+
+    private void send(byte[] bytes) throws IOException {
+        try {
+            while (!queue.offer(bytes, 100, TimeUnit.MILLISECONDS)) {
+                if (compressor.isDone()) {
+                    // It failed; find out why
+                    compressor.get();
+                    throw new IOException("Compression ended early");
+                }
+            }
+        } catch (InterruptedException ie) {
+            compressor.cancel(true);
+            throw new InterruptedIOException();
+        } catch (ExecutionException ee) {
+            throw failure(ee);
+        }
+    }
+
+    private IOException failure(ExecutionException ee) {
+        if (ee.getCause() instanceof IOException) {
+            return (IOException) ee.getCause();
+        }
+        return new IOException(ee.getCause());
+    }
+}
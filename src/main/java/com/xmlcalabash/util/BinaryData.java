@@ -0,0 +1,371 @@
+package com.xmlcalabash.util;
+
+import com.xmlcalabash.core.XProcException;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The bytes of a binary document.
+ *
+ * <p>Binary content used to be carried through pipelines as base64 text in a c:data or c:body
+ * element, so a large file took more than its own size again in characters, plus whatever copies
+ * were made of the tree. Instead, the bytes are kept in a byte array or, if there are more
+ * than MEMORY_LIMIT of them, in a temporary file. TreeWriter.addBinary() puts them in the wrapper
+ * element as a text node that only computes its base64 value if something (an XPath expression,
+ * a serializer, a copy into another tree) actually asks for it. Steps that want the bytes get
+ * them with openStream() and never see the base64 at all.</p>
+ *
+ * <p>A temporary file is deleted when its data is closed. Data that ends up in a document
+ * usually can't be closed, because nobody knows when the last reader of the document is
+ * finished with it, so the file is also deleted once the data has been garbage collected,
+ * and any files that are left are deleted when the JVM exits.</p>
+ */
+public class BinaryData implements Closeable {
+    private static final int MEMORY_LIMIT = 1024 * 1024;
+    private static final int CHUNK_SIZE = 4096 * 3;
+    private static final int INITIAL_SIZE = 16 * 1024;
+
+    private static ReferenceQueue<BinaryData> collected = new ReferenceQueue<BinaryData> ();
+    private static Set<TemporaryFile> temporaryFiles = Collections.synchronizedSet(new HashSet<TemporaryFile> ());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                TemporaryFile[] files = null;
+                synchronized (temporaryFiles) {
+                    files = temporaryFiles.toArray(new TemporaryFile[0]);
+                }
+                for (TemporaryFile file : files) {
+                    file.delete();
+                }
+            }
+        });
+    }
+
+    private ByteBuffer buffer = null;
+    private File file = null;
+    private TemporaryFile temporaryFile = null;
+    private long length = 0;
+    private boolean closed = false;
+
+    private BinaryData() {
+        // use read() or an Output
+    }
+
+    /**
+     * Reads a stream to the end. The stream isn't closed.
+     */
+    public static BinaryData read(InputStream stream) throws IOException {
+        Output out = new Output();
+        try {
+            byte[] bytes = new byte[CHUNK_SIZE];
+            int read = stream.read(bytes);
+            while (read >= 0) {
+                out.write(bytes, 0, read);
+                read = stream.read(bytes);
+            }
+        } finally {
+            out.close();
+        }
+        return out.getData();
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public synchronized InputStream getInputStream() throws IOException {
+        if (closed) {
+            throw new IOException("The binary data has been closed");
+        }
+
+        if (file != null) {
+            // The stream keeps the data, and so the file, from being collected while it's open
+            return new FilterInputStream(new FileInputStream(file)) {
+                private BinaryData data = BinaryData.this;
+            };
+        }
+
+        final ByteBuffer bytes = buffer.duplicate();
+        return new InputStream() {
+            public int read() {
+                return bytes.hasRemaining() ? bytes.get() & 0xff : -1;
+            }
+
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!bytes.hasRemaining()) {
+                    return -1;
+                }
+                len = Math.min(len, bytes.remaining());
+                bytes.get(b, off, len);
+                return len;
+            }
+
+            public int available() {
+                return bytes.remaining();
+            }
+        };
+    }
+
+    /**
+     * Returns the base64 encoding of the bytes, in the same lines that ReadableData has always
+     * produced.
+     */
+    public String getBase64() {
+        StringBuilder sb = new StringBuilder((int) Math.min(Integer.MAX_VALUE, length * 4 / 3 + length / 57 + 16));
+        try {
+            InputStream stream = getInputStream();
+            try {
+                // Fill the buffer each time so that we get an even number of base64 lines
+                byte[] bytes = new byte[CHUNK_SIZE];
+                int pos = 0;
+                int read = stream.read(bytes, 0, CHUNK_SIZE);
+                while (read >= 0) {
+                    pos += read;
+                    if (pos == CHUNK_SIZE) {
+                        sb.append(Base64.encodeBytes(bytes, 0, pos)).append("\n");
+                        pos = 0;
+                    }
+                    read = stream.read(bytes, pos, CHUNK_SIZE - pos);
+                }
+                if (pos > 0 || length == 0) {
+                    sb.append(Base64.encodeBytes(bytes, 0, pos)).append("\n");
+                }
+            } finally {
+                stream.close();
+            }
+        } catch (IOException ioe) {
+            throw new XProcException(ioe);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Releases the bytes, deleting the temporary file if there is one.
+     */
+    public synchronized void close() {
+        closed = true;
+        buffer = null;
+        file = null;
+        if (temporaryFile != null) {
+            temporaryFile.clear();
+            temporaryFile.delete();
+            temporaryFile = null;
+        }
+    }
+
+    private void createTemporaryFile() throws IOException {
+        deleteCollected();
+        file = File.createTempFile("calabash", ".bin");
+        temporaryFile = new TemporaryFile(this, file);
+        temporaryFiles.add(temporaryFile);
+    }
+
+    // Deletes the files that belonged to data that has been garbage collected
+    private static void deleteCollected() {
+        TemporaryFile file = (TemporaryFile) collected.poll();
+        while (file != null) {
+            file.delete();
+            file = (TemporaryFile) collected.poll();
+        }
+    }
+
+    /**
+     * Returns the bytes behind a binary document, document element, or wrapper element, or null
+     * if its content is ordinary base64 text.
+     */
+    public static BinaryData getBinaryData(XdmNode node) {
+        if (node.getNodeKind() == XdmNodeKind.DOCUMENT) {
+            node = S9apiUtils.getDocumentElement(node);
+            if (node == null) {
+                return null;
+            }
+        }
+
+        BinaryData data = null;
+        XdmSequenceIterator iter = node.axisIterator(Axis.CHILD);
+        while (iter.hasNext()) {
+            NodeInfo child = ((XdmNode) iter.next()).getUnderlyingNode();
+            if (data != null || !(child instanceof BinaryText)) {
+                return null;
+            }
+            data = ((BinaryText) child).getData();
+        }
+        return data;
+    }
+
+    /**
+     * Returns the number of bytes that openStream() will return for a binary document or
+     * wrapper element, or -1 if that can't be known without decoding it.
+     */
+    public static long getDecodedLength(XdmNode node) throws IOException {
+        BinaryData data = getBinaryData(node);
+        if (data == null) {
+            return -1;
+        }
+
+        InputStream stream = data.getInputStream();
+        try {
+            int head = stream.read() | (stream.read() << 8);
+            return head == GZIPInputStream.GZIP_MAGIC ? -1 : data.getLength();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Opens a stream of the decoded content of a binary document or wrapper element.
+     *
+     * <p>Base64.decode() quietly expands gzipped content, and steps such as cx:gunzip depend on
+     * that, so content that starts with the gzip magic number is expanded here too.</p>
+     */
+    public static InputStream openStream(XdmNode node) throws IOException {
+        BinaryData data = getBinaryData(node);
+        if (data == null) {
+            return new ByteArrayInputStream(Base64.decode(node.getStringValue()));
+        }
+
+        InputStream stream = new BufferedInputStream(data.getInputStream());
+        stream.mark(2);
+        int head = stream.read() | (stream.read() << 8);
+        stream.reset();
+        if (head == GZIPInputStream.GZIP_MAGIC) {
+            return new GZIPInputStream(stream);
+        }
+        return stream;
+    }
+
+    /**
+     * Writes the decoded content of a binary document or wrapper element to a stream.
+     */
+    public static void write(XdmNode node, OutputStream out) throws IOException {
+        InputStream stream = openStream(node);
+        try {
+            byte[] bytes = new byte[CHUNK_SIZE];
+            int read = stream.read(bytes);
+            while (read >= 0) {
+                out.write(bytes, 0, read);
+                read = stream.read(bytes);
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Returns the decoded content of a binary document or wrapper element.
+     */
+    public static byte[] decode(XdmNode node) throws IOException {
+        BinaryData data = getBinaryData(node);
+        if (data == null) {
+            return Base64.decode(node.getStringValue());
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, data.getLength()));
+        write(node, baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * A stream that collects what's written to it as BinaryData. Call getData() after it's
+     * been closed.
+     *
+     * <p>The bytes are collected in an array, which grows as needed, and written to a
+     * temporary file once there are more than MEMORY_LIMIT of them. The array is on the heap,
+     * not in direct memory, so that lots of small documents only cost what the heap can
+     * collect.</p>
+     */
+    public static class Output extends OutputStream {
+        private BinaryData data = new BinaryData();
+        private byte[] buffer = new byte[INITIAL_SIZE];
+        private FileOutputStream out = null;
+        private byte[] single = new byte[1];
+        private boolean closed = false;
+
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (out == null && data.length + len > MEMORY_LIMIT) {
+                data.createTemporaryFile();
+                out = new FileOutputStream(data.file);
+                out.write(buffer, 0, (int) data.length);
+                buffer = null;
+            }
+
+            if (out != null) {
+                out.write(b, off, len);
+            } else {
+                if (buffer.length - data.length < len) {
+                    int size = (int) Math.min(MEMORY_LIMIT, Math.max(2L * buffer.length, data.length + len));
+                    buffer = Arrays.copyOf(buffer, size);
+                }
+                System.arraycopy(b, off, buffer, (int) data.length, len);
+            }
+            data.length += len;
+        }
+
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            if (out == null) {
+                data.buffer = ByteBuffer.wrap(buffer, 0, (int) data.length);
+                buffer = null;
+            } else {
+                out.close();
+            }
+        }
+
+        public BinaryData getData() {
+            if (!closed) {
+                throw new IllegalStateException("BinaryData.Output hasn't been closed");
+            }
+            return data;
+        }
+    }
+
+    private static class TemporaryFile extends PhantomReference<BinaryData> {
+        private File file = null;
+
+        private TemporaryFile(BinaryData data, File file) {
+            super(data, collected);
+            this.file = file;
+        }
+
+        private void delete() {
+            temporaryFiles.remove(this);
+            file.delete();
+        }
+    }
+}
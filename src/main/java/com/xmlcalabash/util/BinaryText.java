@@ -0,0 +1,44 @@
+package com.xmlcalabash.util;
+
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.linked.TextImpl;
+
+import java.lang.ref.SoftReference;
+
+/*
+ * A text node whose value is the base64 encoding of some BinaryData. The encoding is only
+ * computed when someone asks for the string value, and it's only softly held onto afterwards.
+ * Saxon's linked tree is the only tree model that will accept a node like this one; see
+ * TreeWriter.addBinary().
+ */
+class BinaryText extends TextImpl {
+    private BinaryData data = null;
+    private SoftReference<String> base64 = null;
+
+    public BinaryText(BinaryData data) {
+        super("");
+        this.data = data;
+    }
+
+    public BinaryData getData() {
+        return data;
+    }
+
+    public synchronized String getStringValue() {
+        String value = base64 == null ? null : base64.get();
+        if (value == null) {
+            value = data.getBase64();
+            base64 = new SoftReference<String>(value);
+        }
+        return value;
+    }
+
+    public CharSequence getStringValueCS() {
+        return getStringValue();
+    }
+
+    public void copy(Receiver out, int copyOptions, int locationId) throws XPathException {
+        out.characters(getStringValue(), locationId, 0);
+    }
+}
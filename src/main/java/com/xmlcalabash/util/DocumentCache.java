@@ -0,0 +1,162 @@
+package com.xmlcalabash.util;
+
+import net.sf.saxon.s9api.XdmNode;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of parsed documents read from files.
+ *
+ * <p>p:document, p:load, XInclude, and document() in XSLT all go through XProcURIResolver, and
+ * without a cache every one of them parses the file again, even when it's the same reference
+ * document in every iteration of a loop or every run of a pipeline. A document is cached with
+ * the modification time and size its file had when it was read; if either has changed, the
+ * document is discarded and the file is parsed again.</p>
+ *
+ * <p>XdmNodes are immutable, so the cache can be shared by the runtimes that use the same
+ * configuration. It holds at most maxEntries documents, and at most about maxBytes of document
+ * trees; the least recently used documents are discarded first.</p>
+ */
+public class DocumentCache {
+    private int maxEntries = 0;
+    private long maxBytes = 0;
+    private LinkedHashMap<String,CachedDocument> cache = null;
+    private long bytes = 0;
+    private AtomicLong hits = new AtomicLong(0);
+    private AtomicLong misses = new AtomicLong(0);
+    private AtomicLong stale = new AtomicLong(0);
+    private AtomicLong evictions = new AtomicLong(0);
+
+    public DocumentCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        cache = new LinkedHashMap<String,CachedDocument>(16, 0.75f, true);
+    }
+
+    /**
+     * Can documents with this URI be cached? Only files can be checked for changes.
+     */
+    public static boolean cacheable(URI uri) {
+        return "file".equals(uri.getScheme()) && uri.getFragment() == null;
+    }
+
+    /**
+     * Returns the validator for a file: its modification time and size, or null if it doesn't
+     * exist. Get it before the file is parsed, so that a change made while it's being parsed
+     * isn't missed.
+     */
+    public static String validator(URI uri) {
+        try {
+            File file = new File(uri);
+            if (!file.isFile()) {
+                return null;
+            }
+            return file.lastModified() + "/" + file.length();
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cached document for this URI, or null if there isn't one or its file has
+     * changed.
+     */
+    public XdmNode get(URI uri) {
+        String key = uri.toASCIIString();
+        CachedDocument cached = null;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+
+        if (cached != null && !cached.validator.equals(validator(uri))) {
+            synchronized (cache) {
+                if (cache.get(key) == cached) {
+                    cache.remove(key);
+                    bytes -= cached.size;
+                }
+            }
+            stale.incrementAndGet();
+            cached = null;
+        }
+
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return cached.doc;
+    }
+
+    public void put(URI uri, XdmNode doc, String validator) {
+        if (validator == null) {
+            return;
+        }
+
+        CachedDocument cached = new CachedDocument(doc, validator, S9apiUtils.estimateSize(doc));
+        if (cached.size > maxBytes) {
+            return;
+        }
+
+        synchronized (cache) {
+            CachedDocument previous = cache.put(uri.toASCIIString(), cached);
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+            bytes += cached.size;
+
+            Iterator<CachedDocument> iter = cache.values().iterator();
+            while (cache.size() > maxEntries || bytes > maxBytes) {
+                CachedDocument eldest = iter.next();
+                iter.remove();
+                bytes -= eldest.size;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    // How many of the misses were documents that had to be parsed again because they had changed
+    public long getStale() {
+        return stale.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+            bytes = 0;
+        }
+    }
+
+    private static class CachedDocument {
+        private XdmNode doc = null;
+        private String validator = null;
+        private long size = 0;
+
+        private CachedDocument(XdmNode doc, String validator, long size) {
+            this.doc = doc;
+            this.validator = validator;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.xmlcalabash.util;
+
+import com.thaiopensource.util.PropertyMap;
+import com.thaiopensource.util.PropertyMapBuilder;
+import com.thaiopensource.validate.IncorrectSchemaException;
+import com.thaiopensource.validate.Schema;
+import com.thaiopensource.validate.SchemaReader;
+import com.thaiopensource.validate.ValidateProperty;
+import com.thaiopensource.validate.Validator;
+import com.thaiopensource.xml.sax.CountingErrorHandler;
+import com.thaiopensource.xml.sax.ErrorHandlerImpl;
+import com.thaiopensource.xml.sax.Jaxp11XMLReaderCreator;
+import com.thaiopensource.xml.sax.XMLReaderCreator;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import javax.xml.transform.sax.SAXSource;
+import java.io.IOException;
+
+/**
+ * Jing's ValidationDriver, split in two so that the schema can be cached.
+ *
+ * <p>A ValidationDriver compiles a schema and then validates with it, but it doesn't give the
+ * compiled schema back. These methods do the same things separately.</p>
+ */
+public class JingValidation {
+    private JingValidation() {
+        // never instantiated
+    }
+
+    /**
+     * Compiles a schema, or returns null if it isn't a correct schema. Errors in the schema
+     * are reported to the properties' error handler.
+     */
+    public static Schema createSchema(SchemaReader reader, InputSource schema, PropertyMap properties) throws SAXException, IOException {
+        try {
+            return reader.createSchema(schema, properties);
+        } catch (IncorrectSchemaException ise) {
+            return null;
+        }
+    }
+
+    /**
+     * Validates a document, returning true if it's valid. Errors are reported to the
+     * properties' error handler. If the source has an XMLReader, it's used to read the
+     * document.
+     */
+    public static boolean validate(Schema schema, SAXSource document, PropertyMap properties) throws SAXException, IOException {
+        PropertyMapBuilder builder = new PropertyMapBuilder(properties);
+        ErrorHandler eh = properties.get(ValidateProperty.ERROR_HANDLER);
+        if (eh == null) {
+            eh = new ErrorHandlerImpl();
+        }
+        CountingErrorHandler counter = new CountingErrorHandler(eh);
+        builder.put(ValidateProperty.ERROR_HANDLER, counter);
+
+        XMLReader reader = document.getXMLReader();
+        if (reader == null) {
+            XMLReaderCreator creator = properties.get(ValidateProperty.XML_READER_CREATOR);
+            if (creator == null) {
+                creator = new Jaxp11XMLReaderCreator();
+            }
+            reader = creator.createXMLReader();
+        }
+
+        Validator validator = schema.createValidator(builder.toPropertyMap());
+        reader.setErrorHandler(counter);
+        reader.setContentHandler(validator.getContentHandler());
+        DTDHandler dh = validator.getDTDHandler();
+        if (dh != null) {
+            reader.setDTDHandler(dh);
+        }
+        reader.parse(document.getInputSource());
+        return !counter.getHadErrorOrFatalError();
+    }
+}
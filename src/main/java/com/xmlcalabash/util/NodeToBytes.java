@@ -109,8 +109,7 @@ public class NodeToBytes {
     private static void storeBinary(XdmNode doc, OutputStream stream) {
         try {
             try {
-                byte[] decoded = Base64.decode(doc.getStringValue());
-                stream.write(decoded);
+                BinaryData.write(doc, stream);
             } finally {
                 stream.close();
             }
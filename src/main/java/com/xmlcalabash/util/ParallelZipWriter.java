@@ -0,0 +1,475 @@
+package com.xmlcalabash.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import com.xmlcalabash.io.FileChannelInputStream;
+
+/**
+ * Writes a zip archive, compressing its entries in parallel.
+ *
+ * <p>ZipOutputStream deflates one entry at a time on the thread that writes it. Here each entry
+ * is deflated by a task on the executor into a temporary chunk file, along with its CRC and
+ * sizes. The chunks are copied to the archive in the order the entries were added, as soon as
+ * the ones before them are done, and finish() writes the central directory. Since the sizes are
+ * known before the local header is written, entries have no data descriptors, and archives and
+ * entries larger than 4GB get Zip64 records.</p>
+ *
+ * <p>Nothing is held on the heap: entry content goes from its source to a chunk on disk, and
+ * from there to the archive.</p>
+ */
+public class ParallelZipWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    private static final int ZIP64_EXTRA = 0x0001;
+    // General purpose flag: names and comments are UTF-8
+    private static final int UTF8_FLAG = 0x800;
+
+    private OutputStream out = null;
+    private ExecutorService executor = null;
+    private List<Future<Chunk>> pending = new ArrayList<Future<Chunk>>();
+    private List<Chunk> written = new ArrayList<Chunk>();
+    private long offset = 0;
+    private boolean finished = false;
+
+    /**
+     * Writes the content of an entry. It may be called on another thread, and it mustn't close
+     * the stream.
+     */
+    public interface EntryContent {
+        public void write(OutputStream out) throws IOException;
+    }
+
+    public ParallelZipWriter(OutputStream out, ExecutorService executor) {
+        this.out = out;
+        this.executor = executor;
+    }
+
+    /**
+     * Adds an entry. The method is ZipEntry.DEFLATED or ZipEntry.STORED; a time of -1 means now.
+     */
+    public void addEntry(String name, int method, int level, long time, String comment, final EntryContent content) throws IOException {
+        final Chunk chunk = new Chunk(name, method, level, time < 0 ? System.currentTimeMillis() : time, comment);
+        add(executor.submit(new Callable<Chunk>() {
+            public Chunk call() throws IOException {
+                chunk.write(content);
+                return chunk;
+            }
+        }));
+    }
+
+    /**
+     * Adds an entry read from another archive, a ZipInputStream positioned at the entry, for
+     * example. The content is read before this returns; if it has to be deflated, that's done
+     * in parallel like any other entry.
+     */
+    public void copyEntry(ZipEntry entry, final InputStream in) throws IOException {
+        final Chunk chunk = new Chunk(entry.getName(), entry.getMethod(), Deflater.DEFAULT_COMPRESSION,
+                entry.getTime() < 0 ? System.currentTimeMillis() : entry.getTime(), entry.getComment());
+        chunk.extra = withoutZip64(entry.getExtra());
+
+        if (chunk.method == ZipEntry.STORED) {
+            // Nothing to compress, so there's no point in doing it on another thread
+            FutureTask<Chunk> stored = new FutureTask<Chunk>(new Callable<Chunk>() {
+                public Chunk call() throws IOException {
+                    chunk.write(new Copy(in));
+                    return chunk;
+                }
+            });
+            stored.run();
+            add(stored);
+            return;
+        }
+
+        // Spool it, since the stream can't be read on another thread
+        final File spool = File.createTempFile("calabash-zip", ".spool");
+        try {
+            OutputStream spoolOut = new FileOutputStream(spool);
+            try {
+                new Copy(in).write(spoolOut);
+            } finally {
+                spoolOut.close();
+            }
+        } catch (IOException ioe) {
+            spool.delete();
+            throw ioe;
+        }
+
+        add(executor.submit(new Callable<Chunk>() {
+            public Chunk call() throws IOException {
+                try {
+                    FileChannelInputStream spoolIn = new FileChannelInputStream(spool);
+                    try {
+                        chunk.write(new Copy(spoolIn));
+                    } finally {
+                        spoolIn.close();
+                    }
+                } finally {
+                    spool.delete();
+                }
+                return chunk;
+            }
+        }));
+    }
+
+    /**
+     * Waits for the remaining entries, writes them and the central directory. The underlying
+     * stream isn't closed.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+
+        while (!pending.isEmpty()) {
+            writeChunk(pending.remove(0));
+        }
+
+        long start = offset;
+        ByteArrayOutputStream dir = new ByteArrayOutputStream();
+        for (Chunk chunk : written) {
+            chunk.writeCentralHeader(dir);
+        }
+        dir.writeTo(out);
+        offset += dir.size();
+        writeEnd(start, offset - start, written.size());
+        out.flush();
+        finished = true;
+    }
+
+    /**
+     * Finishes the archive and closes the underlying stream. If finish() hasn't been called,
+     * or it failed, the entries that haven't been written are discarded instead.
+     */
+    public void close() throws IOException {
+        try {
+            if (!finished) {
+                discard();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void add(Future<Chunk> future) throws IOException {
+        pending.add(future);
+        while (!pending.isEmpty() && pending.get(0).isDone()) {
+            writeChunk(pending.remove(0));
+        }
+    }
+
+    private void writeChunk(Future<Chunk> future) throws IOException {
+        Chunk chunk = null;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            } else if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new IOException(ee.getCause());
+        }
+
+        try {
+            chunk.offset = offset;
+            byte[] header = chunk.localHeader();
+            out.write(header);
+            FileChannelInputStream in = new FileChannelInputStream(chunk.file);
+            try {
+                in.transferTo(out);
+            } finally {
+                in.close();
+            }
+            offset += header.length + chunk.csize;
+            written.add(chunk);
+        } finally {
+            chunk.file.delete();
+        }
+    }
+
+    private void discard() {
+        for (Future<Chunk> future : pending) {
+            try {
+                future.get().file.delete();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ee) {
+                // The task cleaned up after itself
+            }
+        }
+        pending.clear();
+    }
+
+    private void writeEnd(long start, long size, int count) throws IOException {
+        ByteArrayOutputStream end = new ByteArrayOutputStream();
+        if (start >= ZIP64_MAGIC || size >= ZIP64_MAGIC || count >= ZIP64_MAGIC_COUNT) {
+            long zip64End = offset;
+            writeInt(end, 0x06064b50);
+            writeLong(end, 44);
+            writeShort(end, 45);
+            writeShort(end, 45);
+            writeInt(end, 0);
+            writeInt(end, 0);
+            writeLong(end, count);
+            writeLong(end, count);
+            writeLong(end, size);
+            writeLong(end, start);
+
+            writeInt(end, 0x07064b50);
+            writeInt(end, 0);
+            writeLong(end, zip64End);
+            writeInt(end, 1);
+        }
+
+        writeInt(end, 0x06054b50);
+        writeShort(end, 0);
+        writeShort(end, 0);
+        writeShort(end, Math.min(count, ZIP64_MAGIC_COUNT));
+        writeShort(end, Math.min(count, ZIP64_MAGIC_COUNT));
+        writeInt(end, Math.min(size, ZIP64_MAGIC));
+        writeInt(end, Math.min(start, ZIP64_MAGIC));
+        writeShort(end, 0);
+        end.writeTo(out);
+        offset += end.size();
+    }
+
+    private static byte[] withoutZip64(byte[] extra) {
+        if (extra == null) {
+            return new byte[0];
+        }
+
+        // We write our own Zip64 fields, if they're needed
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        int pos = 0;
+        while (pos + 4 <= extra.length) {
+            int id = (extra[pos] & 0xff) | (extra[pos + 1] & 0xff) << 8;
+            int len = (extra[pos + 2] & 0xff) | (extra[pos + 3] & 0xff) << 8;
+            if (pos + 4 + len > extra.length) {
+                break;
+            }
+            if (id != ZIP64_EXTRA) {
+                result.write(extra, pos, 4 + len);
+            }
+            pos += 4 + len;
+        }
+        return result.toByteArray();
+    }
+
+    private static int dosTime(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (cal.get(Calendar.MONTH) + 1) << 21 | cal.get(Calendar.DAY_OF_MONTH) << 16
+                | cal.get(Calendar.HOUR_OF_DAY) << 11 | cal.get(Calendar.MINUTE) << 5 | cal.get(Calendar.SECOND) >> 1;
+    }
+
+    private static void writeShort(OutputStream out, int v) throws IOException {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+    }
+
+    private static void writeInt(OutputStream out, long v) throws IOException {
+        writeShort(out, (int) (v & 0xffff));
+        writeShort(out, (int) ((v >>> 16) & 0xffff));
+    }
+
+    private static void writeLong(OutputStream out, long v) throws IOException {
+        writeInt(out, v & 0xffffffffL);
+        writeInt(out, v >>> 32);
+    }
+
+    private static class Copy implements EntryContent {
+        private InputStream in = null;
+
+        private Copy(InputStream in) {
+            this.in = in;
+        }
+
+        public void write(OutputStream out) throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read = in.read(buffer, 0, BUFFER_SIZE);
+            while (read >= 0) {
+                out.write(buffer, 0, read);
+                read = in.read(buffer, 0, BUFFER_SIZE);
+            }
+        }
+    }
+
+    private static class Chunk {
+        private String name = null;
+        private int method = ZipEntry.DEFLATED;
+        private int level = Deflater.DEFAULT_COMPRESSION;
+        private long time = 0;
+        private String comment = null;
+        private byte[] extra = new byte[0];
+        private File file = null;
+        private long crc = 0;
+        private long size = 0;
+        private long csize = 0;
+        private long offset = 0;
+
+        private Chunk(String name, int method, int level, long time, String comment) {
+            this.name = name;
+            this.method = method;
+            this.level = level;
+            this.time = time;
+            this.comment = comment;
+        }
+
+        private void write(EntryContent content) throws IOException {
+            file = File.createTempFile("calabash-zip", ".chunk");
+            final CRC32 crc32 = new CRC32();
+            Deflater deflater = null;
+            try {
+                OutputStream chunkOut = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+                if (method == ZipEntry.DEFLATED) {
+                    deflater = new Deflater(level, true);
+                    chunkOut = new DeflaterOutputStream(chunkOut, deflater, BUFFER_SIZE);
+                }
+                try {
+                    content.write(new FilterOutputStream(chunkOut) {
+                        public void write(int b) throws IOException {
+                            crc32.update(b);
+                            size++;
+                            out.write(b);
+                        }
+
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            crc32.update(b, off, len);
+                            size += len;
+                            out.write(b, off, len);
+                        }
+
+                        public void close() throws IOException {
+                            flush();
+                        }
+                    });
+                } finally {
+                    chunkOut.close();
+                }
+            } catch (IOException ioe) {
+                file.delete();
+                throw ioe;
+            } catch (RuntimeException re) {
+                file.delete();
+                throw re;
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+            crc = crc32.getValue();
+            csize = file.length();
+        }
+
+        private boolean zip64() {
+            return size >= ZIP64_MAGIC || csize >= ZIP64_MAGIC;
+        }
+
+        private int version() {
+            if (zip64() || offset >= ZIP64_MAGIC) {
+                return 45;
+            }
+            return method == ZipEntry.DEFLATED ? 20 : 10;
+        }
+
+        private byte[] localHeader() throws IOException {
+            byte[] nameBytes = name.getBytes("UTF-8");
+            ByteArrayOutputStream header = new ByteArrayOutputStream(30 + nameBytes.length + extra.length + 20);
+            writeInt(header, 0x04034b50);
+            writeShort(header, zip64() ? 45 : (method == ZipEntry.DEFLATED ? 20 : 10));
+            writeShort(header, UTF8_FLAG);
+            writeShort(header, method);
+            writeInt(header, dosTime(time));
+            writeInt(header, crc);
+            if (zip64()) {
+                writeInt(header, ZIP64_MAGIC);
+                writeInt(header, ZIP64_MAGIC);
+            } else {
+                writeInt(header, csize);
+                writeInt(header, size);
+            }
+            writeShort(header, nameBytes.length);
+            writeShort(header, extra.length + (zip64() ? 20 : 0));
+            header.write(nameBytes);
+            if (zip64()) {
+                writeShort(header, ZIP64_EXTRA);
+                writeShort(header, 16);
+                writeLong(header, size);
+                writeLong(header, csize);
+            }
+            header.write(extra);
+            return header.toByteArray();
+        }
+
+        private void writeCentralHeader(ByteArrayOutputStream dir) throws IOException {
+            byte[] nameBytes = name.getBytes("UTF-8");
+            byte[] commentBytes = comment == null ? new byte[0] : comment.getBytes("UTF-8");
+
+            // Only the fields that don't fit go in the Zip64 extra field, in this order
+            ByteArrayOutputStream zip64 = new ByteArrayOutputStream();
+            if (size >= ZIP64_MAGIC) {
+                writeLong(zip64, size);
+            }
+            if (csize >= ZIP64_MAGIC) {
+                writeLong(zip64, csize);
+            }
+            if (offset >= ZIP64_MAGIC) {
+                writeLong(zip64, offset);
+            }
+            int zip64Length = zip64.size() == 0 ? 0 : zip64.size() + 4;
+
+            writeInt(dir, 0x02014b50);
+            writeShort(dir, version());
+            writeShort(dir, version());
+            writeShort(dir, UTF8_FLAG);
+            writeShort(dir, method);
+            writeInt(dir, dosTime(time));
+            writeInt(dir, crc);
+            writeInt(dir, Math.min(csize, ZIP64_MAGIC));
+            writeInt(dir, Math.min(size, ZIP64_MAGIC));
+            writeShort(dir, nameBytes.length);
+            writeShort(dir, extra.length + zip64Length);
+            writeShort(dir, commentBytes.length);
+            writeShort(dir, 0);
+            writeShort(dir, 0);
+            writeInt(dir, 0);
+            writeInt(dir, Math.min(offset, ZIP64_MAGIC));
+            dir.write(nameBytes);
+            if (zip64Length > 0) {
+                writeShort(dir, ZIP64_EXTRA);
+                writeShort(dir, zip64.size());
+                zip64.writeTo(dir);
+            }
+            dir.write(extra);
+            dir.write(commentBytes);
+        }
+    }
+}
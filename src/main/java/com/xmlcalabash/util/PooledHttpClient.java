@@ -0,0 +1,114 @@
+package com.xmlcalabash.util;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.SystemDefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP client shared by p:http-request and the HTTP data store.
+ *
+ * <p>Like the SystemDefaultHttpClient it replaces, it honours the system proxy settings, but
+ * its connections are always pooled and the pool is configured from XProcConfiguration: the
+ * maximum number of connections in all, the maximum to any one host (route), how long an idle
+ * connection is kept, and how long a connection is kept alive if the server doesn't say. Zero
+ * means whatever SystemDefaultHttpClient would have done.</p>
+ */
+public class PooledHttpClient extends SystemDefaultHttpClient {
+    private int maxTotal = 0;
+    private int maxPerRoute = 0;
+    private int idleTimeout = 0;
+    private int keepAlive = 0;
+    private PoolingClientConnectionManager manager = null;
+    private ScheduledExecutorService evictor = null;
+
+    /**
+     * @param maxTotal the maximum number of connections
+     * @param maxPerRoute the maximum number of connections to any one host
+     * @param idleTimeout the number of seconds after which idle connections are closed
+     * @param keepAlive the number of seconds a connection is kept alive if the server doesn't say
+     */
+    public PooledHttpClient(int maxTotal, int maxPerRoute, int idleTimeout, int keepAlive) {
+        this.maxTotal = maxTotal;
+        this.maxPerRoute = maxPerRoute;
+        this.idleTimeout = idleTimeout;
+        this.keepAlive = keepAlive;
+    }
+
+    protected synchronized ClientConnectionManager createClientConnectionManager() {
+        manager = new PoolingClientConnectionManager(SchemeRegistryFactory.createSystemDefault()) {
+            public void shutdown() {
+                stopEvictor();
+                super.shutdown();
+            }
+        };
+        // These defaults are the ones SystemDefaultHttpClient uses
+        int perRoute = maxPerRoute;
+        if (perRoute <= 0) {
+            perRoute = Integer.parseInt(System.getProperty("http.maxConnections", "5"));
+        }
+        manager.setDefaultMaxPerRoute(perRoute);
+        manager.setMaxTotal(maxTotal > 0 ? maxTotal : 2 * perRoute);
+
+        if (idleTimeout > 0) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "xmlcalabash-http-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long period = Math.max(1, idleTimeout / 2);
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    manager.closeExpiredConnections();
+                    manager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+                }
+            }, period, period, TimeUnit.SECONDS);
+        }
+
+        return manager;
+    }
+
+    protected ConnectionKeepAliveStrategy createConnectionKeepAliveStrategy() {
+        final ConnectionKeepAliveStrategy strategy = super.createConnectionKeepAliveStrategy();
+        if (keepAlive <= 0) {
+            return strategy;
+        }
+
+        return new ConnectionKeepAliveStrategy() {
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = strategy.getKeepAliveDuration(response, context);
+                if (duration < 0) {
+                    // The server didn't say
+                    duration = keepAlive * 1000L;
+                }
+                return duration;
+            }
+        };
+    }
+
+    /**
+     * Returns the number of connections leased, available, and waited for, across all hosts.
+     */
+    public PoolStats getPoolStats() {
+        getConnectionManager(); // make sure the pool exists
+        return manager.getTotalStats();
+    }
+
+    private synchronized void stopEvictor() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+            evictor = null;
+        }
+    }
+}
@@ -21,6 +21,7 @@
 package com.xmlcalabash.util;
 
 import java.net.URI;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Vector;
@@ -58,6 +59,8 @@ public class ProcessMatch extends TreeWriter {
     private XPathExpression matcher = null;
     private Configuration saxonConfig = null;
     private int count;
+    private Vector<XdmNode> selection = null;
+    private HashSet<XdmNode> selected = null;
 
     /**
      * Creates a new instance of ProcessMatch
@@ -143,11 +146,46 @@ public class ProcessMatch extends TreeWriter {
         return count;
     }
 
+    /**
+     * Returns the nodes that match, in the order that match() will pass them to the processor,
+     * assuming that the processor descends into matched documents but not into matched elements.
+     * The nodes are remembered, so a subsequent call to match() on the same document recognizes
+     * them without evaluating the pattern again.
+     */
+    public Vector<XdmNode> select(XdmNode doc, RuntimeValue match) {
+        selection = new Vector<XdmNode> ();
+        selected = null;
+
+        try {
+            XPathEvaluator xeval = new XPathEvaluator(saxonConfig);
+            NamespaceResolver resolver = new MatchingNamespaceResolver(match.getNamespaceBindings());
+            xeval.getStaticContext().setNamespaceResolver(resolver);
+
+            matcher = xeval.createPattern(match.getString());
+
+            select(doc);
+        } catch (XProcException e) {
+            throw e;
+        } catch (Exception e) {
+            if (e.getMessage() != null && e.getMessage().contains("syntax error")) {
+                throw XProcException.dynamicError(23,match.getNode(),e,"Syntax error in match pattern: \"" + match.getString() + "\"");
+            } else {
+                throw XProcException.dynamicError(23,match.getNode(),e,"Expression could not be evaluated: " + match.getString());
+            }
+        }
+
+        selected = new HashSet<XdmNode> (selection);
+        return selection;
+    }
+
     public XdmNode getResult() {
         return destination.getXdmNode();
     }
 
     public boolean matches(XdmNode node) {
+        if (selected != null) {
+            return selected.contains(node);
+        }
         try {
             XPathDynamicContext context = matcher.createDynamicContext(node.getUnderlyingNode());
             return matcher.effectiveBooleanValue(context);
@@ -276,6 +314,30 @@ public class ProcessMatch extends TreeWriter {
         }
     }
 
+    private void select(XdmNode node) throws SaxonApiException, XPathException {
+        boolean match = matches(node);
+
+        if (match && node.getNodeKind() != XdmNodeKind.DOCUMENT) {
+            selection.add(node);
+        }
+
+        if (node.getNodeKind() == XdmNodeKind.DOCUMENT) {
+            XdmSequenceIterator iter = node.axisIterator(Axis.CHILD);
+            while (iter.hasNext()) {
+                select((XdmNode) iter.next());
+            }
+        } else if (node.getNodeKind() == XdmNodeKind.ELEMENT && !match) {
+            XdmSequenceIterator iter = node.axisIterator(Axis.ATTRIBUTE);
+            while (iter.hasNext()) {
+                select((XdmNode) iter.next());
+            }
+            iter = node.axisIterator(Axis.CHILD);
+            while (iter.hasNext()) {
+                select((XdmNode) iter.next());
+            }
+        }
+    }
+
     private void traverse(XdmNode node, boolean deep) throws SaxonApiException, XPathException {
         boolean match = matches(node);
 
@@ -33,9 +33,6 @@ import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XPathCompiler;
 import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XPathSelector;
-import net.sf.saxon.s9api.XQueryCompiler;
-import net.sf.saxon.s9api.XQueryEvaluator;
-import net.sf.saxon.s9api.XQueryExecutable;
 import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
@@ -43,6 +40,10 @@ import net.sf.saxon.s9api.XdmNodeKind;
 import net.sf.saxon.s9api.XdmSequenceIterator;
 import net.sf.saxon.s9api.XdmValue;
 import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.query.QueryResult;
+import net.sf.saxon.tree.tiny.TinyNodeImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
+import net.sf.saxon.event.ComplexContentOutputter;
 import net.sf.saxon.event.Receiver;
 import net.sf.saxon.event.TreeReceiver;
 import net.sf.saxon.event.NamespaceReducer;
@@ -57,6 +58,9 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
 import java.util.Iterator;
 import java.util.Vector;
 import java.util.HashSet;
@@ -67,6 +71,10 @@ import nu.validator.htmlparser.sax.HtmlSerializer;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamResult;
+
 /**
  *
  * @author ndw
@@ -158,56 +166,70 @@ public class S9apiUtils {
         serialize(xproc, nodes, serializer);
     }
 
+    /*
+     * The nodes are written straight to the serializer. (This used to be done by evaluating the
+     * query "." with the serializer as its destination, which meant compiling a query every
+     * time anything was serialized.) See writeNode().
+     */
     public static void serialize(XProcRuntime xproc, Vector<XdmNode> nodes, Serializer serializer) throws SaxonApiException {
         Processor qtproc = xproc.getProcessor();
-        XQueryCompiler xqcomp = qtproc.newXQueryCompiler();
-        xqcomp.setModuleURIResolver(xproc.getResolver());
-
-        // Patch suggested by oXygen to avoid errors that result from attempting to serialize
-        // a schema-valid document with a schema-naive query
-        xqcomp.getUnderlyingStaticContext().setSchemaAware(
-                xqcomp.getProcessor().getUnderlyingConfiguration().isLicensedFeature(
-                        Configuration.LicenseFeature.ENTERPRISE_XQUERY));
+        Destination destination = serializer;
 
-        XQueryExecutable xqexec = xqcomp.compile(".");
-        XQueryEvaluator xqeval = xqexec.load();
         if (xproc.getHtmlSerializer() && "html".equals(serializer.getOutputProperty(Serializer.Property.METHOD))) {
             ContentHandler ch = null;
             Object outputDest = serializer.getOutputDestination();
 
             if (outputDest == null) {
                 //???
-                xqeval.setDestination(serializer);
             } else if (outputDest instanceof OutputStream) {
                 ch = new HtmlSerializer((OutputStream) outputDest);
-                xqeval.setDestination(new SAXDestination(ch));
+                destination = new SAXDestination(ch);
             } else if (outputDest instanceof Writer) {
                 ch = new HtmlSerializer((Writer) outputDest);
-                xqeval.setDestination(new SAXDestination(ch));
+                destination = new SAXDestination(ch);
             } else if (outputDest instanceof File) {
                 try {
                     FileOutputStream fos = new FileOutputStream((File) outputDest);
                     ch = new HtmlSerializer(fos);
-                    xqeval.setDestination(new SAXDestination(ch));
+                    destination = new SAXDestination(ch);
                 } catch (FileNotFoundException fnfe) {
-                    xqeval.setDestination(serializer);
+                    // use the serializer
                 }
             } else {
                 //???
-                xqeval.setDestination(serializer);
             }
-        } else {
-            xqeval.setDestination(serializer);
         }
 
         for (XdmNode node : nodes) {
-            xqeval.setContextItem(node);
-            xqeval.run();
+            writeNode(qtproc, node, destination);
             // Even if we output an XML decl before the first node, we must not do it before any others!
             serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION, "yes");
         }
     }
 
+    /*
+     * Copies a node to the destination the way a query result is copied: the
+     * ComplexContentOutputter does namespace fixup, so an attribute added with a prefix
+     * that isn't declared in the tree (p:add-attribute does this) still gets its declaration.
+     */
+    private static void writeNode(Processor proc, XdmNode node, Destination destination) throws SaxonApiException {
+        try {
+            Configuration config = proc.getUnderlyingConfiguration();
+            PipelineConfiguration pipeConfig = config.makePipelineConfiguration();
+
+            ComplexContentOutputter out = new ComplexContentOutputter(pipeConfig);
+            out.setReceiver(new NamespaceReducer(destination.getReceiver(config)));
+            out.open();
+            out.startDocument(0);
+            out.append(node.getUnderlyingNode(), 0, NodeInfo.ALL_NAMESPACES);
+            out.endDocument();
+            out.close();
+            destination.close();
+        } catch (XPathException err) {
+            throw new SaxonApiException(err);
+        }
+    }
+
     public static boolean xpathEqual(Processor proc, XdmItem a, XdmItem b) {
         try {
             XPathCompiler c = proc.newXPathCompiler();
@@ -242,6 +264,18 @@ public class S9apiUtils {
         return isource;
     }
 
+    /**
+     * Returns a source that sends the node to whatever reads it as SAX events, without
+     * serializing it. Use this rather than xdmToInputSource() wherever a SAXSource will do.
+     */
+    public static SAXSource xdmToSAXSource(XProcRuntime runtime, XdmNode node) {
+        InputSource isource = new InputSource();
+        if (node.getBaseURI() != null) {
+            isource.setSystemId(node.getBaseURI().toASCIIString());
+        }
+        return new SAXSource(new XdmNodeReader(runtime.getProcessor(), node), isource);
+    }
+
     public static HashSet<String> excludeInlinePrefixes(XdmNode node, String prefixList) {
         HashSet<String> excludeURIs = new HashSet<String> ();
         excludeURIs.add(XProcConstants.NS_XPROC);
@@ -449,6 +483,68 @@ public class S9apiUtils {
         }
     }
 
+    /*
+     * A rough estimate of the memory used by a document, for statistics and cache limits.
+     * Only tiny trees are measured.
+     */
+    public static long estimateSize(XdmNode document) {
+        NodeInfo node = document.getUnderlyingNode();
+        if (node instanceof TinyNodeImpl) {
+            TinyTree tree = ((TinyNodeImpl) node).getTree();
+            long size = tree.getNumberOfNodes() * 20L
+                    + tree.getNumberOfAttributes() * 16L
+                    + tree.getNumberOfNamespaces() * 8L
+                    + tree.getCharacterBuffer().length() * 2L;
+            if (tree.getCommentBuffer() != null) {
+                size += tree.getCommentBuffer().length() * 2L;
+            }
+            return size;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns a hex encoded SHA-1 digest of the serialized node. The base URI isn't part of
+     * the serialization, so caches that depend on it must add it to their keys.
+     */
+    public static String digest(XdmNode node) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw XProcException.dynamicError(36);
+        }
+
+        OutputStream out = new OutputStream() {
+            public void write(int b) {
+                digest.update((byte) b);
+            }
+
+            public void write(byte[] b, int off, int len) {
+                digest.update(b, off, len);
+            }
+        };
+
+        Properties props = new Properties();
+        props.setProperty(OutputKeys.METHOD, "xml");
+        props.setProperty(OutputKeys.ENCODING, "utf-8");
+        try {
+            QueryResult.serialize(node.getUnderlyingNode(), new StreamResult(out), props);
+        } catch (XPathException xe) {
+            throw new XProcException(xe);
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (byte b : digest.digest()) {
+            String str = Integer.toHexString(b & 0xff);
+            if (str.length() < 2) {
+                result.append("0");
+            }
+            result.append(str);
+        }
+        return result.toString();
+    }
+
     // FIXME: This method exists only to work around a bug in SaxonHE 9.5.1.1
     public static XdmNode getParent(XdmNode node) {
         try {
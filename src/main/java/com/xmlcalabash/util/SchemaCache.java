@@ -0,0 +1,88 @@
+package com.xmlcalabash.util;
+
+import net.sf.saxon.s9api.XdmNode;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of compiled RELAX NG and NVDL schemas.
+ *
+ * <p>The MSV and Jing schema objects are immutable once they've been compiled and create a
+ * new verifier or validator for each document, so a schema can be compiled once and used for
+ * every document validated against it. The steps make the keys, from a digest of the schema
+ * documents and any options that change how they're compiled. Schemas hold on to the resolvers
+ * they were compiled with, which belong to the runtime, so the cache is kept by the runtime
+ * rather than the configuration.</p>
+ */
+public class SchemaCache {
+    private static final int MAX_ENTRIES = 32;
+    private Map<String,Object> cache = null;
+    private AtomicLong hits = new AtomicLong(0);
+    private AtomicLong misses = new AtomicLong(0);
+
+    public SchemaCache() {
+        cache = new LinkedHashMap<String,Object>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,Object> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Makes a key from the base URIs and digests of the schema documents and the options.
+     */
+    public static String key(Collection<XdmNode> schemaDocuments, String options) {
+        StringBuilder key = new StringBuilder(options == null ? "" : options);
+        for (XdmNode schema : schemaDocuments) {
+            key.append("\u0000");
+            key.append(schema.getBaseURI());
+            key.append(" ");
+            key.append(S9apiUtils.digest(schema));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the compiled schema with this key, or null.
+     */
+    public Object get(String key) {
+        synchronized (cache) {
+            Object schema = cache.get(key);
+            if (schema == null) {
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            return schema;
+        }
+    }
+
+    public void put(String key, Object schema) {
+        synchronized (cache) {
+            cache.put(key, schema);
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.xmlcalabash.util;
+
+import com.xmlcalabash.core.XProcException;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+import org.xml.sax.InputSource;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.sax.SAXSource;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of compiled Schematron stylesheets.
+ *
+ * <p>Validating with Schematron takes four transformations: three stylesheets from the ISO
+ * skeleton turn the schema into an XSLT stylesheet, and that stylesheet turns the document
+ * into a report. The skeleton stylesheets never change, so they're compiled once for each
+ * runtime, like the runtime's other stylesheets and queries. The generated stylesheet depends
+ * only on the schema, the phase and the parameters, so it's compiled once for each combination
+ * and kept in an LRU cache; the step makes the key.</p>
+ */
+public class SchematronCache {
+    private static final int MAX_ENTRIES = 64;
+    private Processor processor = null;
+    private HashMap<String,XsltExecutable> stages = new HashMap<String,XsltExecutable> ();
+    private Map<String,XsltExecutable> validators = null;
+    private AtomicLong hits = new AtomicLong(0);
+    private AtomicLong misses = new AtomicLong(0);
+
+    public SchematronCache(Processor processor) {
+        this.processor = processor;
+        validators = new LinkedHashMap<String,XsltExecutable>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,XsltExecutable> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Returns one of the skeleton stylesheets from /etc/schematron, compiled.
+     */
+    public synchronized XsltExecutable getStage(String xslt, boolean schemaAware) throws SaxonApiException {
+        String key = xslt + (schemaAware ? " sa" : "");
+        XsltExecutable exec = stages.get(key);
+        if (exec == null) {
+            XsltCompiler compiler = processor.newXsltCompiler();
+            compiler.setSchemaAware(schemaAware);
+            compiler.setURIResolver(new SkeletonResolver());
+            exec = compiler.compile(getSchematronXSLT(xslt));
+            stages.put(key, exec);
+        }
+        return exec;
+    }
+
+    /**
+     * Returns the compiled validation stylesheet with this key, or null.
+     */
+    public XsltExecutable getValidator(String key) {
+        synchronized (validators) {
+            XsltExecutable exec = validators.get(key);
+            if (exec == null) {
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            return exec;
+        }
+    }
+
+    public void putValidator(String key, XsltExecutable exec) {
+        synchronized (validators) {
+            validators.put(key, exec);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void clear() {
+        synchronized (validators) {
+            validators.clear();
+        }
+    }
+
+    private static SAXSource getSchematronXSLT(String xslt) {
+        InputStream instream = SchematronCache.class.getResourceAsStream("/etc/schematron/" + xslt);
+        if (instream == null) {
+            throw new UnsupportedOperationException("Failed to load " + xslt + " from JAR file.");
+        }
+
+        return new SAXSource(new InputSource(instream));
+    }
+
+    private static class SkeletonResolver implements URIResolver {
+        public Source resolve(String href, String base) throws TransformerException {
+            if ("iso_schematron_skeleton_for_saxon.xsl".equals(href)) {
+                return getSchematronXSLT(href);
+            } else {
+                throw new XProcException("Failed to resolve " + href + " from JAR file.");
+            }
+        }
+    }
+}
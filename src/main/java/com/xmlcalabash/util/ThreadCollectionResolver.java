@@ -0,0 +1,67 @@
+package com.xmlcalabash.util;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.CollectionURIResolver;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+
+/**
+ * A collection resolver that finds the resolver for each transformation or query.
+ *
+ * <p>Saxon's collection() function always uses the configuration's collection resolver, but
+ * the default collection is different for each p:xslt or p:xquery step. Rather than replace the
+ * configuration's resolver while the step runs, which breaks steps running at the same time on
+ * other threads, steps register their resolver for the thread that runs them. (The s9api
+ * creates a query's controller only when the query is evaluated, so the controller can't be
+ * used to tell steps apart.) Collections asked for on any other thread are resolved by the
+ * resolver this one replaced.</p>
+ */
+public class ThreadCollectionResolver implements CollectionURIResolver {
+    private CollectionURIResolver chainedResolver = null;
+    private ThreadLocal<CollectionURIResolver> resolvers = new ThreadLocal<CollectionURIResolver>();
+
+    private ThreadCollectionResolver(CollectionURIResolver chainedResolver) {
+        this.chainedResolver = chainedResolver;
+    }
+
+    /**
+     * Returns the configuration's thread resolver, installing one if necessary.
+     */
+    public static ThreadCollectionResolver getInstance(Configuration config) {
+        synchronized (config) {
+            CollectionURIResolver current = config.getCollectionURIResolver();
+            if (current instanceof ThreadCollectionResolver) {
+                return (ThreadCollectionResolver) current;
+            }
+            ThreadCollectionResolver resolver = new ThreadCollectionResolver(current);
+            config.setCollectionURIResolver(resolver);
+            return resolver;
+        }
+    }
+
+    // The resolver for collections that aren't specific to a step
+    public CollectionURIResolver getChainedResolver() {
+        return chainedResolver;
+    }
+
+    /**
+     * Registers the resolver for the current thread. Steps must unregister it when they
+     * finish, so that the thread can be reused.
+     */
+    public void register(CollectionURIResolver resolver) {
+        resolvers.set(resolver);
+    }
+
+    public void unregister() {
+        resolvers.remove();
+    }
+
+    public SequenceIterator resolve(String href, String base, XPathContext context) throws XPathException {
+        CollectionURIResolver resolver = resolvers.get();
+        if (resolver == null) {
+            resolver = chainedResolver;
+        }
+        return resolver.resolve(href, base, context);
+    }
+}
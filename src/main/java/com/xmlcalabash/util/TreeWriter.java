@@ -43,6 +43,8 @@ import net.sf.saxon.type.SimpleType;
 
 import java.net.URI;
 import java.util.Iterator;
+import java.util.UUID;
+import java.util.Vector;
 
 /**
  *
@@ -67,6 +69,7 @@ import java.util.Iterator;
 
 public class TreeWriter {
     protected static final String logger = "com.xmlcalabash.util";
+    private static final String BINARY_PLACEHOLDER = "calabash-binary-";
     protected Controller controller = null;
     protected XProcRuntime runtime = null;
     protected Executable exec = null;
@@ -76,6 +79,10 @@ public class TreeWriter {
     protected XProcLocationProvider xLocationProvider = null;
     protected boolean seenRoot = false;
     protected boolean inDocument = false;
+    protected TreeModel treeModel = null;
+    protected Vector<BinaryData> binaries = new Vector<BinaryData> ();
+    // The target of this writer's placeholders; see addBinary()
+    private String binaryTarget = null;
 
     /**
      * Creates a new instance of ProcessMatch
@@ -102,12 +109,24 @@ public class TreeWriter {
         return inDocument;
     }
 
+    /**
+     * Sets the tree model for the documents that are written. Binary content added with
+     * addBinary() is only kept as bytes in a linked tree.
+     */
+    public void setTreeModel(TreeModel model) {
+        treeModel = model;
+    }
+
     public void startDocument(URI baseURI) {
         inDocument = true;
         seenRoot = false;
         try {
             exec = new Executable(controller.getConfiguration());
             destination = new XdmDestination();
+            if (treeModel != null) {
+                destination.setTreeModel(treeModel);
+            }
+            binaries.clear();
             receiver = destination.getReceiver(controller.getConfiguration());
             receiver = new NamespaceReducer(receiver);
             
@@ -136,6 +155,38 @@ public class TreeWriter {
         } catch (XPathException e) {
             throw new XProcException(e);
         }
+
+        if (!binaries.isEmpty()) {
+            insertBinaries();
+        }
+    }
+
+    /*
+     * A BinaryText node can't be sent through a receiver, so addBinary() leaves a placeholder
+     * processing instruction for each one and they're swapped in once the tree is built. The
+     * placeholders' target includes a random nonce that belongs to this writer, so a processing
+     * instruction copied in from some other document can't be mistaken for one of them.
+     */
+    private void insertBinaries() {
+        Vector<XdmNode> placeholders = new Vector<XdmNode> ();
+        XdmSequenceIterator iter = destination.getXdmNode().axisIterator(Axis.DESCENDANT);
+        while (iter.hasNext()) {
+            XdmNode node = (XdmNode) iter.next();
+            if (node.getNodeKind() == XdmNodeKind.PROCESSING_INSTRUCTION
+                    && binaryTarget.equals(node.getNodeName().getLocalName())) {
+                placeholders.add(node);
+            }
+        }
+
+        if (placeholders.size() != binaries.size()) {
+            throw new XProcException("Binary content went missing while the tree was being built");
+        }
+
+        for (int pos = 0; pos < placeholders.size(); pos++) {
+            MutableNodeInfo pi = (MutableNodeInfo) placeholders.get(pos).getUnderlyingNode();
+            pi.replace(new NodeInfo[] { new BinaryText(binaries.get(pos)) }, false);
+        }
+        binaries.clear();
     }
 
     public void addSubtree(XdmNode node) {
@@ -158,7 +209,11 @@ public class TreeWriter {
         } else if (node.getNodeKind() == XdmNodeKind.COMMENT) {
             addComment(node.getStringValue());
         } else if (node.getNodeKind() == XdmNodeKind.TEXT) {
-            addText(node.getStringValue());
+            if (node.getUnderlyingNode() instanceof BinaryText) {
+                addBinary(((BinaryText) node.getUnderlyingNode()).getData());
+            } else {
+                addText(node.getStringValue());
+            }
         } else if (node.getNodeKind() == XdmNodeKind.PROCESSING_INSTRUCTION) {
             addPI(node.getNodeName().getLocalName(), node.getStringValue());
         } else {
@@ -360,5 +415,24 @@ public class TreeWriter {
             throw new XProcException(e);
         }
     }
-}
 
+    /**
+     * Adds binary content as base64 text. In a linked tree, the text is only encoded if
+     * somebody asks for it; otherwise it's encoded now, and the data is closed.
+     */
+    public void addBinary(BinaryData data) {
+        if (destination != null && destination.getTreeModel() == TreeModel.LINKED_TREE) {
+            if (binaryTarget == null) {
+                binaryTarget = BINARY_PLACEHOLDER + UUID.randomUUID().toString().replace("-", "");
+            }
+            addPI(binaryTarget, "");
+            binaries.add(data);
+        } else {
+            try {
+                addText(data.getBase64());
+            } finally {
+                data.close();
+            }
+        }
+    }
+}
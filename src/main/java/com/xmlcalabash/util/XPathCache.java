@@ -0,0 +1,96 @@
+package com.xmlcalabash.util;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of compiled XPath expressions.
+ *
+ * <p>Options, variables, select expressions and p:when tests are evaluated every time a step
+ * runs, which in a loop means once per iteration. An XPathExecutable depends only on the
+ * expression, the namespace bindings, the names of the declared variables and the static base
+ * URI, so it can be compiled once and loaded for each evaluation. Executables are immutable, so
+ * the cache can be shared by steps running on different threads.</p>
+ */
+public class XPathCache {
+    private static final int MAX_ENTRIES = 4096;
+    private Processor processor = null;
+    private Map<String,XPathExecutable> cache = null;
+    private AtomicLong hits = new AtomicLong(0);
+    private AtomicLong misses = new AtomicLong(0);
+
+    public XPathCache(Processor processor) {
+        this.processor = processor;
+        cache = new LinkedHashMap<String,XPathExecutable>(64, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,XPathExecutable> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled expression. The base URI may be null.
+     */
+    public XPathExecutable compile(String xpath, URI baseURI, Map<String,String> namespaces, Collection<QName> variables) throws SaxonApiException {
+        TreeMap<String,String> sortedNamespaces = new TreeMap<String,String> (namespaces);
+        TreeSet<String> sortedVariables = new TreeSet<String> ();
+        for (QName name : variables) {
+            sortedVariables.add(name.getClarkName());
+        }
+
+        String key = (baseURI == null ? "" : baseURI.toASCIIString())
+                + "\u0000" + sortedNamespaces + "\u0000" + sortedVariables + "\u0000" + xpath;
+
+        synchronized (cache) {
+            XPathExecutable xexec = cache.get(key);
+            if (xexec != null) {
+                hits.incrementAndGet();
+                return xexec;
+            }
+        }
+
+        misses.incrementAndGet();
+
+        XPathCompiler xcomp = processor.newXPathCompiler();
+        if (baseURI != null) {
+            xcomp.setBaseURI(baseURI);
+        }
+        for (QName name : variables) {
+            xcomp.declareVariable(name);
+        }
+        for (String prefix : namespaces.keySet()) {
+            xcomp.declareNamespace(prefix, namespaces.get(prefix));
+        }
+
+        XPathExecutable xexec = xcomp.compile(xpath);
+        synchronized (cache) {
+            cache.put(key, xexec);
+        }
+        return xexec;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+}
@@ -27,6 +27,8 @@ import net.sf.saxon.Configuration;
 import com.xmlcalabash.core.XProcException;
 import com.xmlcalabash.core.XProcConstants;
 import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.io.DataStore;
+import com.xmlcalabash.io.HttpCache;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
@@ -62,6 +64,7 @@ public class XProcURIResolver implements URIResolver, EntityResolver, ModuleURIR
     private XProcRuntime runtime = null;
     private Hashtable<String,XdmNode> cache = new Hashtable<String,XdmNode> ();
     private static boolean useCache = true; // FIXME: this is supposed to be temporary!
+    private static final String ACCEPT_XML = "application/xml, text/xml, application/xml-external-parsed-entity, text/xml-external-parsed-entity";
 
     public XProcURIResolver(XProcRuntime runtime) {
         this.runtime = runtime;
@@ -135,6 +138,10 @@ public class XProcURIResolver implements URIResolver, EntityResolver, ModuleURIR
     }
 
     public Source resolve(String href, String base) throws TransformerException {
+        return resolve(href, base, true);
+    }
+
+    private Source resolve(String href, String base, boolean useDocumentCache) throws TransformerException {
         logger.trace("URIResolver(" + href + "," + base + ")");
 
         String uri = null;
@@ -163,6 +170,17 @@ public class XProcURIResolver implements URIResolver, EntityResolver, ModuleURIR
             return cache.get(uri).asSource();
         }
 
+        if (useDocumentCache) {
+            URI docURI = documentCacheURI(href, base);
+            if (docURI != null) {
+                XdmNode doc = runtime.getDocumentCache().get(docURI);
+                if (doc != null) {
+                    logger.trace("Returning parsed document from the document cache.");
+                    return doc.asSource();
+                }
+            }
+        }
+
         if (uriResolver != null) {
             logger.trace("uriResolver.resolve(" + href + "," + base + ")");
             Source resolved = uriResolver.resolve(href, base);
@@ -203,12 +221,37 @@ public class XProcURIResolver implements URIResolver, EntityResolver, ModuleURIR
         href = URIUtils.encode(href);
         logger.trace("Attempting to parse: " + href + " (" + base + ")");
 
+        URI docURI = dtdValidate ? null : documentCacheURI(href, base);
+        String validator = null;
+        if (docURI != null) {
+            XdmNode doc = runtime.getDocumentCache().get(docURI);
+            if (doc != null) {
+                logger.trace("Returning parsed document from the document cache.");
+                return doc;
+            }
+            validator = DocumentCache.validator(docURI);
+        }
+
         try {
-            source = resolve(href, base);
+            source = resolve(href, base, false);
         } catch (TransformerException te) {
             throw new XProcException(XProcConstants.dynamicError(9), te);
         }
 
+        // The catalog resolver returns a source even for URIs it doesn't know; only a source
+        // for some other URI is a local copy
+        boolean unresolved = source == null || unresolved(source, href, base);
+        if (!unresolved) {
+            validator = null;
+        }
+
+        if (!dtdValidate && runtime.getHttpCache() != null && unresolved) {
+            XdmNode doc = parseCached(href, base);
+            if (doc != null) {
+                return doc;
+            }
+        }
+
         if (source == null) {
             try {
                 URI baseURI = new URI(base);
@@ -254,7 +297,11 @@ public class XProcURIResolver implements URIResolver, EntityResolver, ModuleURIR
         builder.setLineNumbering(true);
 
         try {
-            return builder.build(source);
+            XdmNode doc = builder.build(source);
+            if (validator != null) {
+                runtime.getDocumentCache().put(docURI, doc, validator);
+            }
+            return doc;
         } catch (SaxonApiException sae) {
             String msg = sae.getMessage();
             if (msg.contains("validation")) {
@@ -267,6 +314,76 @@ public class XProcURIResolver implements URIResolver, EntityResolver, ModuleURIR
         }
     }
 
+    // The URI under which a file is kept in the document cache, or null if the cache isn't in use,
+    // the URI isn't a file, or the document was explicitly cached
+    private URI documentCacheURI(String href, String base) {
+        if (runtime.getDocumentCache() == null) {
+            return null;
+        }
+
+        try {
+            URI uri = base == null ? new URI(href) : new URI(base).resolve(href);
+            uri = new URI(uri.getScheme(), uri.getSchemeSpecificPart(), null);
+            if (!DocumentCache.cacheable(uri) || cache.containsKey(uri.toASCIIString())) {
+                return null;
+            }
+            return uri;
+        } catch (URISyntaxException use) {
+            return null;
+        }
+    }
+
+    private boolean unresolved(Source source, String href, String base) {
+        try {
+            URI uri = base == null ? new URI(href) : new URI(base).resolve(href);
+            return uri.toASCIIString().equals(source.getSystemId());
+        } catch (URISyntaxException use) {
+            return false;
+        }
+    }
+
+    // HTTP resources are read through the data store, so that they come from the HTTP cache,
+    // and the parsed document is kept with the cache entry. Returns null for other resources.
+    private XdmNode parseCached(String href, String base) {
+        if (base == null) {
+            return null;
+        }
+
+        URI uri = null;
+        try {
+            uri = new URI(base).resolve(href);
+            uri = new URI(uri.getScheme(), uri.getSchemeSpecificPart(), null);
+        } catch (URISyntaxException use) {
+            return null;
+        }
+        if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())) {
+            return null;
+        }
+
+        final String systemId = uri.toASCIIString();
+        final XdmNode[] result = new XdmNode[1];
+        try {
+            runtime.getDataStore().readEntry(systemId, systemId, ACCEPT_XML, null, new DataStore.DataReader() {
+                public void load(URI id, String media, InputStream content, long len) throws IOException {
+                    HttpCache.Entry entry = HttpCache.getEntry(content);
+                    XdmNode doc = entry == null ? null : entry.getDocument();
+                    if (doc == null) {
+                        InputSource isource = new InputSource(content);
+                        isource.setSystemId(systemId);
+                        doc = parse(isource);
+                        if (entry != null) {
+                            entry.setDocument(doc);
+                        }
+                    }
+                    result[0] = doc;
+                }
+            });
+        } catch (IOException ioe) {
+            throw XProcException.dynamicError(11, ioe);
+        }
+        return result[0];
+    }
+
     public XdmNode parse(InputSource isource) {
         try {
             // Make sure the builder uses our entity resolver
@@ -0,0 +1,104 @@
+package com.xmlcalabash.util;
+
+import net.sf.saxon.lib.ModuleURIResolver;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XQueryCompiler;
+import net.sf.saxon.s9api.XQueryExecutable;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of compiled XQuery queries.
+ *
+ * <p>A p:xquery step in a loop compiles the same query on every iteration. An
+ * XQueryExecutable depends only on the query text, the static base URI and the namespaces
+ * declared in the static context (and the modules it imports, which are resolved by the
+ * runtime's resolver and assumed not to change), so it can be compiled once and loaded for
+ * each evaluation. Executables are immutable, so the cache can be shared by steps running
+ * on different threads.</p>
+ */
+public class XQueryCache {
+    private static final int MAX_ENTRIES = 256;
+    private Processor processor = null;
+    private ModuleURIResolver moduleResolver = null;
+    private Map<String,XQueryExecutable> cache = null;
+    private AtomicLong hits = new AtomicLong(0);
+    private AtomicLong misses = new AtomicLong(0);
+    private AtomicLong evictions = new AtomicLong(0);
+
+    public XQueryCache(Processor processor, ModuleURIResolver moduleResolver) {
+        this.processor = processor;
+        this.moduleResolver = moduleResolver;
+        cache = new LinkedHashMap<String,XQueryExecutable>(64, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,XQueryExecutable> eldest) {
+                if (size() > MAX_ENTRIES) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled query. The base URI may be null.
+     */
+    public XQueryExecutable compile(String query, URI baseURI, Map<String,String> namespaces) throws SaxonApiException {
+        String key = (baseURI == null ? "" : baseURI.toASCIIString())
+                + "\u0000" + new TreeMap<String,String> (namespaces) + "\u0000" + query;
+
+        synchronized (cache) {
+            XQueryExecutable xqexec = cache.get(key);
+            if (xqexec != null) {
+                hits.incrementAndGet();
+                return xqexec;
+            }
+        }
+
+        misses.incrementAndGet();
+
+        XQueryCompiler xqcomp = processor.newXQueryCompiler();
+        if (baseURI != null) {
+            xqcomp.setBaseURI(baseURI);
+        }
+        xqcomp.setModuleURIResolver(moduleResolver);
+        for (String prefix : namespaces.keySet()) {
+            xqcomp.declareNamespace(prefix, namespaces.get(prefix));
+        }
+
+        XQueryExecutable xqexec = xqcomp.compile(query);
+        synchronized (cache) {
+            cache.put(key, xqexec);
+        }
+        return xqexec;
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+}
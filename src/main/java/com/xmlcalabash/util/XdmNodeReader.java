@@ -0,0 +1,157 @@
+package com.xmlcalabash.util;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.ContentHandlerProxy;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.s9api.Destination;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+
+import java.io.IOException;
+
+/**
+ * An XMLReader that "parses" a document that has already been parsed.
+ *
+ * <p>Validators and other SAX consumers take an InputSource or a SAXSource. Rather than
+ * serialize the document so that they can parse it again, give them a SAXSource with one of
+ * these readers: whatever input it's asked to parse, it walks the tree and sends it to the
+ * content handler as SAX events. Namespace declarations are reported with startPrefixMapping,
+ * never as attributes.</p>
+ */
+public class XdmNodeReader implements XMLReader {
+    private static final String NAMESPACES = "http://xml.org/sax/features/namespaces";
+    private static final String NAMESPACE_PREFIXES = "http://xml.org/sax/features/namespace-prefixes";
+    private static final String VALIDATION = "http://xml.org/sax/features/validation";
+    private static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+
+    private Processor processor = null;
+    private XdmNode node = null;
+    private ContentHandler contentHandler = null;
+    private DTDHandler dtdHandler = null;
+    private EntityResolver entityResolver = null;
+    private ErrorHandler errorHandler = null;
+    private LexicalHandler lexicalHandler = null;
+
+    public XdmNodeReader(Processor processor, XdmNode node) {
+        this.processor = processor;
+        this.node = node;
+    }
+
+    public boolean getFeature(String name) throws SAXNotRecognizedException, SAXNotSupportedException {
+        if (NAMESPACES.equals(name)) {
+            return true;
+        } else if (NAMESPACE_PREFIXES.equals(name) || VALIDATION.equals(name)) {
+            return false;
+        }
+        throw new SAXNotRecognizedException(name);
+    }
+
+    public void setFeature(String name, boolean value) throws SAXNotRecognizedException, SAXNotSupportedException {
+        if (getFeature(name) != value) {
+            throw new SAXNotSupportedException(name + " can't be " + value);
+        }
+    }
+
+    public Object getProperty(String name) throws SAXNotRecognizedException, SAXNotSupportedException {
+        if (LEXICAL_HANDLER.equals(name)) {
+            return lexicalHandler;
+        }
+        throw new SAXNotRecognizedException(name);
+    }
+
+    public void setProperty(String name, Object value) throws SAXNotRecognizedException, SAXNotSupportedException {
+        if (LEXICAL_HANDLER.equals(name)) {
+            lexicalHandler = (LexicalHandler) value;
+        } else {
+            throw new SAXNotRecognizedException(name);
+        }
+    }
+
+    public void setEntityResolver(EntityResolver resolver) {
+        entityResolver = resolver;
+    }
+
+    public EntityResolver getEntityResolver() {
+        return entityResolver;
+    }
+
+    public void setDTDHandler(DTDHandler handler) {
+        dtdHandler = handler;
+    }
+
+    public DTDHandler getDTDHandler() {
+        return dtdHandler;
+    }
+
+    public void setContentHandler(ContentHandler handler) {
+        contentHandler = handler;
+    }
+
+    public ContentHandler getContentHandler() {
+        return contentHandler;
+    }
+
+    public void setErrorHandler(ErrorHandler handler) {
+        errorHandler = handler;
+    }
+
+    public ErrorHandler getErrorHandler() {
+        return errorHandler;
+    }
+
+    public void parse(InputSource input) throws IOException, SAXException {
+        parse();
+    }
+
+    public void parse(String systemId) throws IOException, SAXException {
+        parse();
+    }
+
+    /*
+     * Exceptions thrown by the content handler come back wrapped in Saxon exceptions; they're
+     * unwrapped so that callers see the SAXParseExceptions they'd get from a parser.
+     */
+    private void parse() throws SAXException {
+        if (contentHandler == null) {
+            return;
+        }
+
+        try {
+            processor.writeXdmValue(node, new Destination() {
+                public Receiver getReceiver(Configuration config) {
+                    ContentHandlerProxy proxy = new ContentHandlerProxy();
+                    proxy.setUnderlyingContentHandler(contentHandler);
+                    if (lexicalHandler != null) {
+                        proxy.setLexicalHandler(lexicalHandler);
+                    }
+                    proxy.setPipelineConfiguration(config.makePipelineConfiguration());
+                    return proxy;
+                }
+
+                public void close() {
+                    // nop
+                }
+            });
+        } catch (SaxonApiException sae) {
+            Throwable cause = sae.getCause();
+            while (cause != null) {
+                if (cause instanceof SAXException) {
+                    throw (SAXException) cause;
+                }
+                cause = cause.getCause();
+            }
+            throw new SAXException(sae);
+        }
+    }
+}
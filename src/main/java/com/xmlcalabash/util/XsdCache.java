@@ -0,0 +1,145 @@
+package com.xmlcalabash.util;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import javax.xml.validation.Schema;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A cache of compiled XML schemas.
+ *
+ * <p>With Xerces, each set of schema documents is compiled into a javax.xml.validation.Schema,
+ * which is thread safe and hands out a new Validator for each document. The schemas are
+ * kept in an LRU cache.</p>
+ *
+ * <p>Saxon keeps the schemas it has loaded in its configuration, so it can only validate with
+ * one set at a time. The cache remembers which set that is, and only clears the configuration
+ * when a different set is asked for. Each set that has been compiled is also kept, exported as
+ * a schema component model, in an LRU cache, so switching back to it is an import rather than
+ * another compilation. Validations hold a read lock on the loaded schemas, so they aren't
+ * replaced while a document is being validated; the lock must be released before the result
+ * is written, because a writer can wait for a reader that's waiting for the lock.</p>
+ *
+ * <p>Keys are made with SchemaCache.key(), from the schema documents and anything else that
+ * changes how they're compiled.</p>
+ */
+public class XsdCache {
+    private static final int MAX_ENTRIES = 32;
+    private Map<String,Schema> schemas = null;
+    private ReentrantReadWriteLock saxonLock = new ReentrantReadWriteLock();
+    private String saxonKey = null;
+    private Map<String,XdmNode> saxonComponents = null;
+    private AtomicLong hits = new AtomicLong(0);
+    private AtomicLong misses = new AtomicLong(0);
+
+    public XsdCache() {
+        schemas = new LinkedHashMap<String,Schema>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,Schema> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+        saxonComponents = new LinkedHashMap<String,XdmNode>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,XdmNode> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled schema with this key, or null.
+     */
+    public Schema getSchema(String key) {
+        synchronized (schemas) {
+            Schema schema = schemas.get(key);
+            if (schema == null) {
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            return schema;
+        }
+    }
+
+    public void putSchema(String key, Schema schema) {
+        synchronized (schemas) {
+            schemas.put(key, schema);
+        }
+    }
+
+    /**
+     * Makes sure that the schemas with this key are the ones loaded into the Saxon
+     * configuration, calling the loader if they aren't, and locks them. If this method returns
+     * normally, the caller must call unlockSaxonSchemas() when it's finished validating, and
+     * before it writes anything.
+     */
+    public void lockSaxonSchemas(String key, SchemaLoader loader) throws SaxonApiException {
+        saxonLock.readLock().lock();
+        if (key.equals(saxonKey)) {
+            hits.incrementAndGet();
+            return;
+        }
+        saxonLock.readLock().unlock();
+
+        saxonLock.writeLock().lock();
+        try {
+            if (key.equals(saxonKey)) {
+                hits.incrementAndGet();
+            } else {
+                saxonKey = null;
+                XdmNode components = saxonComponents.get(key);
+                if (components != null) {
+                    hits.incrementAndGet();
+                    loader.importComponents(components);
+                } else {
+                    misses.incrementAndGet();
+                    loader.load();
+                    saxonComponents.put(key, loader.exportComponents());
+                }
+                saxonKey = key;
+            }
+            // Downgrade to a read lock before letting other writers in
+            saxonLock.readLock().lock();
+        } finally {
+            saxonLock.writeLock().unlock();
+        }
+    }
+
+    public void unlockSaxonSchemas() {
+        saxonLock.readLock().unlock();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void clear() {
+        synchronized (schemas) {
+            schemas.clear();
+        }
+        saxonLock.writeLock().lock();
+        try {
+            saxonKey = null;
+            saxonComponents.clear();
+        } finally {
+            saxonLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Loads a set of schemas into a Saxon configuration. Each method is called with the write
+     * lock held, and both of the loading methods must clear the schemas already loaded first.
+     */
+    public interface SchemaLoader {
+        public void load() throws SaxonApiException;
+        public void importComponents(XdmNode components) throws SaxonApiException;
+        public XdmNode exportComponents() throws SaxonApiException;
+    }
+}
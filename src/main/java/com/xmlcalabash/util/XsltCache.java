@@ -0,0 +1,123 @@
+package com.xmlcalabash.util;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of compiled XSLT stylesheets.
+ *
+ * <p>A p:xslt step in a loop, or in a pipeline that is run many times, usually reads the same
+ * stylesheet every time. Stylesheets are identified by their base URI and a digest of their
+ * content, so stylesheets that are computed or given inline are cached too, and a stylesheet
+ * that changes is compiled again. Modules that a stylesheet includes or imports aren't part of
+ * the key; like other documents, they're assumed not to change while the runtime is in use.</p>
+ *
+ * <p>An XsltExecutable is immutable, so the cache can be shared by steps running on different
+ * threads. It holds at most MAX_ENTRIES stylesheets, and at most about MAX_BYTES of stylesheet
+ * trees; the least recently used stylesheets are discarded first.</p>
+ */
+public class XsltCache {
+    private static final int MAX_ENTRIES = 64;
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+    private Processor processor = null;
+    private LinkedHashMap<String,CachedStylesheet> cache = null;
+    private long bytes = 0;
+    private AtomicLong hits = new AtomicLong(0);
+    private AtomicLong misses = new AtomicLong(0);
+    private AtomicLong evictions = new AtomicLong(0);
+    private AtomicLong compileTime = new AtomicLong(0);
+
+    public XsltCache(Processor processor) {
+        this.processor = processor;
+        cache = new LinkedHashMap<String,CachedStylesheet>(16, 0.75f, true);
+    }
+
+    public XsltExecutable compile(XdmNode stylesheet) throws SaxonApiException {
+        URI baseURI = stylesheet.getBaseURI();
+        String key = (baseURI == null ? "" : baseURI.toASCIIString()) + "\u0000" + S9apiUtils.digest(stylesheet);
+
+        synchronized (cache) {
+            CachedStylesheet cached = cache.get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached.exec;
+            }
+        }
+
+        misses.incrementAndGet();
+
+        long start = System.nanoTime();
+        XsltCompiler compiler = processor.newXsltCompiler();
+        compiler.setSchemaAware(processor.isSchemaAware());
+        XsltExecutable exec = compiler.compile(stylesheet.asSource());
+        compileTime.addAndGet(System.nanoTime() - start);
+
+        CachedStylesheet cached = new CachedStylesheet(exec, S9apiUtils.estimateSize(stylesheet));
+        synchronized (cache) {
+            CachedStylesheet previous = cache.put(key, cached);
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+            bytes += cached.size;
+
+            // Always keep the stylesheet that was just compiled
+            Iterator<CachedStylesheet> iter = cache.values().iterator();
+            while ((cache.size() > MAX_ENTRIES || bytes > MAX_BYTES) && cache.size() > 1) {
+                CachedStylesheet eldest = iter.next();
+                iter.remove();
+                bytes -= eldest.size;
+                evictions.incrementAndGet();
+            }
+        }
+
+        return exec;
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    // Total time spent compiling stylesheets, in milliseconds
+    public long getCompileTime() {
+        return compileTime.get() / 1000000;
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+            bytes = 0;
+        }
+    }
+
+    private static class CachedStylesheet {
+        private XsltExecutable exec = null;
+        private long size = 0;
+
+        private CachedStylesheet(XsltExecutable exec, long size) {
+            this.exec = exec;
+            this.size = size;
+        }
+    }
+}
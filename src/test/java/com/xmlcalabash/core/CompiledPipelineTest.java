@@ -0,0 +1,170 @@
+package com.xmlcalabash.core;
+
+import java.io.StringReader;
+import java.util.Vector;
+
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import com.xmlcalabash.io.WritablePipe;
+import com.xmlcalabash.library.DefaultStep;
+import com.xmlcalabash.model.RuntimeValue;
+import com.xmlcalabash.runtime.XAtomicStep;
+import com.xmlcalabash.runtime.XPipeline;
+import com.xmlcalabash.util.S9apiUtils;
+
+public class CompiledPipelineTest extends TestCase {
+	private static final String pipeline = "<p:declare-step xmlns:p='http://www.w3.org/ns/xproc' version='1.0'>"
+			+ "<p:input port='source'/>"
+			+ "<p:output port='result'/>"
+			+ "<p:option name='label' required='true'/>"
+			+ "<p:for-each>"
+			+ "<p:iteration-source select='/doc/item'/>"
+			+ "<p:add-attribute match='/item' attribute-name='pos'>"
+			+ "<p:with-option name='attribute-value' select=\"concat($label, '-', p:iteration-position())\"/>"
+			+ "</p:add-attribute>"
+			+ "</p:for-each>"
+			+ "<p:wrap-sequence wrapper='result'/>"
+			+ "</p:declare-step>";
+
+	private static final String failing = "<p:declare-step xmlns:p='http://www.w3.org/ns/xproc'"
+			+ " xmlns:ex='http://example.com/ns' version='1.0'>"
+			+ "<p:output port='result'/>"
+			+ "<p:option name='fail' required='true'/>"
+			+ "<p:declare-step type='ex:doc'>"
+			+ "<p:output port='result'/>"
+			+ "<p:identity><p:input port='source'><p:inline><doc/></p:inline></p:input></p:identity>"
+			+ "</p:declare-step>"
+			+ "<p:declare-step type='ex:report'>"
+			+ "<p:output port='result'/>"
+			+ "</p:declare-step>"
+			+ "<p:choose>"
+			+ "<p:when test=\"$fail = 'true'\"><ex:report/></p:when>"
+			+ "<p:otherwise><ex:doc/></p:otherwise>"
+			+ "</p:choose>"
+			+ "</p:declare-step>";
+
+	private static final QName report = new QName("ex", "http://example.com/ns", "report");
+
+	private XProcRuntime runtime;
+
+	public void setUp() throws Exception {
+		XProcConfiguration config = new XProcConfiguration();
+		config.implementations.put(report, Report.class);
+		runtime = new XProcRuntime(config);
+	}
+
+	public void tearDown() throws Exception {
+		runtime.close();
+	}
+
+	public void testConcurrentRuns() throws Exception {
+		final CompiledPipeline compiled = runtime.compile(parse(pipeline));
+		final XdmNode source = parse("<doc><item/><item/><item/></doc>");
+		final Vector<String> failures = new Vector<String>();
+
+		Vector<Thread> threads = new Vector<Thread>();
+		for (int count = 0; count < 8; count++) {
+			final String label = "run" + count;
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						for (int pos = 0; pos < 10; pos++) {
+							XPipeline xpipe = compiled.newPipeline();
+							xpipe.writeTo("source", source);
+							xpipe.passOption(new QName("", "label"), new RuntimeValue(label));
+							xpipe.run();
+							XdmNode result = xpipe.readFrom("result").read();
+							String expected = "<result><item pos=\"" + label + "-1\"/><item pos=\"" + label
+									+ "-2\"/><item pos=\"" + label + "-3\"/></result>";
+							String actual = result.toString().replaceAll(">\\s+<", "><").trim();
+							if (!expected.equals(actual)) {
+								failures.add(actual);
+							}
+						}
+					} catch (Exception e) {
+						failures.add(e.toString());
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(new Vector<String>(), failures);
+	}
+
+	public void testFailureStaysInItsInvocation() throws Exception {
+		final CompiledPipeline compiled = runtime.compile(parse(failing));
+		final Vector<String> failures = new Vector<String>();
+
+		Vector<Thread> threads = new Vector<Thread>();
+		for (int count = 0; count < 8; count++) {
+			final boolean fail = count % 2 == 0;
+			Thread thread = new Thread() {
+				public void run() {
+					for (int pos = 0; pos < 10; pos++) {
+						XPipeline xpipe = compiled.newPipeline();
+						xpipe.passOption(new QName("", "fail"), new RuntimeValue(String.valueOf(fail)));
+						try {
+							xpipe.run();
+							if (fail) {
+								failures.add("no error");
+							} else if (!"doc".equals(S9apiUtils.getDocumentElement(xpipe.readFrom("result").read()).getNodeName().getLocalName())) {
+								failures.add("wrong result");
+							}
+						} catch (XProcException xe) {
+							if (!fail) {
+								failures.add(xe.toString());
+							}
+						} catch (Exception e) {
+							failures.add(e.toString());
+						}
+
+						QName code = xpipe.getInvocation().getErrorCode();
+						if (fail != (code != null)) {
+							failures.add("error code " + code);
+						}
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(new Vector<String>(), failures);
+		assertNull(runtime.getErrorCode());
+	}
+
+	// Reports an error, as a step can, and then fails
+	public static class Report extends DefaultStep {
+		public Report(XProcRuntime runtime, XAtomicStep step) {
+			super(runtime, step);
+		}
+
+		public void setOutput(String port, WritablePipe pipe) {
+		}
+
+		public void reset() {
+		}
+
+		public void run() throws SaxonApiException {
+			error(null, "Reported", report);
+			throw new XProcException(report, "Reported");
+		}
+	}
+
+	private XdmNode parse(String xml) throws Exception {
+		return runtime.getProcessor().newDocumentBuilder().build(new StreamSource(new StringReader(xml), "http://example.com/test.xml"));
+	}
+}
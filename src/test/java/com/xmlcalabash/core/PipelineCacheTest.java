@@ -0,0 +1,191 @@
+package com.xmlcalabash.core;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+
+import com.xmlcalabash.model.DeclareStep;
+import com.xmlcalabash.model.Step;
+import com.xmlcalabash.runtime.XPipeline;
+import com.xmlcalabash.util.Input;
+
+public class PipelineCacheTest extends TestCase {
+	private File dir;
+	private File pipeline;
+	private File library;
+	private XProcConfiguration config;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile("pipeline-cache", "");
+		dir.delete();
+		dir.mkdir();
+		pipeline = new File(dir, "pipeline.xpl");
+		library = new File(dir, "library.xpl");
+		write(pipeline, "<p:declare-step xmlns:p='http://www.w3.org/ns/xproc' xmlns:ex='http://example.com/ns'"
+				+ " version='1.0'>"
+				+ "<p:output port='result'/>"
+				+ "<p:import href='library.xpl'/>"
+				+ "<ex:doc/>"
+				+ "</p:declare-step>");
+		writeLibrary("first");
+
+		config = new XProcConfiguration();
+		config.pipelineCacheSize = 4;
+	}
+
+	public void tearDown() throws Exception {
+		pipeline.delete();
+		library.delete();
+		dir.delete();
+	}
+
+	public void testReusedByItsRuntime() throws Exception {
+		XProcRuntime runtime = new XProcRuntime(config);
+		try {
+			assertEquals("first", runPipeline(runtime));
+			assertEquals("first", runPipeline(runtime));
+
+			PipelineCache cache = runtime.getPipelineCache();
+			assertEquals(1, cache.getHits());
+			assertEquals(1, cache.getMisses());
+		} finally {
+			runtime.close();
+		}
+	}
+
+	public void testNotSharedWithOtherRuntimes() throws Exception {
+		QName identity = new QName(XProcConstants.NS_XPROC, "identity");
+		write(pipeline, "<p:declare-step xmlns:p='http://www.w3.org/ns/xproc' version='1.0'>"
+				+ "<p:output port='result'/>"
+				+ "<p:identity><p:input port='source'><p:inline><doc>doc</doc></p:inline></p:input></p:identity>"
+				+ "</p:declare-step>");
+
+		XProcRuntime first = new XProcRuntime(config);
+		DeclareStep firstIdentity = first.getBuiltinDeclaration(identity);
+		assertEquals("doc", runPipeline(first));
+		first.close();
+
+		XProcRuntime second = new XProcRuntime(config);
+		try {
+			for (int i = 0; i < 2; i++) {
+				XPipeline xpipe = second.load(new Input(pipeline.toURI().toASCIIString()));
+				DeclareStep decl = xpipe.getDeclareStep();
+				assertSame(second, decl.getXProc());
+				Step step = decl.subpipeline().get(0);
+				assertSame(second.getBuiltinDeclaration(identity), step.getDeclaration());
+				assertNotSame(firstIdentity, step.getDeclaration());
+				xpipe.run();
+				assertEquals("doc", xpipe.readFrom("result").read().getStringValue());
+				assertNull(second.getErrorCode());
+			}
+
+			PipelineCache cache = second.getPipelineCache();
+			assertEquals(1, cache.getMisses());
+			assertEquals(1, cache.getHits());
+		} finally {
+			second.close();
+		}
+	}
+
+	public void testChangedImportIsReloaded() throws Exception {
+		XProcRuntime runtime = new XProcRuntime(config);
+		try {
+			assertEquals("first", runPipeline(runtime));
+			writeLibrary("second");
+			// Make sure the change is visible even if the file system has a coarse clock
+			library.setLastModified(library.lastModified() + 2000);
+			assertEquals("second", runPipeline(runtime));
+
+			PipelineCache cache = runtime.getPipelineCache();
+			assertEquals(0, cache.getHits());
+			assertEquals(1, cache.getStale());
+		} finally {
+			runtime.close();
+		}
+	}
+
+	public void testRemoteImportIsNotDownloadedAgain() throws Exception {
+		final AtomicInteger gets = new AtomicInteger(0);
+		final AtomicInteger heads = new AtomicInteger(0);
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/library.xpl", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = Files.readAllBytes(library.toPath());
+				exchange.getResponseHeaders().add("Content-Type", "application/xml");
+				exchange.getResponseHeaders().add("ETag", "\"v1\"");
+				if ("HEAD".equals(exchange.getRequestMethod())) {
+					heads.incrementAndGet();
+					exchange.sendResponseHeaders(200, -1);
+				} else {
+					gets.incrementAndGet();
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				}
+				exchange.close();
+			}
+		});
+		server.start();
+		XProcRuntime runtime = new XProcRuntime(config);
+		try {
+			String href = "http://127.0.0.1:" + server.getAddress().getPort() + "/library.xpl";
+			write(pipeline, "<p:declare-step xmlns:p='http://www.w3.org/ns/xproc' xmlns:ex='http://example.com/ns'"
+					+ " version='1.0'>"
+					+ "<p:output port='result'/>"
+					+ "<p:import href='" + href + "'/>"
+					+ "<ex:doc/>"
+					+ "</p:declare-step>");
+			assertEquals("first", runPipeline(runtime));
+			assertEquals("first", runPipeline(runtime));
+			assertEquals("first", runPipeline(runtime));
+
+			PipelineCache cache = runtime.getPipelineCache();
+			assertEquals(2, cache.getHits());
+			// Read once to compile it and checked once, by its ETag, to cache it
+			assertEquals(1, gets.get());
+			assertEquals(1, heads.get());
+		} finally {
+			runtime.close();
+			server.stop(0);
+		}
+	}
+
+	private String runPipeline(XProcRuntime runtime) throws Exception {
+		XPipeline xpipe = runtime.load(new Input(pipeline.toURI().toASCIIString()));
+		xpipe.run();
+		XdmNode doc = xpipe.readFrom("result").read();
+		return doc.getStringValue();
+	}
+
+	private void writeLibrary(String text) throws IOException {
+		write(library, "<p:library xmlns:p='http://www.w3.org/ns/xproc' xmlns:ex='http://example.com/ns'"
+				+ " version='1.0'>"
+				+ "<p:declare-step type='ex:doc'>"
+				+ "<p:output port='result'/>"
+				+ "<p:identity><p:input port='source'><p:inline><doc>" + text + "</doc></p:inline></p:input></p:identity>"
+				+ "</p:declare-step>"
+				+ "</p:library>");
+	}
+
+	private static void write(File file, String content) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(content);
+		} finally {
+			writer.close();
+		}
+	}
+}
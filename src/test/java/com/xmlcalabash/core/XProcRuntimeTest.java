@@ -0,0 +1,99 @@
+package com.xmlcalabash.core;
+
+import java.io.StringReader;
+import java.util.concurrent.Callable;
+
+import javax.xml.transform.stream.StreamSource;
+
+import com.xmlcalabash.model.DeclareStep;
+import com.xmlcalabash.model.Input;
+import com.xmlcalabash.runtime.XPipeline;
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+
+public class XProcRuntimeTest extends TestCase {
+	private Callable<Thread> currentThread = new Callable<Thread>() {
+		public Thread call() {
+			return Thread.currentThread();
+		}
+	};
+
+	public void testOneThreadIsSequential() throws Exception {
+		XProcConfiguration config = new XProcConfiguration();
+		config.threadCount = 1;
+		XProcRuntime runtime = new XProcRuntime(config);
+		try {
+			assertSame(Thread.currentThread(), runtime.getExecutor().submit(currentThread).get());
+		} finally {
+			runtime.close();
+		}
+	}
+
+	public void testWorkers() throws Exception {
+		XProcConfiguration config = new XProcConfiguration();
+		config.threadCount = 3;
+		XProcRuntime runtime = new XProcRuntime(config);
+		try {
+			assertNotSame(Thread.currentThread(), runtime.getExecutor().submit(currentThread).get());
+		} finally {
+			runtime.close();
+		}
+	}
+
+	public void testStandardLibraryBelongsToItsRuntime() throws Exception {
+		QName identity = new QName(XProcConstants.NS_XPROC, "identity");
+		XProcConfiguration config = new XProcConfiguration();
+		XProcRuntime first = new XProcRuntime(config);
+		XProcRuntime second = new XProcRuntime(config);
+		try {
+			DeclareStep decl = first.getBuiltinDeclaration(identity);
+			assertSame(first, decl.getXProc());
+			assertSame(second, second.getBuiltinDeclaration(identity).getXProc());
+			assertNotSame(decl, second.getBuiltinDeclaration(identity));
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	public void testStandardLibraryIsKeptAcrossLoads() throws Exception {
+		QName identity = new QName(XProcConstants.NS_XPROC, "identity");
+		XProcRuntime runtime = new XProcRuntime(new XProcConfiguration());
+		try {
+			DeclareStep decl = runtime.getBuiltinDeclaration(identity);
+			XPipeline xpipe = runtime.use(pipeline(runtime));
+			xpipe.run();
+			assertSame(decl, runtime.getBuiltinDeclaration(identity));
+			xpipe = runtime.use(pipeline(runtime));
+			xpipe.run();
+			assertEquals("doc", xpipe.readFrom("result").read().getStringValue());
+			assertSame(decl, runtime.getBuiltinDeclaration(identity));
+		} finally {
+			runtime.close();
+		}
+	}
+
+	public void testLibraryPipelinesLeaveTheDeclarationAlone() throws Exception {
+		QName identity = new QName(XProcConstants.NS_XPROC, "identity");
+		XProcRuntime runtime = new XProcRuntime(new XProcConfiguration());
+		try {
+			DeclareStep decl = runtime.getBuiltinDeclaration(identity);
+			Input source = decl.getInput("source");
+			int bindings = source.getBinding().size();
+			runtime.getStandardLibrary().getPipeline(identity);
+			assertSame(decl, source.getStep());
+			assertEquals(bindings, source.getBinding().size());
+		} finally {
+			runtime.close();
+		}
+	}
+
+	private XdmNode pipeline(XProcRuntime runtime) throws Exception {
+		String xpl = "<p:declare-step xmlns:p='http://www.w3.org/ns/xproc' version='1.0'>"
+				+ "<p:output port='result'/>"
+				+ "<p:identity><p:input port='source'><p:inline><doc>doc</doc></p:inline></p:input></p:identity>"
+				+ "</p:declare-step>";
+		return runtime.getProcessor().newDocumentBuilder().build(new StreamSource(new StringReader(xpl)));
+	}
+}
@@ -0,0 +1,224 @@
+package com.xmlcalabash.io;
+
+import java.io.StringReader;
+
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.XdmNode;
+
+import com.xmlcalabash.core.XProcConfiguration;
+import com.xmlcalabash.core.XProcException;
+import com.xmlcalabash.core.XProcRuntime;
+
+public class DocumentSequenceTest extends TestCase {
+	private XProcRuntime runtime;
+	private XdmNode doc;
+
+	public void setUp() throws Exception {
+		runtime = new XProcRuntime(new XProcConfiguration());
+		doc = runtime.getProcessor().newDocumentBuilder().build(new StreamSource(new StringReader("<doc><p>text</p></doc>")));
+	}
+
+	public void tearDown() throws Exception {
+		runtime.close();
+	}
+
+	public void testReleaseWhenReadersFinish() throws Exception {
+		DocumentSequence seq = new DocumentSequence(runtime);
+		Pipe writer = new Pipe(runtime, seq);
+		Pipe first = new Pipe(runtime, seq);
+		Pipe second = new Pipe(runtime, seq);
+
+		writer.write(doc);
+		writer.close();
+		assertEquals(1, runtime.getRetainedDocuments());
+		assertTrue(runtime.getRetainedBytes() > 0);
+
+		assertSame(doc, first.read());
+		first.finished();
+		assertEquals(1, runtime.getRetainedDocuments());
+
+		assertSame(doc, second.read());
+		second.finished();
+		assertEquals(0, runtime.getRetainedDocuments());
+		assertEquals(0, runtime.getRetainedBytes());
+		assertEquals(1, second.documentCount());
+	}
+
+	public void testPinnedSequenceIsKept() throws Exception {
+		DocumentSequence seq = new DocumentSequence(runtime);
+		Pipe writer = new Pipe(runtime, seq);
+		Pipe reader = new Pipe(runtime, seq);
+		seq.pin();
+
+		writer.write(doc);
+		writer.close();
+		reader.read();
+		reader.finished();
+		assertEquals(1, runtime.getRetainedDocuments());
+
+		reader.resetReader();
+		assertSame(doc, reader.read());
+	}
+
+	public void testLateReaderPins() throws Exception {
+		DocumentSequence seq = new DocumentSequence(runtime);
+		Pipe writer = new Pipe(runtime, seq);
+		Pipe reader = new Pipe(runtime, seq);
+
+		writer.write(doc);
+		writer.close();
+		Pipe late = new Pipe(runtime, seq);
+		reader.read();
+		reader.finished();
+		assertSame(doc, late.read());
+	}
+
+	public void testBoundedSequence() throws Exception {
+		final DocumentSequence seq = new DocumentSequence(runtime);
+		final Pipe writer = new Pipe(runtime, seq);
+		Pipe reader = new Pipe(runtime, seq);
+		reader.canReadSequence(true);
+		writer.canWriteSequence(true);
+		seq.startStreaming(2, reader);
+
+		final int[] written = new int[1];
+		Thread thread = new Thread() {
+			public void run() {
+				for (int i = 0; i < 10; i++) {
+					writer.write(doc);
+					synchronized (written) {
+						written[0]++;
+					}
+				}
+				writer.close();
+			}
+		};
+		thread.start();
+
+		// The writer can only get two documents ahead
+		Thread.sleep(200);
+		synchronized (written) {
+			assertEquals(2, written[0]);
+		}
+
+		int count = 0;
+		while (reader.moreDocuments()) {
+			assertSame(doc, reader.read());
+			count++;
+			// Documents are released as they're read
+			assertTrue(runtime.getRetainedDocuments() <= 2);
+		}
+		thread.join();
+		assertEquals(10, count);
+		assertEquals(0, runtime.getRetainedDocuments());
+	}
+
+	public void testFinishedReaderReleasesWriter() throws Exception {
+		DocumentSequence seq = new DocumentSequence(runtime);
+		Pipe writer = new Pipe(runtime, seq);
+		Pipe reader = new Pipe(runtime, seq);
+		writer.canWriteSequence(true);
+		seq.startStreaming(1, reader);
+
+		writer.write(doc);
+		reader.finished();
+		// If the writer waited for the reader, this would hang
+		writer.write(doc);
+		writer.close();
+	}
+
+	public void testCloseStopsWaitingWriter() throws Exception {
+		final DocumentSequence seq = new DocumentSequence(runtime);
+		Pipe reader = new Pipe(runtime, seq);
+		seq.startStreaming(1, reader);
+		seq.add(doc);
+
+		final Exception[] failure = new Exception[1];
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					seq.add(doc);
+				} catch (XProcException xe) {
+					failure[0] = xe;
+				}
+			}
+		};
+		thread.start();
+
+		// The writer is waiting for the reader when the sequence is closed
+		Thread.sleep(200);
+		seq.close();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+		assertNotNull(failure[0]);
+		assertEquals(1, seq.size());
+	}
+
+	public void testCountUnboundsSequence() throws Exception {
+		final DocumentSequence seq = new DocumentSequence(runtime);
+		final Pipe writer = new Pipe(runtime, seq);
+		Pipe reader = new Pipe(runtime, seq);
+		reader.canReadSequence(true);
+		writer.canWriteSequence(true);
+		seq.startStreaming(1, reader);
+
+		Thread thread = new Thread() {
+			public void run() {
+				for (int i = 0; i < 5; i++) {
+					writer.write(doc);
+				}
+				writer.close();
+			}
+		};
+		thread.start();
+
+		// Counting needs the whole sequence, so the writer mustn't wait for the reader
+		assertEquals(5, reader.documentCount());
+		thread.join();
+		for (int i = 0; i < 5; i++) {
+			assertSame(doc, reader.read());
+		}
+	}
+
+	public void testReleasedDocumentCantBeRead() throws Exception {
+		DocumentSequence seq = new DocumentSequence(runtime);
+		Pipe writer = new Pipe(runtime, seq);
+		Pipe reader = new Pipe(runtime, seq);
+
+		writer.write(doc);
+		writer.close();
+		reader.read();
+		reader.finished();
+		reader.resetReader();
+		try {
+			reader.read();
+			fail();
+		} catch (XProcException xe) {
+			// The document has been released
+		}
+	}
+
+	public void testResetUnpins() throws Exception {
+		DocumentSequence seq = new DocumentSequence(runtime);
+		Pipe writer = new Pipe(runtime, seq);
+		Pipe reader = new Pipe(runtime, seq);
+
+		writer.write(doc);
+		writer.close();
+		seq.pinUntilReset();
+		reader.read();
+		reader.finished();
+		assertEquals(1, runtime.getRetainedDocuments());
+
+		// The next iteration's documents are released again
+		writer.resetWriter();
+		reader.resetReader();
+		writer.write(doc);
+		writer.close();
+		reader.read();
+		reader.finished();
+		assertEquals(0, runtime.getRetainedDocuments());
+	}
+}
@@ -0,0 +1,114 @@
+package com.xmlcalabash.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class FileChannelInputStreamTest extends TestCase {
+	private File small;
+	private File large;
+	private File copy;
+
+	public void setUp() throws Exception {
+		small = write(bytes(1000));
+		large = write(bytes(3 * 1024 * 1024 + 17));
+		copy = File.createTempFile("channel", ".bin");
+	}
+
+	public void tearDown() {
+		small.delete();
+		large.delete();
+		copy.delete();
+	}
+
+	public void testRead() throws Exception {
+		assertTrue(Arrays.equals(bytes(1000), readAll(new FileChannelInputStream(small))));
+		// Large files are memory-mapped
+		assertTrue(Arrays.equals(bytes(3 * 1024 * 1024 + 17), readAll(new FileChannelInputStream(large))));
+	}
+
+	public void testTransferToFile() throws Exception {
+		FileChannelInputStream in = new FileChannelInputStream(large);
+		in.read(new byte[100]);
+		FileOutputStream out = new FileOutputStream(copy);
+		assertEquals(large.length() - 100, in.transferTo(out));
+		out.close();
+		in.close();
+
+		byte[] expected = bytes(3 * 1024 * 1024 + 17);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(expected, 100, expected.length), Files.readAllBytes(copy.toPath())));
+	}
+
+	public void testTransferToStream() throws Exception {
+		FileChannelInputStream in = new FileChannelInputStream(small);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		in.transferTo(out);
+		in.close();
+		assertTrue(Arrays.equals(bytes(1000), out.toByteArray()));
+	}
+
+	public void testPosition() throws Exception {
+		FileChannelInputStream in = new FileChannelInputStream(large);
+		in.position(large.length() - 10);
+		in.mark(0);
+		assertEquals(10, readAll(in).length);
+		in.reset();
+		assertEquals(10, in.available());
+		in.close();
+	}
+
+	public void testTransferShrinkingFile() throws Exception {
+		FileChannelInputStream in = new FileChannelInputStream(large);
+		RandomAccessFile raf = new RandomAccessFile(large, "rw");
+		raf.setLength(100);
+		raf.close();
+		FileOutputStream out = new FileOutputStream(copy);
+		assertEquals(100, in.transferTo(out));
+		out.close();
+		in.close();
+	}
+
+	public void testReadBytes() throws Exception {
+		FileChannelInputStream in = new FileChannelInputStream(large);
+		in.position(large.length() - 2);
+		byte[] expected = bytes(3 * 1024 * 1024 + 17);
+		assertEquals(expected[expected.length - 2] & 0xff, in.read());
+		assertEquals(expected[expected.length - 1] & 0xff, in.read());
+		assertEquals(-1, in.read());
+		in.close();
+	}
+
+	private byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[5000];
+		int len = in.read(buf);
+		while (len >= 0) {
+			out.write(buf, 0, len);
+			len = in.read(buf);
+		}
+		return out.toByteArray();
+	}
+
+	private File write(byte[] bytes) throws IOException {
+		File file = File.createTempFile("channel", ".bin");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(bytes);
+		out.close();
+		return file;
+	}
+
+	private byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (i * 31 + 7);
+		}
+		return bytes;
+	}
+}
@@ -156,6 +156,26 @@ public class FileDataStoreTest extends TestCase {
 		new File(dir).delete();
 	}
 
+	public void testListingIsSorted() throws IOException {
+		URI dir = store.createList("sorted", tmp);
+		final String[] names = { "c.xml", "a.xml", "b.txt", "b.xml" };
+		for (String name : names) {
+			new File(new File(dir), name).createNewFile();
+		}
+		final StringBuilder listed = new StringBuilder();
+		store.listEachEntry("sorted", tmp, "*/*", new DataInfo() {
+			public void list(URI id, String media, long lastModified)
+					throws IOException {
+				listed.append(new File(id).getName()).append(" ");
+			}
+		});
+		assertEquals("a.xml b.txt b.xml c.xml ", listed.toString());
+		for (String name : names) {
+			new File(new File(dir), name).delete();
+		}
+		new File(dir).delete();
+	}
+
 	public void testGetContentTypeFromName() throws IOException {
 		assertEquals("text/plain", store.getContentTypeFromName(".txt"));
 		assertEquals("application/xml", store.getContentTypeFromName(".xml"));
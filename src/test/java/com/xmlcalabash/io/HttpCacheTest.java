@@ -0,0 +1,170 @@
+package com.xmlcalabash.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.XdmNode;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.xmlcalabash.core.XProcConfiguration;
+import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.io.DataStore.DataReader;
+import com.xmlcalabash.util.PooledHttpClient;
+
+public class HttpCacheTest extends TestCase {
+	private HttpServer server;
+	private String base;
+	private File dir;
+	private HttpClientDataStore store;
+	private PooledHttpClient client;
+
+	// What the server sends
+	private String body = "<doc>first</doc>";
+	private String etag = "\"v1\"";
+	private String cacheControl = null;
+	private int status = 200;
+	private int requests = 0;
+	private int notModified = 0;
+
+	public void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				synchronized (HttpCacheTest.this) {
+					requests++;
+					exchange.getResponseHeaders().set("Content-Type", "application/xml");
+					exchange.getResponseHeaders().set("ETag", etag);
+					if (cacheControl != null) {
+						exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+					}
+					if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+						notModified++;
+						exchange.sendResponseHeaders(304, -1);
+					} else {
+						byte[] bytes = body.getBytes("UTF-8");
+						exchange.sendResponseHeaders(status, bytes.length);
+						OutputStream out = exchange.getResponseBody();
+						out.write(bytes);
+						out.close();
+					}
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+		base = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+
+		dir = File.createTempFile("http-cache", "");
+		dir.delete();
+		dir.mkdir();
+
+		client = new PooledHttpClient(0, 0, 0, 0);
+		store = new HttpClientDataStore(client, new FallbackDataStore());
+		store.setCache(new HttpCache(dir));
+	}
+
+	public void tearDown() throws Exception {
+		server.stop(0);
+		client.getConnectionManager().shutdown();
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testRevalidated() throws Exception {
+		assertEquals("<doc>first</doc>", read("doc.xml"));
+		assertEquals("<doc>first</doc>", read("doc.xml"));
+		assertEquals(2, requests);
+		assertEquals(1, notModified);
+		assertEquals(1, store.getCache().getRevalidations());
+	}
+
+	public void testChanged() throws Exception {
+		assertEquals("<doc>first</doc>", read("doc.xml"));
+		body = "<doc>second</doc>";
+		etag = "\"v2\"";
+		assertEquals("<doc>second</doc>", read("doc.xml"));
+		assertEquals(0, notModified);
+		assertEquals(2, store.getCache().getMisses());
+	}
+
+	public void testFresh() throws Exception {
+		cacheControl = "max-age=3600";
+		assertEquals("<doc>first</doc>", read("doc.xml"));
+		assertEquals("<doc>first</doc>", read("doc.xml"));
+		assertEquals(1, requests);
+		assertEquals(1, store.getCache().getHits());
+	}
+
+	public void testNoStore() throws Exception {
+		cacheControl = "no-store";
+		assertEquals("<doc>first</doc>", read("doc.xml"));
+		assertEquals("<doc>first</doc>", read("doc.xml"));
+		assertEquals(2, requests);
+		assertEquals(0, notModified);
+	}
+
+	public void testOtherSuccessfulResponses() throws Exception {
+		// Reads succeed as they do without the cache, but the responses aren't cached
+		status = 203;
+		assertEquals("<doc>first</doc>", read("doc.xml"));
+		assertEquals("<doc>first</doc>", read("doc.xml"));
+		assertEquals(2, requests);
+		assertEquals(0, notModified);
+
+		status = 404;
+		try {
+			read("doc.xml");
+			fail();
+		} catch (FileNotFoundException fnfe) {
+			// expected
+		}
+	}
+
+	public void testSurvivesRestart() throws Exception {
+		assertEquals("<doc>first</doc>", read("doc.xml"));
+		store.setCache(new HttpCache(dir));
+		assertEquals("<doc>first</doc>", read("doc.xml"));
+		assertEquals(1, notModified);
+	}
+
+	public void testParsedDocument() throws Exception {
+		XProcConfiguration config = new XProcConfiguration();
+		config.httpCacheDirectory = dir.getAbsolutePath();
+		XProcRuntime runtime = new XProcRuntime(config);
+		try {
+			XdmNode first = runtime.parse(base + "doc.xml", base);
+			XdmNode second = runtime.parse(base + "doc.xml", base);
+			assertSame(first, second);
+			assertEquals(base + "doc.xml", second.getBaseURI().toASCIIString());
+			assertEquals(1, notModified);
+		} finally {
+			runtime.close();
+		}
+	}
+
+	private String read(String href) throws IOException {
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		store.readEntry(href, base, "application/xml", null, new DataReader() {
+			public void load(URI id, String media, InputStream content, long len) throws IOException {
+				byte[] buf = new byte[1024];
+				int read = content.read(buf);
+				while (read >= 0) {
+					result.write(buf, 0, read);
+					read = content.read(buf);
+				}
+			}
+		});
+		return result.toString("UTF-8");
+	}
+}
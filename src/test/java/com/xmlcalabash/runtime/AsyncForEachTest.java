@@ -0,0 +1,111 @@
+package com.xmlcalabash.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.xmlcalabash.core.XProcConfiguration;
+import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.io.ReadablePipe;
+import com.xmlcalabash.util.S9apiUtils;
+
+public class AsyncForEachTest extends TestCase {
+	private static final int REQUESTS = 12;
+
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private String base;
+	private XProcRuntime runtime;
+
+	private int inFlight = 0;
+	private int maxInFlight = 0;
+	private int requests = 0;
+
+	public void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String n = exchange.getRequestURI().getQuery().substring(2);
+				synchronized (AsyncForEachTest.this) {
+					requests++;
+					inFlight++;
+					maxInFlight = Math.max(maxInFlight, inFlight);
+				}
+				try {
+					// The earlier requests take longer, so responses arrive out of order
+					Thread.sleep((REQUESTS - Integer.parseInt(n)) * 15);
+				} catch (InterruptedException ie) {
+					throw new IOException(ie);
+				}
+				synchronized (AsyncForEachTest.this) {
+					inFlight--;
+				}
+				byte[] bytes = ("<doc n='" + n + "'/>").getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "application/xml");
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+				exchange.close();
+			}
+		});
+		serverThreads = Executors.newCachedThreadPool();
+		server.setExecutor(serverThreads);
+		server.start();
+		base = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+
+		XProcConfiguration config = new XProcConfiguration();
+		config.httpMaxConnectionsPerHost = REQUESTS;
+		runtime = new XProcRuntime(config);
+	}
+
+	public void tearDown() throws Exception {
+		runtime.close();
+		server.stop(0);
+		serverThreads.shutdown();
+	}
+
+	public void testLimitedAndInOrder() throws Exception {
+		XPipeline xpipe = runtime.use(parse("<p:declare-step xmlns:p='http://www.w3.org/ns/xproc'"
+				+ " xmlns:cx='http://xmlcalabash.com/ns/extensions' version='1.0'>"
+				+ "<p:input port='source' sequence='true'/>"
+				+ "<p:output port='result' sequence='true'/>"
+				+ "<p:for-each cx:async='3'>"
+				+ "<p:output port='result'/>"
+				+ "<p:http-request/>"
+				+ "</p:for-each>"
+				+ "</p:declare-step>"));
+		for (int i = 1; i <= REQUESTS; i++) {
+			xpipe.writeTo("source", parse("<c:request xmlns:c='http://www.w3.org/ns/xproc-step' method='GET'"
+					+ " href='" + base + "doc?n=" + i + "'/>"));
+		}
+		xpipe.run();
+
+		ReadablePipe result = xpipe.readFrom("result");
+		for (int i = 1; i <= REQUESTS; i++) {
+			XdmNode doc = S9apiUtils.getDocumentElement(result.read());
+			assertEquals(String.valueOf(i), doc.getAttributeValue(new QName("n")));
+		}
+		assertFalse(result.moreDocuments());
+
+		assertEquals(REQUESTS, requests);
+		assertTrue("At most 3 requests at once, not " + maxInFlight, maxInFlight <= 3);
+		assertTrue("Requests weren't concurrent", maxInFlight > 1);
+	}
+
+	private XdmNode parse(String xml) throws Exception {
+		return runtime.getProcessor().newDocumentBuilder().build(new StreamSource(new StringReader(xml)));
+	}
+}
@@ -0,0 +1,196 @@
+package com.xmlcalabash.runtime;
+
+import java.io.StringReader;
+import java.util.Vector;
+
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import com.xmlcalabash.core.XProcConfiguration;
+import com.xmlcalabash.core.XProcException;
+import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.io.ReadablePipe;
+import com.xmlcalabash.io.WritablePipe;
+import com.xmlcalabash.library.DefaultStep;
+
+public class StepSchedulerTest extends TestCase {
+	private static final String NS = "http://example.com/ns";
+	private static final String STEPS = "<p:declare-step type='ex:record'>"
+			+ "<p:input port='source'/>"
+			+ "<p:output port='result'/>"
+			+ "<p:option name='label' required='true'/>"
+			+ "<p:option name='delay' select='0'/>"
+			+ "<p:option name='fail' select=\"''\"/>"
+			+ "</p:declare-step>"
+			+ "<p:declare-step type='ex:effect'>"
+			+ "<p:input port='source'/>"
+			+ "<p:output port='result' primary='false'/>"
+			+ "<p:option name='label' required='true'/>"
+			+ "<p:option name='delay' select='0'/>"
+			+ "</p:declare-step>";
+
+	// What the ex:record and ex:effect steps ran, in the order they ran
+	private static Vector<String> labels = new Vector<String> ();
+	private static Vector<Thread> threads = new Vector<Thread> ();
+
+	private XProcRuntime runtime;
+
+	public void setUp() {
+		labels.clear();
+		threads.clear();
+	}
+
+	public void tearDown() {
+		if (runtime != null) {
+			runtime.close();
+		}
+	}
+
+	public void testOneThreadRunsInDocumentOrder() throws Exception {
+		runtime = runtime(1);
+		XPipeline xpipe = runtime.use(parse(pipeline(
+				effect("a", 100)
+				+ effect("b", 0)
+				+ "<p:for-each name='loop' cx:parallel='3'>"
+				+ "<p:iteration-source select='/doc/item'><p:pipe step='main' port='source'/></p:iteration-source>"
+				+ "<p:output port='result'/>"
+				+ "<ex:record><p:with-option name='label' select='p:iteration-position()'/></ex:record>"
+				+ "</p:for-each>"
+				+ "<p:wrap-sequence name='last' wrapper='result'/>")));
+		xpipe.writeTo("source", parse("<doc><item/><item/><item/></doc>"));
+		xpipe.run();
+
+		assertEquals("[a, b, 1, 2, 3]", labels.toString());
+		for (Thread thread : threads) {
+			assertSame(Thread.currentThread(), thread);
+		}
+	}
+
+	public void testSideEffectsRunInOrder() throws Exception {
+		runtime = runtime(4);
+		// Nothing reads the results of a, b and c, so they must run in document order
+		XPipeline xpipe = runtime.use(parse(pipeline(
+				effect("a", 150)
+				+ effect("b", 50)
+				+ effect("c", 0)
+				+ "<p:identity name='last'><p:input port='source'><p:pipe step='main' port='source'/></p:input></p:identity>")));
+		xpipe.writeTo("source", parse("<doc/>"));
+		xpipe.run();
+
+		assertEquals("[a, b, c]", labels.toString());
+	}
+
+	public void testFirstErrorInIterationOrder() throws Exception {
+		runtime = runtime(4);
+		// The even iterations fail, and the later ones fail sooner
+		XPipeline xpipe = runtime.use(parse(pipeline(
+				"<p:for-each name='last' cx:parallel='4'>"
+				+ "<p:iteration-source select='/doc/item'/>"
+				+ "<p:output port='result'/>"
+				+ "<ex:record>"
+				+ "<p:with-option name='label' select='p:iteration-position()'/>"
+				+ "<p:with-option name='delay' select='(5 - p:iteration-position()) * 50'/>"
+				+ "<p:with-option name='fail' select=\"if (p:iteration-position() mod 2 = 0) then concat('e', p:iteration-position()) else ''\"/>"
+				+ "</ex:record>"
+				+ "</p:for-each>")));
+		xpipe.writeTo("source", parse("<doc><item/><item/><item/><item/></doc>"));
+		try {
+			xpipe.run();
+			fail("The pipeline should have failed");
+		} catch (XProcException xe) {
+			assertEquals(new QName(NS, "e2"), errorCode(xe));
+		}
+	}
+
+	private XProcRuntime runtime(int threadCount) {
+		XProcConfiguration config = new XProcConfiguration();
+		config.threadCount = threadCount;
+		// Streaming runs steps on threads of their own
+		config.pipeCapacity = 0;
+		config.implementations.put(new QName(NS, "record"), Record.class);
+		config.implementations.put(new QName(NS, "effect"), Record.class);
+		return new XProcRuntime(config);
+	}
+
+	private String pipeline(String steps) {
+		return "<p:declare-step xmlns:p='http://www.w3.org/ns/xproc'"
+				+ " xmlns:cx='http://xmlcalabash.com/ns/extensions'"
+				+ " xmlns:ex='" + NS + "' name='main' version='1.0'>"
+				+ "<p:input port='source'/>"
+				+ "<p:output port='result' sequence='true'><p:pipe step='last' port='result'/></p:output>"
+				+ STEPS
+				+ steps
+				+ "</p:declare-step>";
+	}
+
+	private String effect(String label, int delay) {
+		return "<ex:effect label='" + label + "' delay='" + delay + "'>"
+				+ "<p:input port='source'><p:pipe step='main' port='source'/></p:input>"
+				+ "</ex:effect>";
+	}
+
+	private QName errorCode(Throwable t) {
+		while (t != null) {
+			if (t instanceof XProcException && ((XProcException) t).getErrorCode() != null) {
+				return ((XProcException) t).getErrorCode();
+			}
+			t = t.getCause();
+		}
+		return null;
+	}
+
+	private XdmNode parse(String xml) throws Exception {
+		return runtime.getProcessor().newDocumentBuilder().build(new StreamSource(new StringReader(xml), "http://example.com/test.xml"));
+	}
+
+	public static class Record extends DefaultStep {
+		private static final QName _label = new QName("label");
+		private static final QName _delay = new QName("delay");
+		private static final QName _fail = new QName("fail");
+		private ReadablePipe source = null;
+		private WritablePipe result = null;
+
+		public Record(XProcRuntime runtime, XAtomicStep step) {
+			super(runtime, step);
+		}
+
+		public void setInput(String port, ReadablePipe pipe) {
+			source = pipe;
+		}
+
+		public void setOutput(String port, WritablePipe pipe) {
+			result = pipe;
+		}
+
+		public void reset() {
+			source.resetReader();
+			result.resetWriter();
+		}
+
+		public void run() throws SaxonApiException {
+			super.run();
+
+			try {
+				Thread.sleep(getOption(_delay, 0));
+			} catch (InterruptedException ie) {
+				throw new XProcException(ie);
+			}
+
+			labels.add(getOption(_label).getString());
+			threads.add(Thread.currentThread());
+
+			String fail = getOption(_fail, "");
+			if (!"".equals(fail)) {
+				throw new XProcException(new QName(NS, fail), "Iteration failed");
+			}
+
+			while (source.moreDocuments()) {
+				result.write(source.read());
+			}
+		}
+	}
+}
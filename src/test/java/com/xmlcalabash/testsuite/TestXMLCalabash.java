@@ -126,6 +126,21 @@ public class TestXMLCalabash {
         suiteRunner.runTest(TESTROOT + "namespace-delete-001.xml");
     }
 
+    @Test
+    public void testParallelForEach001() {
+        suiteRunner.runTest(TESTROOT + "parallel-for-each-001.xml");
+    }
+
+    @Test
+    public void testParallelForEach002() {
+        suiteRunner.runTest(TESTROOT + "parallel-for-each-002.xml");
+    }
+
+    @Test
+    public void testParallelViewport001() {
+        suiteRunner.runTest(TESTROOT + "parallel-viewport-001.xml");
+    }
+
     @Test
     public void testPrettyPrint001() {
         suiteRunner.runTest(TESTROOT + "pretty-print-001.xml");
@@ -151,6 +166,11 @@ public class TestXMLCalabash {
         suiteRunner.runTest(TESTROOT + "set-cookies-001.xml");
     }
 
+    @Test
+    public void testSideEffects001() {
+        suiteRunner.runTest(TESTROOT + "side-effects-001.xml");
+    }
+
     @Ignore
     public void testSparql001() {
         suiteRunner.runTest(TESTROOT + "sparql-001.xml");
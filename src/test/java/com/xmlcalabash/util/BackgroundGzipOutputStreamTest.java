@@ -0,0 +1,71 @@
+package com.xmlcalabash.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+public class BackgroundGzipOutputStreamTest extends TestCase {
+	private ExecutorService executor = Executors.newCachedThreadPool();
+
+	protected void tearDown() {
+		executor.shutdown();
+	}
+
+	public void testRoundTrip() throws Exception {
+		byte[] bytes = new byte[1000000];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (i % 251);
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		BackgroundGzipOutputStream out = new BackgroundGzipOutputStream(baos, executor);
+		out.write(bytes, 0, 1000);
+		out.write(bytes[1000]);
+		out.write(bytes, 1001, bytes.length - 1001);
+		out.close();
+
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray()));
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int len = in.read(buf);
+		while (len >= 0) {
+			result.write(buf, 0, len);
+			len = in.read(buf);
+		}
+		assertTrue(Arrays.equals(bytes, result.toByteArray()));
+	}
+
+	public void testFailure() throws Exception {
+		OutputStream broken = new OutputStream() {
+			private int count = 0;
+			public void write(int b) throws IOException {
+				if (++count > 100) {
+					throw new IOException("disk full");
+				}
+			}
+		};
+
+		BackgroundGzipOutputStream out = new BackgroundGzipOutputStream(broken, executor);
+		byte[] bytes = new byte[64 * 1024];
+		try {
+			for (int i = 0; i < 100; i++) {
+				// Incompressible, so that the compressor has to write something
+				for (int j = 0; j < bytes.length; j++) {
+					bytes[j] = (byte) (Math.random() * 256);
+				}
+				out.write(bytes);
+			}
+			out.finish();
+			fail();
+		} catch (IOException ioe) {
+			assertEquals("disk full", ioe.getMessage());
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.xmlcalabash.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+import net.sf.saxon.om.TreeModel;
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+
+public class BinaryDataTest extends TestCase {
+	private Processor processor = new Processor(false);
+
+	public void testLinkedTree() throws Exception {
+		byte[] bytes = bytes(100000);
+		XdmNode doc = wrap(bytes, TreeModel.LINKED_TREE);
+		assertNotNull(BinaryData.getBinaryData(doc));
+		assertTrue(Arrays.equals(bytes, Base64.decode(doc.getStringValue())));
+		assertTrue(Arrays.equals(bytes, BinaryData.decode(doc)));
+	}
+
+	public void testTinyTree() throws Exception {
+		byte[] bytes = bytes(100000);
+		XdmNode doc = wrap(bytes, null);
+		assertNull(BinaryData.getBinaryData(doc));
+		assertTrue(Arrays.equals(bytes, BinaryData.decode(doc)));
+	}
+
+	public void testTemporaryFile() throws Exception {
+		byte[] bytes = bytes(3 * 1024 * 1024);
+		BinaryData data = BinaryData.read(new ByteArrayInputStream(bytes));
+		assertEquals(bytes.length, data.getLength());
+		assertTrue(Arrays.equals(bytes, Base64.decode(data.getBase64())));
+	}
+
+	public void testMemoryLimit() throws Exception {
+		int files = temporaryFiles();
+		byte[] bytes = bytes(1024 * 1024 + 1);
+		BinaryData.Output out = new BinaryData.Output();
+		int pos = 0;
+		while (pos < bytes.length - 1) {
+			int len = Math.min(bytes.length - 1 - pos, 1000 + pos % 7919);
+			out.write(bytes, pos, len);
+			pos += len;
+		}
+		// Up to the limit, the bytes are kept in memory
+		assertEquals(files, temporaryFiles());
+		out.write(bytes[pos]);
+		out.close();
+		assertEquals(files + 1, temporaryFiles());
+
+		BinaryData data = out.getData();
+		assertEquals(bytes.length, data.getLength());
+		assertTrue(Arrays.equals(bytes, Base64.decode(data.getBase64())));
+		data.close();
+
+		byte[] small = bytes(5000);
+		data = BinaryData.read(new ByteArrayInputStream(small));
+		assertEquals(files, temporaryFiles());
+		assertTrue(Arrays.equals(small, Base64.decode(data.getBase64())));
+	}
+
+	public void testCloseDeletesFile() throws Exception {
+		int files = temporaryFiles();
+		BinaryData data = BinaryData.read(new ByteArrayInputStream(bytes(3 * 1024 * 1024)));
+		assertEquals(files + 1, temporaryFiles());
+		data.close();
+		assertEquals(files, temporaryFiles());
+		try {
+			data.getInputStream();
+			fail();
+		} catch (IOException ioe) {
+			// expected
+		}
+	}
+
+	public void testDecodedLength() throws Exception {
+		assertEquals(100000, BinaryData.getDecodedLength(wrap(bytes(100000), TreeModel.LINKED_TREE)));
+		assertEquals(-1, BinaryData.getDecodedLength(wrap(bytes(100000), null)));
+
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+		gzip.write(bytes(1000));
+		gzip.close();
+		XdmNode doc = wrap(gzipped.toByteArray(), TreeModel.LINKED_TREE);
+		assertEquals(-1, BinaryData.getDecodedLength(doc));
+		assertTrue(Arrays.equals(bytes(1000), BinaryData.decode(doc)));
+	}
+
+	public void testForgedPlaceholder() throws Exception {
+		byte[] bytes = bytes(1000);
+		XdmNode forged = pi("calabash-binary-0");
+
+		TreeWriter tree = new TreeWriter(processor);
+		tree.setTreeModel(TreeModel.LINKED_TREE);
+		tree.startDocument(URI.create("http://example.com/data"));
+		tree.addStartElement(new QName("data"));
+		tree.startContent();
+		tree.addSubtree(forged);
+		tree.addBinary(BinaryData.read(new ByteArrayInputStream(bytes)));
+		tree.addSubtree(forged);
+		tree.addEndElement();
+		tree.endDocument();
+		XdmNode doc = tree.getResult();
+
+		XdmNode data = (XdmNode) doc.axisIterator(Axis.CHILD).next();
+		XdmSequenceIterator iter = data.axisIterator(Axis.CHILD);
+		assertEquals(XdmNodeKind.PROCESSING_INSTRUCTION, ((XdmNode) iter.next()).getNodeKind());
+		XdmNode text = (XdmNode) iter.next();
+		assertEquals(XdmNodeKind.TEXT, text.getNodeKind());
+		assertTrue(Arrays.equals(bytes, Base64.decode(text.getStringValue())));
+		assertEquals(XdmNodeKind.PROCESSING_INSTRUCTION, ((XdmNode) iter.next()).getNodeKind());
+		assertFalse(iter.hasNext());
+	}
+
+	private XdmNode pi(String target) throws Exception {
+		TreeWriter tree = new TreeWriter(processor);
+		tree.startDocument(URI.create("http://example.com/pi"));
+		tree.addPI(target, "");
+		tree.endDocument();
+		return (XdmNode) tree.getResult().axisIterator(Axis.CHILD).next();
+	}
+
+	private int temporaryFiles() {
+		int count = 0;
+		for (String name : new File(System.getProperty("java.io.tmpdir")).list()) {
+			if (name.startsWith("calabash") && name.endsWith(".bin")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private XdmNode wrap(byte[] bytes, TreeModel model) throws Exception {
+		TreeWriter tree = new TreeWriter(processor);
+		if (model != null) {
+			tree.setTreeModel(model);
+		}
+		tree.startDocument(URI.create("http://example.com/data"));
+		tree.addStartElement(new QName("data"));
+		tree.startContent();
+		tree.addBinary(BinaryData.read(new ByteArrayInputStream(bytes)));
+		tree.addEndElement();
+		tree.endDocument();
+		return tree.getResult();
+	}
+
+	private byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			// Not a gzip header
+			bytes[i] = (byte) (i * 7 + 3);
+		}
+		return bytes;
+	}
+}
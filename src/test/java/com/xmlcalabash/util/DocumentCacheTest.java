@@ -0,0 +1,100 @@
+package com.xmlcalabash.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import javax.xml.transform.Source;
+
+import junit.framework.TestCase;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.XdmNode;
+
+import com.xmlcalabash.core.XProcConfiguration;
+import com.xmlcalabash.core.XProcRuntime;
+
+public class DocumentCacheTest extends TestCase {
+	private File dir;
+	private File doc;
+	private XProcConfiguration config;
+	private XProcRuntime runtime;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile("document-cache", "");
+		dir.delete();
+		dir.mkdir();
+		doc = new File(dir, "doc.xml");
+		write(doc, "<doc>first</doc>");
+
+		config = new XProcConfiguration();
+		config.documentCacheSize = 2;
+		runtime = new XProcRuntime(config);
+	}
+
+	public void tearDown() throws Exception {
+		runtime.close();
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testCached() throws Exception {
+		XdmNode first = parse(doc);
+		assertSame(first, parse(doc));
+		// Fragment identifiers are resolved by the caller
+		assertSame(first, runtime.parse(doc.toURI().toASCIIString() + "#foo", dir.toURI().toASCIIString()));
+
+		DocumentCache cache = config.getDocumentCache();
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	public void testChangedFileIsParsedAgain() throws Exception {
+		assertEquals("first", parse(doc).getStringValue());
+		write(doc, "<doc>second</doc>");
+		assertEquals("second", parse(doc).getStringValue());
+		assertEquals(1, config.getDocumentCache().getStale());
+	}
+
+	public void testLeastRecentlyUsedIsEvicted() throws Exception {
+		File other = new File(dir, "other.xml");
+		File third = new File(dir, "third.xml");
+		write(other, "<doc>other</doc>");
+		write(third, "<doc>third</doc>");
+
+		XdmNode first = parse(doc);
+		parse(other);
+		assertSame(first, parse(doc));
+		parse(third);
+
+		DocumentCache cache = config.getDocumentCache();
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertSame(first, parse(doc));
+	}
+
+	public void testByteLimit() throws Exception {
+		config.documentCacheBytes = 10;
+		parse(doc);
+		parse(doc);
+		assertEquals(0, config.getDocumentCache().size());
+		assertEquals(0, config.getDocumentCache().getHits());
+	}
+
+	public void testResolve() throws Exception {
+		XdmNode first = parse(doc);
+		Source source = runtime.getResolver().resolve("doc.xml", dir.toURI().toASCIIString());
+		assertSame(first.getUnderlyingNode(), (NodeInfo) source);
+	}
+
+	private XdmNode parse(File file) {
+		return runtime.parse(file.getName(), dir.toURI().toASCIIString());
+	}
+
+	private void write(File file, String content) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		writer.write(content);
+		writer.close();
+	}
+}
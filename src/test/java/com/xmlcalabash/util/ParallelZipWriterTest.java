@@ -0,0 +1,152 @@
+package com.xmlcalabash.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+public class ParallelZipWriterTest extends TestCase {
+	private ExecutorService executor = Executors.newFixedThreadPool(4);
+	private File zip;
+
+	protected void setUp() throws Exception {
+		zip = File.createTempFile("parallel", ".zip");
+	}
+
+	protected void tearDown() {
+		executor.shutdown();
+		zip.delete();
+	}
+
+	public void testEntriesAreWrittenInOrder() throws Exception {
+		ParallelZipWriter writer = new ParallelZipWriter(new FileOutputStream(zip), executor);
+		// The first entry takes longest, but it still comes first
+		writer.addEntry("slow.txt", ZipEntry.DEFLATED, Deflater.BEST_COMPRESSION, -1, "slow", new Content(bytes(500000), 200));
+		writer.addEntry("stored.bin", ZipEntry.STORED, Deflater.DEFAULT_COMPRESSION, -1, null, new Content(bytes(1000), 0));
+		writer.addEntry("dir/fast.txt", ZipEntry.DEFLATED, Deflater.BEST_SPEED, -1, null, new Content(bytes(3), 0));
+		writer.finish();
+		writer.close();
+
+		ZipFile file = new ZipFile(zip);
+		try {
+			assertEquals(3, file.size());
+			assertEquals("slow", file.getEntry("slow.txt").getComment());
+			assertEquals(ZipEntry.STORED, file.getEntry("stored.bin").getMethod());
+			assertTrue(Arrays.equals(bytes(500000), read(file.getInputStream(file.getEntry("slow.txt")))));
+			assertTrue(Arrays.equals(bytes(1000), read(file.getInputStream(file.getEntry("stored.bin")))));
+		} finally {
+			file.close();
+		}
+
+		// Sizes are in the local headers, so streaming readers see them too
+		ZipInputStream in = new ZipInputStream(new FileInputStream(zip));
+		try {
+			ZipEntry entry = in.getNextEntry();
+			assertEquals("slow.txt", entry.getName());
+			assertEquals(500000, entry.getSize());
+			assertEquals("stored.bin", in.getNextEntry().getName());
+			entry = in.getNextEntry();
+			assertEquals("dir/fast.txt", entry.getName());
+			assertTrue(Arrays.equals(bytes(3), read(in)));
+			assertNull(in.getNextEntry());
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testCopyEntry() throws Exception {
+		ByteArrayOutputStream original = new ByteArrayOutputStream();
+		ParallelZipWriter writer = new ParallelZipWriter(original, executor);
+		writer.addEntry("a.txt", ZipEntry.DEFLATED, Deflater.DEFAULT_COMPRESSION, 1000000000000L, null, new Content(bytes(20000), 0));
+		writer.addEntry("b.bin", ZipEntry.STORED, Deflater.DEFAULT_COMPRESSION, -1, null, new Content(bytes(100), 0));
+		writer.finish();
+
+		ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(original.toByteArray()));
+		writer = new ParallelZipWriter(new FileOutputStream(zip), executor);
+		ZipEntry entry;
+		while ((entry = in.getNextEntry()) != null) {
+			writer.copyEntry(entry, in);
+		}
+		writer.finish();
+		writer.close();
+
+		ZipFile file = new ZipFile(zip);
+		try {
+			assertEquals(2, file.size());
+			assertEquals(1000000000000L, file.getEntry("a.txt").getTime());
+			assertTrue(Arrays.equals(bytes(20000), read(file.getInputStream(file.getEntry("a.txt")))));
+			assertTrue(Arrays.equals(bytes(100), read(file.getInputStream(file.getEntry("b.bin")))));
+		} finally {
+			file.close();
+		}
+	}
+
+	public void testFailure() throws Exception {
+		ParallelZipWriter writer = new ParallelZipWriter(new FileOutputStream(zip), executor);
+		writer.addEntry("ok.txt", ZipEntry.DEFLATED, Deflater.DEFAULT_COMPRESSION, -1, null, new Content(bytes(10), 100));
+		writer.addEntry("broken.txt", ZipEntry.DEFLATED, Deflater.DEFAULT_COMPRESSION, -1, null, new ParallelZipWriter.EntryContent() {
+			public void write(OutputStream out) throws IOException {
+				throw new IOException("unreadable");
+			}
+		});
+		try {
+			writer.finish();
+			fail();
+		} catch (IOException ioe) {
+			assertEquals("unreadable", ioe.getMessage());
+		} finally {
+			writer.close();
+		}
+	}
+
+	private byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int len = in.read(buf);
+		while (len >= 0) {
+			out.write(buf, 0, len);
+			len = in.read(buf);
+		}
+		return out.toByteArray();
+	}
+
+	private byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) ((i / 7) % 251);
+		}
+		return bytes;
+	}
+
+	private static class Content implements ParallelZipWriter.EntryContent {
+		private byte[] bytes = null;
+		private long delay = 0;
+
+		private Content(byte[] bytes, long delay) {
+			this.bytes = bytes;
+			this.delay = delay;
+		}
+
+		public void write(OutputStream out) throws IOException {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException ie) {
+				throw new IOException(ie);
+			}
+			out.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.xmlcalabash.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class PooledHttpClientTest extends TestCase {
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private String base;
+	// Requests wait for this before they're answered
+	private CountDownLatch release = new CountDownLatch(0);
+
+	private int inFlight = 0;
+	private int maxInFlight = 0;
+
+	public void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				synchronized (PooledHttpClientTest.this) {
+					inFlight++;
+					maxInFlight = Math.max(maxInFlight, inFlight);
+				}
+				try {
+					release.await();
+				} catch (InterruptedException ie) {
+					throw new IOException(ie);
+				}
+				synchronized (PooledHttpClientTest.this) {
+					inFlight--;
+				}
+				byte[] bytes = "<doc/>".getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "application/xml");
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+				exchange.close();
+			}
+		});
+		serverThreads = Executors.newCachedThreadPool();
+		server.setExecutor(serverThreads);
+		server.start();
+		base = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	public void tearDown() throws Exception {
+		server.stop(0);
+		serverThreads.shutdown();
+	}
+
+	public void testPoolLimits() throws Exception {
+		PooledHttpClient client = new PooledHttpClient(3, 2, 0, 0);
+		assertEquals(3, client.getPoolStats().getMax());
+		client.getConnectionManager().shutdown();
+
+		// Without a total, twice the number per host
+		client = new PooledHttpClient(0, 4, 0, 0);
+		assertEquals(8, client.getPoolStats().getMax());
+		client.getConnectionManager().shutdown();
+	}
+
+	public void testConnectionsPerHost() throws Exception {
+		final PooledHttpClient client = new PooledHttpClient(10, 2, 0, 0);
+		release = new CountDownLatch(1);
+
+		Vector<Thread> threads = new Vector<Thread> ();
+		final Vector<Throwable> failures = new Vector<Throwable> ();
+		for (int i = 0; i < 4; i++) {
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						get(client);
+					} catch (Throwable t) {
+						failures.add(t);
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		// Two requests are at the server and the other two are waiting for a connection
+		PoolStats stats = client.getPoolStats();
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((stats.getLeased() < 2 || stats.getPending() < 2 || inFlight() < 2) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			stats = client.getPoolStats();
+		}
+		assertEquals(2, stats.getLeased());
+		assertEquals(2, stats.getPending());
+		assertEquals(2, inFlight());
+
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(2, maxInFlight);
+
+		// The connections the server kept open are kept for the next requests
+		stats = client.getPoolStats();
+		assertEquals(0, stats.getLeased());
+		assertEquals(0, stats.getPending());
+		assertTrue("Available: " + stats.getAvailable(), stats.getAvailable() > 0 && stats.getAvailable() <= 2);
+		client.getConnectionManager().shutdown();
+	}
+
+	public void testIdleConnectionsAreClosed() throws Exception {
+		PooledHttpClient client = new PooledHttpClient(0, 0, 1, 0);
+		get(client);
+		assertEquals(1, client.getPoolStats().getAvailable());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (client.getPoolStats().getAvailable() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+		assertEquals(0, client.getPoolStats().getAvailable());
+		client.getConnectionManager().shutdown();
+	}
+
+	private synchronized int inFlight() {
+		return inFlight;
+	}
+
+	private void get(PooledHttpClient client) throws IOException {
+		HttpResponse response = client.execute(new HttpGet(base + "doc"));
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		EntityUtils.consume(response.getEntity());
+	}
+}
@@ -0,0 +1,98 @@
+package com.xmlcalabash.util;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Vector;
+
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XQueryEvaluator;
+import net.sf.saxon.s9api.XdmNode;
+
+import com.xmlcalabash.core.XProcConfiguration;
+import com.xmlcalabash.core.XProcRuntime;
+
+public class S9apiUtilsTest extends TestCase {
+	private XProcRuntime runtime = null;
+
+	public void setUp() {
+		runtime = new XProcRuntime(new XProcConfiguration());
+	}
+
+	public void tearDown() {
+		runtime.close();
+	}
+
+	public void testNamespaces() throws Exception {
+		assertSerializedAsBefore("<doc xmlns='urn:a' xmlns:b='urn:b' xmlns:unused='urn:c'>"
+				+ "<b:child b:att='1'><grandchild xmlns=''/></b:child>"
+				+ "</doc>");
+	}
+
+	public void testProcessingInstructionsAndComments() throws Exception {
+		assertSerializedAsBefore("<?first one?><!-- before --><doc><?inner two?>text<!-- inside --></doc><?last three?>");
+	}
+
+	public void testUndeclaredPrefix() throws Exception {
+		// p:add-attribute can make an attribute whose prefix isn't declared in the tree
+		TreeWriter tree = new TreeWriter(runtime);
+		tree.startDocument(null);
+		tree.addStartElement(new QName("doc"));
+		tree.addAttribute(new QName("x", "urn:x", "att"), "value");
+		tree.startContent();
+		tree.addEndElement();
+		tree.endDocument();
+		assertSerializedAsBefore(tree.getResult());
+		assertTrue(serialize(tree.getResult(), "xml").contains("xmlns:x=\"urn:x\""));
+	}
+
+	public void testXMLDeclarationOnlyBeforeTheFirstNode() throws Exception {
+		Vector<XdmNode> nodes = new Vector<XdmNode> ();
+		nodes.add(parse("<one/>"));
+		nodes.add(parse("<two/>"));
+		StringWriter writer = new StringWriter();
+		Serializer serializer = runtime.getProcessor().newSerializer(writer);
+		S9apiUtils.serialize(runtime, nodes, serializer);
+		assertEquals(writer.toString().indexOf("<?xml"), writer.toString().lastIndexOf("<?xml"));
+		assertTrue(writer.toString().startsWith("<?xml"));
+	}
+
+	private void assertSerializedAsBefore(String xml) throws Exception {
+		assertSerializedAsBefore(parse(xml));
+	}
+
+	private void assertSerializedAsBefore(XdmNode doc) throws Exception {
+		for (String method : new String[] {"xml", "xhtml", "html", "text"}) {
+			assertEquals(method, query(doc, method), serialize(doc, method));
+		}
+	}
+
+	private String serialize(XdmNode doc, String method) throws Exception {
+		StringWriter writer = new StringWriter();
+		S9apiUtils.serialize(runtime, doc, serializer(writer, method));
+		return writer.toString();
+	}
+
+	// How serialize() used to do it
+	private String query(XdmNode doc, String method) throws Exception {
+		StringWriter writer = new StringWriter();
+		XQueryEvaluator xqeval = runtime.getProcessor().newXQueryCompiler().compile(".").load();
+		xqeval.setContextItem(doc);
+		xqeval.setDestination(serializer(writer, method));
+		xqeval.run();
+		return writer.toString();
+	}
+
+	private Serializer serializer(StringWriter writer, String method) {
+		Serializer serializer = runtime.getProcessor().newSerializer(writer);
+		serializer.setOutputProperty(Serializer.Property.METHOD, method);
+		return serializer;
+	}
+
+	private XdmNode parse(String xml) throws Exception {
+		return runtime.getProcessor().newDocumentBuilder().build(new StreamSource(new StringReader(xml), "http://example.com/doc.xml"));
+	}
+}
@@ -0,0 +1,79 @@
+package com.xmlcalabash.util;
+
+import java.io.StringReader;
+import java.util.Collections;
+
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.XdmNode;
+
+import com.xmlcalabash.core.XProcConfiguration;
+import com.xmlcalabash.core.XProcRuntime;
+import com.xmlcalabash.runtime.XPipeline;
+
+public class SchemaCacheTest extends TestCase {
+	private static final String schema = "<grammar xmlns='http://relaxng.org/ns/structure/1.0'>"
+			+ "<start><element name='%s'><text/></element></start>"
+			+ "</grammar>";
+
+	private XProcRuntime runtime = null;
+
+	public void setUp() {
+		runtime = new XProcRuntime(new XProcConfiguration());
+	}
+
+	public void tearDown() {
+		runtime.close();
+	}
+
+	public void testHitsAndMisses() throws Exception {
+		SchemaCache cache = new SchemaCache();
+		Object compiled = new Object();
+		assertNull(cache.get("a"));
+		cache.put("a", compiled);
+		assertSame(compiled, cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(1, cache.size());
+
+		cache.clear();
+		assertNull(cache.get("a"));
+	}
+
+	public void testKeys() throws Exception {
+		// Separately built trees with the same content and base URI have the same key
+		assertEquals(key("doc", "http://example.com/a.rng", "msv"), key("doc", "http://example.com/a.rng", "msv"));
+		assertFalse(key("doc", "http://example.com/a.rng", "msv").equals(key("other", "http://example.com/a.rng", "msv")));
+		assertFalse(key("doc", "http://example.com/a.rng", "msv").equals(key("doc", "http://example.com/b.rng", "msv")));
+		assertFalse(key("doc", "http://example.com/a.rng", "msv").equals(key("doc", "http://example.com/a.rng", "jing")));
+	}
+
+	public void testSchemaIsCompiledOnce() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			XPipeline xpipe = runtime.use(parse("<p:declare-step xmlns:p='http://www.w3.org/ns/xproc' name='main' version='1.0'>"
+					+ "<p:input port='source' primary='true'/>"
+					+ "<p:input port='schema'/>"
+					+ "<p:output port='result'/>"
+					+ "<p:validate-with-relax-ng>"
+					+ "<p:input port='schema'><p:pipe step='main' port='schema'/></p:input>"
+					+ "</p:validate-with-relax-ng>"
+					+ "</p:declare-step>", "http://example.com/pipe.xpl"));
+			xpipe.writeTo("source", parse("<doc>text</doc>", "http://example.com/doc.xml"));
+			xpipe.writeTo("schema", parse(String.format(schema, "doc"), "http://example.com/doc.rng"));
+			xpipe.run();
+		}
+
+		assertEquals(1, runtime.getSchemaCache().getMisses());
+		assertEquals(1, runtime.getSchemaCache().getHits());
+	}
+
+	private String key(String name, String baseURI, String options) throws Exception {
+		return SchemaCache.key(Collections.singleton(parse(String.format(schema, name), baseURI)), options);
+	}
+
+	private XdmNode parse(String xml, String baseURI) throws Exception {
+		return runtime.getProcessor().newDocumentBuilder().build(new StreamSource(new StringReader(xml), baseURI));
+	}
+}
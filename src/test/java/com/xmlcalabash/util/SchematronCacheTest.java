@@ -0,0 +1,69 @@
+package com.xmlcalabash.util;
+
+import java.io.StringReader;
+
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XsltExecutable;
+
+import com.xmlcalabash.core.XProcConfiguration;
+import com.xmlcalabash.core.XProcRuntime;
+
+public class SchematronCacheTest extends TestCase {
+	private Processor processor = new Processor(false);
+
+	public void testStagesAreCompiledOnce() throws Exception {
+		SchematronCache cache = new SchematronCache(processor);
+		XsltExecutable include = cache.getStage("iso_dsdl_include.xsl", false);
+		assertSame(include, cache.getStage("iso_dsdl_include.xsl", false));
+		assertNotSame(include, cache.getStage("iso_abstract_expand.xsl", false));
+		// The skeleton that iso_svrl_for_xslt2.xsl imports comes from the JAR too
+		assertNotNull(cache.getStage("iso_svrl_for_xslt2.xsl", false));
+	}
+
+	public void testValidators() throws Exception {
+		SchematronCache cache = new SchematronCache(processor);
+		assertNull(cache.getValidator("a"));
+		XsltExecutable exec = compile();
+		cache.putValidator("a", exec);
+		assertSame(exec, cache.getValidator("a"));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		cache.clear();
+		assertNull(cache.getValidator("a"));
+	}
+
+	public void testLeastRecentlyUsedIsEvicted() throws Exception {
+		SchematronCache cache = new SchematronCache(processor);
+		XsltExecutable exec = compile();
+		for (int i = 0; i <= 64; i++) {
+			cache.putValidator("v" + i, exec);
+			// Keep the first validator in use
+			cache.getValidator("v0");
+		}
+		assertNotNull(cache.getValidator("v0"));
+		assertNull(cache.getValidator("v1"));
+		assertNotNull(cache.getValidator("v64"));
+	}
+
+	public void testCacheBelongsToTheRuntime() throws Exception {
+		XProcConfiguration config = new XProcConfiguration();
+		XProcRuntime first = new XProcRuntime(config);
+		XProcRuntime second = new XProcRuntime(config);
+		try {
+			assertSame(first.getSchematronCache(), first.getSchematronCache());
+			assertNotSame(first.getSchematronCache(), second.getSchematronCache());
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	private XsltExecutable compile() throws Exception {
+		String xsl = "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'/>";
+		return processor.newXsltCompiler().compile(new StreamSource(new StringReader(xsl)));
+	}
+}
@@ -0,0 +1,62 @@
+package com.xmlcalabash.util;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.CollectionURIResolver;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.ListIterator;
+
+public class ThreadCollectionResolverTest extends TestCase {
+	private Configuration config = new Configuration();
+	private Fixed chained = new Fixed();
+
+	public void setUp() {
+		config.setCollectionURIResolver(chained);
+	}
+
+	public void testInstalledOnce() {
+		ThreadCollectionResolver resolver = ThreadCollectionResolver.getInstance(config);
+		assertSame(resolver, config.getCollectionURIResolver());
+		assertSame(resolver, ThreadCollectionResolver.getInstance(config));
+		assertSame(chained, resolver.getChainedResolver());
+	}
+
+	public void testResolverIsPerThread() throws Exception {
+		final ThreadCollectionResolver resolver = ThreadCollectionResolver.getInstance(config);
+		Fixed mine = new Fixed();
+		resolver.register(mine);
+		try {
+			final SequenceIterator[] seen = new SequenceIterator[1];
+			Thread other = new Thread() {
+				public void run() {
+					try {
+						seen[0] = resolver.resolve("coll", null, null);
+					} catch (XPathException xe) {
+						// seen[0] stays null
+					}
+				}
+			};
+			other.start();
+			other.join();
+
+			assertSame(mine.iterator, resolver.resolve("coll", null, null));
+			assertSame(chained.iterator, seen[0]);
+		} finally {
+			resolver.unregister();
+		}
+		assertSame(chained.iterator, resolver.resolve("coll", null, null));
+	}
+
+	private static class Fixed implements CollectionURIResolver {
+		private SequenceIterator iterator = new ListIterator(new ArrayList<Item>());
+
+		public SequenceIterator resolve(String href, String base, XPathContext context) {
+			return iterator;
+		}
+	}
+}
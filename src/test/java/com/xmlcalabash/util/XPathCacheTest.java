@@ -0,0 +1,86 @@
+package com.xmlcalabash.util;
+
+import java.io.StringReader;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Vector;
+
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmNode;
+
+public class XPathCacheTest extends TestCase {
+	private Processor processor = new Processor(false);
+	private Vector<QName> noVariables = new Vector<QName> ();
+
+	public void testSameExpressionIsShared() throws Exception {
+		XPathCache cache = new XPathCache(processor);
+		assertSame(cache.compile("/doc", null, namespaces("x", "urn:a"), noVariables),
+				cache.compile("/doc", null, namespaces("x", "urn:a"), noVariables));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	public void testNamespaceBindingsAreSeparated() throws Exception {
+		XPathCache cache = new XPathCache(processor);
+		XdmNode doc = parse("<doc xmlns='urn:a'/>");
+		// The same prefix bound to two different namespaces
+		XPathExecutable a = cache.compile("count(/x:doc)", null, namespaces("x", "urn:a"), noVariables);
+		XPathExecutable b = cache.compile("count(/x:doc)", null, namespaces("x", "urn:b"), noVariables);
+		assertNotSame(a, b);
+		assertEquals("1", evaluate(a, doc));
+		assertEquals("0", evaluate(b, doc));
+		assertEquals(0, cache.getHits());
+	}
+
+	public void testVariablesAreSeparated() throws Exception {
+		XPathCache cache = new XPathCache(processor);
+		QName v = new QName("v");
+		Vector<QName> variables = new Vector<QName> ();
+		variables.add(v);
+
+		XPathExecutable without = cache.compile("string(/doc)", null, namespaces("x", "urn:a"), noVariables);
+		XPathExecutable with = cache.compile("string(/doc)", null, namespaces("x", "urn:a"), variables);
+		assertNotSame(without, with);
+
+		XPathSelector selector = with.load();
+		selector.setVariable(v, new XdmAtomicValue("value"));
+		selector.setContextItem(parse("<doc>text</doc>"));
+		assertEquals("text", selector.evaluateSingle().getStringValue());
+
+		assertSame(with, cache.compile("string(/doc)", null, namespaces("x", "urn:a"), variables));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	public void testBaseURIsAreSeparated() throws Exception {
+		XPathCache cache = new XPathCache(processor);
+		XPathExecutable a = cache.compile("static-base-uri()", new URI("http://example.com/a.xpl"),
+				namespaces("x", "urn:a"), noVariables);
+		XPathExecutable b = cache.compile("static-base-uri()", new URI("http://example.com/b.xpl"),
+				namespaces("x", "urn:a"), noVariables);
+		assertEquals("http://example.com/a.xpl", evaluate(a, parse("<doc/>")));
+		assertEquals("http://example.com/b.xpl", evaluate(b, parse("<doc/>")));
+	}
+
+	private HashMap<String,String> namespaces(String prefix, String uri) {
+		return new HashMap<String,String> (Collections.singletonMap(prefix, uri));
+	}
+
+	private String evaluate(XPathExecutable xexec, XdmNode context) throws Exception {
+		XPathSelector selector = xexec.load();
+		selector.setContextItem(context);
+		return selector.evaluateSingle().getStringValue();
+	}
+
+	private XdmNode parse(String xml) throws Exception {
+		return processor.newDocumentBuilder().build(new StreamSource(new StringReader(xml)));
+	}
+}
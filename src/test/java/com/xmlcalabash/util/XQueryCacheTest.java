@@ -0,0 +1,60 @@
+package com.xmlcalabash.util;
+
+import java.net.URI;
+import java.util.Hashtable;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XQueryExecutable;
+
+public class XQueryCacheTest extends TestCase {
+	private Processor processor = new Processor(false);
+	private Hashtable<String,String> noNamespaces = new Hashtable<String,String> ();
+
+	public void testSameQueryIsShared() throws Exception {
+		XQueryCache cache = new XQueryCache(processor, null);
+		URI base = new URI("http://example.com/a.xq");
+		assertSame(cache.compile("<result/>", base, noNamespaces), cache.compile("<result/>", base, noNamespaces));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	public void testStaticContextIsPartOfTheKey() throws Exception {
+		XQueryCache cache = new XQueryCache(processor, null);
+		Hashtable<String,String> namespaces = new Hashtable<String,String> ();
+		namespaces.put("ex", "http://example.com/ns");
+
+		cache.compile("<result/>", new URI("http://example.com/a.xq"), noNamespaces);
+		cache.compile("<other/>", new URI("http://example.com/a.xq"), noNamespaces);
+		cache.compile("<result/>", new URI("http://example.com/b.xq"), noNamespaces);
+		cache.compile("<result/>", new URI("http://example.com/a.xq"), namespaces);
+		cache.compile("<result/>", null, noNamespaces);
+		assertEquals(0, cache.getHits());
+		assertEquals(5, cache.size());
+	}
+
+	public void testClear() throws Exception {
+		XQueryCache cache = new XQueryCache(processor, null);
+		XQueryExecutable first = cache.compile("<result/>", null, noNamespaces);
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertNotSame(first, cache.compile("<result/>", null, noNamespaces));
+		assertEquals(2, cache.getMisses());
+	}
+
+	public void testLeastRecentlyUsedIsEvicted() throws Exception {
+		XQueryCache cache = new XQueryCache(processor, null);
+		XQueryExecutable first = cache.compile("<q0/>", null, noNamespaces);
+		for (int i = 1; i <= 256; i++) {
+			// Keep the first query in use
+			cache.compile("<q0/>", null, noNamespaces);
+			cache.compile("<q" + i + "/>", null, noNamespaces);
+		}
+		assertEquals(256, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertSame(first, cache.compile("<q0/>", null, noNamespaces));
+		// The second query was the least recently used
+		cache.compile("<q1/>", null, noNamespaces);
+		assertEquals(258, cache.getMisses());
+	}
+}
@@ -0,0 +1,44 @@
+package com.xmlcalabash.util;
+
+import java.io.StringReader;
+
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmNode;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class XdmNodeReaderTest extends TestCase {
+	private Processor processor = new Processor(false);
+
+	public void testRoundTrip() throws Exception {
+		XdmNode doc = parse("<doc xmlns='http://example.com/ns' xmlns:x='http://example.com/x' x:a='1'><?pi data?><p>text</p></doc>");
+		XdmNodeReader reader = new XdmNodeReader(processor, doc);
+		XdmNode copy = processor.newDocumentBuilder().build(new SAXSource(reader, new InputSource()));
+		assertEquals(doc.toString(), copy.toString());
+	}
+
+	public void testHandlerExceptionsAreUnwrapped() throws Exception {
+		XdmNodeReader reader = new XdmNodeReader(processor, parse("<doc/>"));
+		reader.setContentHandler(new DefaultHandler() {
+			public void startDocument() throws SAXParseException {
+				throw new SAXParseException("invalid", null);
+			}
+		});
+		try {
+			reader.parse(new InputSource());
+			fail();
+		} catch (SAXParseException spe) {
+			assertEquals("invalid", spe.getMessage());
+		}
+	}
+
+	private XdmNode parse(String xml) throws Exception {
+		return processor.newDocumentBuilder().build(new StreamSource(new StringReader(xml), "http://example.com/doc.xml"));
+	}
+}
@@ -0,0 +1,101 @@
+package com.xmlcalabash.util;
+
+import java.io.StringReader;
+import java.util.Vector;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+public class XsdCacheTest extends TestCase {
+	private Processor processor = new Processor(false);
+
+	public void testSchemas() throws Exception {
+		XsdCache cache = new XsdCache();
+		assertNull(cache.getSchema("a"));
+		Schema schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema();
+		cache.putSchema("a", schema);
+		assertSame(schema, cache.getSchema("a"));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	public void testSaxonSchemaSetsAreKept() throws Exception {
+		XsdCache cache = new XsdCache();
+		Loader a = new Loader("a");
+		Loader b = new Loader("b");
+
+		lock(cache, "a", a);
+		lock(cache, "b", b);
+		// Switching back imports the components exported the first time
+		lock(cache, "a", a);
+		lock(cache, "a", a);
+		assertEquals("[load a, export a, import a]", a.calls.toString());
+		assertEquals("[load b, export b]", b.calls.toString());
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, cache.getHits());
+
+		cache.clear();
+		lock(cache, "b", b);
+		assertEquals("[load b, export b, load b, export b]", b.calls.toString());
+	}
+
+	public void testValidationsKeepTheirSchemas() throws Exception {
+		final XsdCache cache = new XsdCache();
+		final Loader b = new Loader("b");
+		cache.lockSaxonSchemas("a", new Loader("a"));
+
+		Thread other = new Thread() {
+			public void run() {
+				try {
+					lock(cache, "b", b);
+				} catch (SaxonApiException sae) {
+					// b.calls stays empty
+				}
+			}
+		};
+		other.start();
+		other.join(200);
+		// The other set can't be loaded while this validation is running
+		assertTrue(b.calls.isEmpty());
+
+		cache.unlockSaxonSchemas();
+		other.join();
+		assertEquals("[load b, export b]", b.calls.toString());
+	}
+
+	private void lock(XsdCache cache, String key, Loader loader) throws SaxonApiException {
+		cache.lockSaxonSchemas(key, loader);
+		cache.unlockSaxonSchemas();
+	}
+
+	private class Loader implements XsdCache.SchemaLoader {
+		private String name = null;
+		private Vector<String> calls = new Vector<String> ();
+
+		private Loader(String name) {
+			this.name = name;
+		}
+
+		public void load() {
+			calls.add("load " + name);
+		}
+
+		public void importComponents(XdmNode components) {
+			assertEquals(name, components.getStringValue());
+			calls.add("import " + name);
+		}
+
+		public XdmNode exportComponents() throws SaxonApiException {
+			calls.add("export " + name);
+			String xml = "<scm>" + name + "</scm>";
+			return processor.newDocumentBuilder().build(new StreamSource(new StringReader(xml)));
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package com.xmlcalabash.util;
+
+import java.io.StringReader;
+
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmNode;
+
+public class XsltCacheTest extends TestCase {
+	private static final String stylesheet = "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>"
+			+ "<xsl:template match='/'><result>%s</result></xsl:template>"
+			+ "</xsl:stylesheet>";
+
+	private Processor processor = new Processor(false);
+
+	public void testSameContentIsShared() throws Exception {
+		XsltCache cache = new XsltCache(processor);
+		// Two separately built trees with the same content and base URI
+		assertSame(cache.compile(parse("one", "http://example.com/a.xsl")),
+				cache.compile(parse("one", "http://example.com/a.xsl")));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	public void testDifferentContentOrBaseURI() throws Exception {
+		XsltCache cache = new XsltCache(processor);
+		cache.compile(parse("one", "http://example.com/a.xsl"));
+		cache.compile(parse("two", "http://example.com/a.xsl"));
+		cache.compile(parse("one", "http://example.com/b.xsl"));
+		assertEquals(0, cache.getHits());
+		assertEquals(3, cache.size());
+	}
+
+	private XdmNode parse(String text, String baseURI) throws Exception {
+		String xml = String.format(stylesheet, text);
+		return processor.newDocumentBuilder().build(new StreamSource(new StringReader(xml), baseURI));
+	}
+}